@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.annotation.Nullable;
+
+import com.android.server.am.BaseAppStateTimeEvents.BaseTimeEvent;
+
+import java.util.LinkedList;
+
+/**
+ * A set of disjoint [start, end) intervals, kept sorted in primitive arrays along with the
+ * running total of their lengths; so the active time since any timestamp is O(log n), and that
+ * of the intersection with another set is O(m log n).
+ *
+ * <p>It's meant to be reused as a scratch buffer for the queries over the start/stop event lists
+ * of {@link BaseAppStateDurations}, the arrays are only reallocated when they need to grow.</p>
+ *
+ * <p>This class isn't thread safe.</p>
+ */
+final class ActiveIntervals {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mStarts = new long[INITIAL_CAPACITY];
+    private long[] mEnds = new long[INITIAL_CAPACITY];
+
+    /** The total length of the intervals before each one, and of all of them at the end. */
+    private long[] mSums = new long[INITIAL_CAPACITY + 1];
+    private int mSize;
+
+    // The previous content, while it's being merged.
+    private long[] mTmpStarts = new long[INITIAL_CAPACITY];
+    private long[] mTmpEnds = new long[INITIAL_CAPACITY];
+
+    void clear() {
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Add the durations of the given start/stop event list; a trailing start event is considered
+     * active until the given time.
+     */
+    void union(@Nullable LinkedList<? extends BaseTimeEvent> events, long now) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        final int oldSize = mSize;
+        ensureCapacity(oldSize + (events.size() + 1) / 2);
+        // Move the current intervals aside, and merge them back with the new ones by start time.
+        long[] tmp = mTmpStarts;
+        mTmpStarts = mStarts;
+        mStarts = tmp;
+        tmp = mTmpEnds;
+        mTmpEnds = mEnds;
+        mEnds = tmp;
+        mSize = 0;
+
+        int i = 0;
+        long start = -1;
+        boolean isStart = true;
+        for (BaseTimeEvent event : events) {
+            if (isStart) {
+                start = event.getTimestamp();
+            } else {
+                for (; i < oldSize && mTmpStarts[i] <= start; i++) {
+                    append(mTmpStarts[i], mTmpEnds[i]);
+                }
+                append(start, event.getTimestamp());
+            }
+            isStart = !isStart;
+        }
+        if (!isStart) {
+            for (; i < oldSize && mTmpStarts[i] <= start; i++) {
+                append(mTmpStarts[i], mTmpEnds[i]);
+            }
+            append(start, Math.max(start, now));
+        }
+        for (; i < oldSize; i++) {
+            append(mTmpStarts[i], mTmpEnds[i]);
+        }
+        for (int j = 0; j < mSize; j++) {
+            mSums[j + 1] = mSums[j] + mEnds[j] - mStarts[j];
+        }
+    }
+
+    /**
+     * @return The total length of the intervals after the given time.
+     */
+    long getTotalSince(long since) {
+        return mSums[mSize] - getTotalBefore(since);
+    }
+
+    /**
+     * @return The total length of the intersection of these intervals and the given ones, after
+     *         the given time.
+     */
+    long getOverlapSince(ActiveIntervals other, long since) {
+        long overlap = 0;
+        for (int i = 0; i < other.mSize; i++) {
+            final long start = Math.max(since, other.mStarts[i]);
+            final long end = other.mEnds[i];
+            if (end > start) {
+                overlap += getTotalBefore(end) - getTotalBefore(start);
+            }
+        }
+        return overlap;
+    }
+
+    /**
+     * @return The total length of the intervals before the given time.
+     */
+    private long getTotalBefore(long time) {
+        // Find the number of intervals starting before the given time.
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mStarts[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == 0) {
+            return 0;
+        }
+        return mSums[lo - 1] + Math.min(mEnds[lo - 1], time) - mStarts[lo - 1];
+    }
+
+    /**
+     * Append the given interval, which mustn't start before the last one, coalescing them if
+     * they overlap.
+     */
+    private void append(long start, long end) {
+        if (mSize > 0 && start <= mEnds[mSize - 1]) {
+            mEnds[mSize - 1] = Math.max(mEnds[mSize - 1], end);
+            return;
+        }
+        mStarts[mSize] = start;
+        mEnds[mSize] = Math.max(start, end);
+        mSize++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mStarts.length) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, mStarts.length * 2);
+        final long[] starts = new long[newCapacity];
+        final long[] ends = new long[newCapacity];
+        System.arraycopy(mStarts, 0, starts, 0, mSize);
+        System.arraycopy(mEnds, 0, ends, 0, mSize);
+        mStarts = starts;
+        mEnds = ends;
+        mTmpStarts = new long[newCapacity];
+        mTmpEnds = new long[newCapacity];
+        mSums = new long[newCapacity + 1];
+    }
+}
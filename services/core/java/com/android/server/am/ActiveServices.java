@@ -185,7 +185,6 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
@@ -212,6 +211,16 @@ public final class ActiveServices {
     // How long we wait for a service to finish executing.
     static final int SERVICE_BACKGROUND_TIMEOUT = SERVICE_TIMEOUT * 10;
 
+    // How often a redundant binding may move the service process up in the LRU list.
+    static final long REDUNDANT_BIND_LRU_UPDATE_INTERVAL_MS = 1000;
+
+    // How many times in a row a service restart may be deferred on memory pressure.
+    static final int MAX_SERVICE_RESTART_ADMISSION_DEFERRALS = 5;
+
+    // A process dying within this long after being started for a service restart counts
+    // as a restart-induced kill.
+    static final long SERVICE_RESTART_KILL_WINDOW_MS = 60 * 1000;
+
     // Foreground service types that always get immediate notification display,
     // expressed in the same bitmask format that ServiceRecord.foregroundServiceType
     // uses.
@@ -255,6 +264,14 @@ public final class ActiveServices {
      */
     final SparseArray<ServiceMap> mServiceMap = new SparseArray<>();
 
+    /**
+     * Immutable snapshots of the services of each user, for read-only queries which don't
+     * take the AMS lock. The array itself is never modified once published: a user's snapshot
+     * is dropped by publishing a copy without it, on any structural change of its services,
+     * and is rebuilt under the lock by the next query.
+     */
+    private volatile SparseArray<ServiceMapSnapshot> mServiceMapSnapshots = new SparseArray<>();
+
     /**
      * All currently bound service connections.  Keys are the IBinder of
      * the client's IServiceConnection.
@@ -267,22 +284,50 @@ public final class ActiveServices {
      * while waiting for their corresponding application thread to get
      * going.
      */
-    final ArrayList<ServiceRecord> mPendingServices = new ArrayList<>();
+    final ServiceRecordList mPendingServices = new ServiceRecordList();
 
     /**
      * List of services that are scheduled to restart following a crash.
      */
-    final ArrayList<ServiceRecord> mRestartingServices = new ArrayList<>();
+    final ServiceRecordList mRestartingServices = new ServiceRecordList();
+
+    /**
+     * Number of bindings which duplicated an existing connection of the same client, and so
+     * didn't need an oom adj update.
+     */
+    @GuardedBy("mAm")
+    long mNumRedundantBinds;
+
+    /**
+     * Number of restarting services which were brought up by a process started for another
+     * service, rather than starting a process of their own.
+     */
+    @GuardedBy("mAm")
+    long mNumServiceRestartsGrouped;
+
+    /**
+     * Number of service restarts deferred because they'd need a new process under memory
+     * pressure.
+     */
+    @GuardedBy("mAm")
+    long mNumServiceRestartsDeferred;
+
+    /**
+     * Number of processes started for a service restart which died, without being killed by
+     * us, within {@link #SERVICE_RESTART_KILL_WINDOW_MS}.
+     */
+    @GuardedBy("mAm")
+    long mNumServiceRestartKills;
 
     /**
      * List of services that are in the process of being destroyed.
      */
-    final ArrayList<ServiceRecord> mDestroyingServices = new ArrayList<>();
+    final ServiceRecordList mDestroyingServices = new ServiceRecordList();
 
     /**
      * List of services for which display of the FGS notification has been deferred.
      */
-    final ArrayList<ServiceRecord> mPendingFgsNotifications = new ArrayList<>();
+    final ServiceRecordList mPendingFgsNotifications = new ServiceRecordList();
 
     /**
      * Whether there is a rate limit that suppresses immediate re-deferral of new FGS
@@ -308,6 +353,20 @@ public final class ActiveServices {
      */
     private ArrayMap<ServiceRecord, ArrayList<Runnable>> mPendingBringups = new ArrayMap<>();
 
+    /** Temporary list of the restarting services brought up by {@link #attachApplicationLocked}. */
+    @GuardedBy("mAm")
+    private final ArrayList<ServiceRecord> mTmpRestartGroup = new ArrayList<>();
+
+    /**
+     * Orders the restarting services brought up together in a process by importance: the ones
+     * which are or were asked to be in the foreground first, then the ones with clients bound to
+     * them, then the ones which were only started. The sort is stable, so each of these keeps
+     * its {@link ServiceRecord#nextRestartTime} order.
+     */
+    private static final Comparator<ServiceRecord> sRestartImportanceComparator =
+            Comparator.comparingInt(r -> (r.isForeground || r.fgRequired) ? 0
+                    : r.hasAutoCreateConnections() ? 1 : 2);
+
     /** Temporary list for holding the results of calls to {@link #collectPackageServicesLocked} */
     private ArrayList<ServiceRecord> mTmpCollectionResults = null;
 
@@ -357,6 +416,22 @@ public final class ActiveServices {
     @EnabledSince(targetSdkVersion = android.os.Build.VERSION_CODES.S)
     static final long FGS_START_EXCEPTION_CHANGE_ID = 174041399L;
 
+    /**
+     * Service execution, foreground transition and FGS notification deferral timeouts. These
+     * are armed and disarmed on nearly every service operation but hardly ever expire, so
+     * they're kept on a timer wheel rather than as messages in the main handler's queue.
+     */
+    @GuardedBy("mAm")
+    final TimerWheel mServiceTimers;
+
+    @GuardedBy("mAm")
+    private final TimerWheel.Timer mDeferredFgsNotificationsTimer = new TimerWheel.Timer() {
+        @Override
+        void onExpired() {
+            mPostDeferredFGSNotifications.run();
+        }
+    };
+
     final Runnable mLastAnrDumpClearer = new Runnable() {
         @Override public void run() {
             synchronized (mAm) {
@@ -438,6 +513,39 @@ public final class ActiveServices {
         long mHideTime;
     }
 
+    /**
+     * The services of one user, and whether they were in the foreground, at the time the
+     * snapshot was taken.
+     */
+    static final class ServiceMapSnapshot {
+        private final ServiceRecord[] mServices;
+        private final boolean[] mIsForeground;
+
+        ServiceMapSnapshot(ArrayMap<ComponentName, ServiceRecord> services) {
+            final int size = services.size();
+            mServices = new ServiceRecord[size];
+            mIsForeground = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                mServices[i] = services.valueAt(i);
+                mIsForeground[i] = mServices[i].isForeground;
+            }
+        }
+
+        boolean hasForegroundServiceNotification(String pkg, String channelId) {
+            for (int i = 0; i < mServices.length; i++) {
+                final ServiceRecord sr = mServices[i];
+                if (mIsForeground[i] && sr.appInfo.packageName.equals(pkg)) {
+                    // The notification may be amended outside of the lock, read it once.
+                    final Notification noti = sr.foregroundNoti;
+                    if (noti != null && Objects.equals(noti.getChannelId(), channelId)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * Information about services for a single user.
      */
@@ -559,6 +667,7 @@ public final class ActiveServices {
 
     public ActiveServices(ActivityManagerService service) {
         mAm = service;
+        mServiceTimers = new TimerWheel(service.mHandler, service);
         int maxBg = 0;
         try {
             maxBg = Integer.parseInt(SystemProperties.get("ro.config.max_starting_bg", "0"));
@@ -608,26 +717,63 @@ public final class ActiveServices {
         return smap != null ? smap.mStartingBackground.size() >= mMaxStartingBackground : false;
     }
 
-    boolean hasForegroundServiceNotificationLocked(String pkg, int userId, String channelId) {
-        final ServiceMap smap = mServiceMap.get(userId);
-        if (smap != null) {
-            for (int i = 0; i < smap.mServicesByInstanceName.size(); i++) {
-                final ServiceRecord sr = smap.mServicesByInstanceName.valueAt(i);
-                if (sr.appInfo.packageName.equals(pkg) && sr.isForeground) {
-                    if (Objects.equals(sr.foregroundNoti.getChannelId(), channelId)) {
-                        if (DEBUG_FOREGROUND_SERVICE) {
-                            Slog.d(TAG_SERVICE, "Channel u" + userId + "/pkg=" + pkg
-                                    + "/channelId=" + channelId
-                                    + " has fg service notification");
-                        }
-                        return true;
-                    }
-                }
+    /**
+     * Doesn't need the AMS lock, unless the services of the given user changed since the
+     * last query.
+     */
+    boolean hasForegroundServiceNotification(String pkg, int userId, String channelId) {
+        final ServiceMapSnapshot snapshot = getServiceMapSnapshot(userId);
+        if (snapshot != null && snapshot.hasForegroundServiceNotification(pkg, channelId)) {
+            if (DEBUG_FOREGROUND_SERVICE) {
+                Slog.d(TAG_SERVICE, "Channel u" + userId + "/pkg=" + pkg
+                        + "/channelId=" + channelId
+                        + " has fg service notification");
             }
+            return true;
         }
         return false;
     }
 
+    private ServiceMapSnapshot getServiceMapSnapshot(int userId) {
+        final ServiceMapSnapshot snapshot = mServiceMapSnapshots.get(userId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (mAm) {
+            final ServiceMap smap = mServiceMap.get(userId);
+            if (smap == null) {
+                return null;
+            }
+            final SparseArray<ServiceMapSnapshot> snapshots = mServiceMapSnapshots.clone();
+            final ServiceMapSnapshot newSnapshot =
+                    new ServiceMapSnapshot(smap.mServicesByInstanceName);
+            snapshots.put(userId, newSnapshot);
+            mServiceMapSnapshots = snapshots;
+            return newSnapshot;
+        }
+    }
+
+    /**
+     * Called on any change of the services of the given user which is visible in
+     * {@link ServiceMapSnapshot}.
+     */
+    @GuardedBy("mAm")
+    private void invalidateServiceMapSnapshotLocked(int userId) {
+        final SparseArray<ServiceMapSnapshot> snapshots = mServiceMapSnapshots;
+        final int index = snapshots.indexOfKey(userId);
+        if (index < 0) {
+            return;
+        }
+        final SparseArray<ServiceMapSnapshot> newSnapshots =
+                new SparseArray<>(snapshots.size() - 1);
+        for (int i = 0, size = snapshots.size(); i < size; i++) {
+            if (i != index) {
+                newSnapshots.put(snapshots.keyAt(i), snapshots.valueAt(i));
+            }
+        }
+        mServiceMapSnapshots = newSnapshots;
+    }
+
     void stopForegroundServicesForChannelLocked(String pkg, int userId, String channelId) {
         final ServiceMap smap = mServiceMap.get(userId);
         if (smap != null) {
@@ -1347,6 +1493,7 @@ public final class ActiveServices {
                 // if so, stop that too to avoid spamming the system.
                 final ServiceMap smap = getServiceMapLocked(r.userId);
                 final ServiceRecord found = smap.mServicesByInstanceName.remove(r.instanceName);
+                invalidateServiceMapSnapshotLocked(r.userId);
                 if (found != null) {
                     stopServiceLocked(found, false);
                 }
@@ -1864,8 +2011,7 @@ public final class ActiveServices {
                 r.fgRequired = false;
                 r.fgWaiting = false;
                 alreadyStartedOp = stopProcStatsOp = true;
-                mAm.mHandler.removeMessages(
-                        ActivityManagerService.SERVICE_FOREGROUND_TIMEOUT_MSG, r);
+                cancelServiceForegroundTransitionTimeoutLocked(r);
             }
 
             final ProcessServiceRecord psr = r.app.mServices;
@@ -2001,6 +2147,7 @@ public final class ActiveServices {
                             active.mNumActive++;
                         }
                         r.isForeground = true;
+                        invalidateServiceMapSnapshotLocked(r.userId);
                         // The logging of FOREGROUND_SERVICE_STATE_CHANGED__STATE__ENTER event could
                         // be deferred, make a copy of mAllowStartForeground and
                         // mAllowWhileInUsePermissionInFgs.
@@ -2099,6 +2246,7 @@ public final class ActiveServices {
                 }
 
                 r.isForeground = false;
+                invalidateServiceMapSnapshotLocked(r.userId);
                 r.mFgsExitTime = SystemClock.uptimeMillis();
                 synchronized (mAm.mProcessStats.mLock) {
                     final ServiceState stracker = r.getTracker();
@@ -2328,7 +2476,15 @@ public final class ActiveServices {
                     + r.appInfo.packageName + "/" + UserHandle.formatUid(r.appInfo.uid)
                     + " : " + r.foregroundNoti);
         }
-        mAm.mHandler.postAtTime(mPostDeferredFGSNotifications, when);
+        scheduleDeferredFgsNotificationsLocked(when);
+    }
+
+    @GuardedBy("mAm")
+    private void scheduleDeferredFgsNotificationsLocked(@UptimeMillisLong long when) {
+        if (!mDeferredFgsNotificationsTimer.isScheduled()
+                || when < mDeferredFgsNotificationsTimer.mDeadline) {
+            mServiceTimers.schedule(mDeferredFgsNotificationsTimer, when);
+        }
     }
 
     private final Runnable mPostDeferredFGSNotifications = new Runnable() {
@@ -2340,6 +2496,7 @@ public final class ActiveServices {
             final long now = SystemClock.uptimeMillis();
             synchronized (mAm) {
                 // post all notifications whose time has come
+                long nextTime = Long.MAX_VALUE;
                 for (int i = mPendingFgsNotifications.size() - 1; i >= 0; i--) {
                     final ServiceRecord r = mPendingFgsNotifications.get(i);
                     if (r.fgDisplayTime <= now) {
@@ -2359,8 +2516,13 @@ public final class ActiveServices {
                                 Slog.d(TAG_SERVICE, "  - service no longer running/fg, ignoring");
                             }
                         }
+                    } else {
+                        nextTime = Math.min(nextTime, r.fgDisplayTime);
                     }
                 }
+                if (nextTime != Long.MAX_VALUE) {
+                    scheduleDeferredFgsNotificationsLocked(nextTime);
+                }
                 if (DEBUG_FOREGROUND_SERVICE) {
                     Slog.d(TAG_SERVICE, "Done evaluating deferred FGS notifications; "
                             + mPendingFgsNotifications.size() + " remaining");
@@ -2915,6 +3077,14 @@ public final class ActiveServices {
                     callerApp.uid, UserHandle.getAppId(s.appInfo.uid));
 
             AppBindRecord b = s.retrieveAppBindingLocked(service, callerApp);
+            // If the client already has an equivalent connection to the running service, the
+            // new one doesn't change anything the oom adjuster looks at; SDKs that bind and
+            // unbind the same service in a loop otherwise cost a full update each time.
+            final boolean redundant = s.app != null && s.app.getThread() != null
+                    && hasEquivalentConnectionLocked(b, activity, flags);
+            if (redundant) {
+                mNumRedundantBinds++;
+            }
             ConnectionRecord c = new ConnectionRecord(b, activity,
                     connection, flags, clientLabel, clientIntent,
                     callerApp.uid, callerApp.processName, callingPackage, res.aliasComponent);
@@ -2963,7 +3133,7 @@ public final class ActiveServices {
             boolean needOomAdj = false;
             if ((flags&Context.BIND_AUTO_CREATE) != 0) {
                 s.lastActivity = SystemClock.uptimeMillis();
-                needOomAdj = true;
+                needOomAdj = !redundant;
                 if (bringUpServiceLocked(s, service.getFlags(), callerFg, false,
                         permissionsReviewRequired, packageFrozen, true) != null) {
                     mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_BIND_SERVICE);
@@ -2981,14 +3151,19 @@ public final class ActiveServices {
                 if (s.allowlistManager) {
                     servicePsr.mAllowlistManager = true;
                 }
-                // This could have made the service more important.
-                mAm.updateLruProcessLocked(s.app, (callerApp.hasActivitiesOrRecentTasks()
-                            && servicePsr.hasClientActivities())
-                        || (callerApp.mState.getCurProcState() <= PROCESS_STATE_TOP
-                            && (flags & Context.BIND_TREAT_LIKE_ACTIVITY) != 0),
-                        b.client);
-                needOomAdj = true;
-                mAm.enqueueOomAdjTargetLocked(s.app);
+                if (!redundant || SystemClock.uptimeMillis() - s.app.getLastActivityTime()
+                        >= REDUNDANT_BIND_LRU_UPDATE_INTERVAL_MS) {
+                    // This could have made the service more important.
+                    mAm.updateLruProcessLocked(s.app, (callerApp.hasActivitiesOrRecentTasks()
+                                && servicePsr.hasClientActivities())
+                            || (callerApp.mState.getCurProcState() <= PROCESS_STATE_TOP
+                                && (flags & Context.BIND_TREAT_LIKE_ACTIVITY) != 0),
+                            b.client);
+                }
+                if (!redundant) {
+                    needOomAdj = true;
+                    mAm.enqueueOomAdjTargetLocked(s.app);
+                }
             }
             if (needOomAdj) {
                 mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_BIND_SERVICE);
@@ -3047,6 +3222,22 @@ public final class ActiveServices {
         return 1;
     }
 
+    /**
+     * @return Whether the given binding already has a connection from the same activity, if
+     *         any, with the same flags.
+     */
+    @GuardedBy("mAm")
+    private static boolean hasEquivalentConnectionLocked(AppBindRecord b,
+            ActivityServiceConnectionsHolder<ConnectionRecord> activity, int flags) {
+        for (int i = b.connections.size() - 1; i >= 0; i--) {
+            final ConnectionRecord c = b.connections.valueAt(i);
+            if (c.flags == flags && c.activity == activity && !c.serviceDead) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @GuardedBy("mAm")
     private void notifyBindingServiceEventLocked(ProcessRecord callerApp, String callingPackage) {
         final ApplicationInfo ai = callerApp.info;
@@ -3493,6 +3684,7 @@ public final class ActiveServices {
                     res.setService(r);
                     smap.mServicesByInstanceName.put(name, r);
                     smap.mServicesByIntent.put(filter, r);
+                    invalidateServiceMapSnapshotLocked(r.userId);
 
                     // Make sure this component isn't in the pending list.
                     for (int i=mPendingServices.size()-1; i>=0; i--) {
@@ -3792,11 +3984,23 @@ public final class ActiveServices {
                     mRestartingServices.remove(oldPosInRestarting);
                     inRestarting = false;
                 }
+                // The earliest restart of other services in the same process, if it can share it.
+                final long processRestartTime = !r.isSdkSandbox
+                        && (r.serviceInfo.flags & ServiceInfo.FLAG_ISOLATED_PROCESS) == 0
+                        ? mRestartingServices.getEarliestRestartTimeForProcess(r.appInfo.uid,
+                                r.processName) : Long.MAX_VALUE;
                 if (mRestartingServices.isEmpty()) {
                     // Apply the extra delay even if it's the only one in the list.
                     final long extraDelay = getExtraRestartTimeInBetweenLocked();
                     r.nextRestartTime = Math.max(now + extraDelay, r.nextRestartTime);
                     r.restartDelay = r.nextRestartTime - now;
+                } else if (processRestartTime <= r.nextRestartTime) {
+                    // Another service is already waiting to restart earlier in the same
+                    // process; whichever restarts first brings up the process for all of them,
+                    // see attachApplicationLocked(), so restart along with the earliest one
+                    // rather than spacing this one apart. Its own backoff, as kept in
+                    // restartDelay and mEarliestRestartTime, stays as it is for the next crash.
+                    r.nextRestartTime = Math.max(now, processRestartTime);
                 } else {
                     // Make sure that we don't end up restarting a bunch of services
                     // all at the same time.
@@ -3848,18 +4052,7 @@ public final class ActiveServices {
                             SystemClock.uptimeMillis());
                 }
             }
-            boolean added = false;
-            for (int i = 0, size = mRestartingServices.size(); i < size; i++) {
-                final ServiceRecord r2 = mRestartingServices.get(i);
-                if (r2.nextRestartTime > r.nextRestartTime) {
-                    mRestartingServices.add(i, r);
-                    added = true;
-                    break;
-                }
-            }
-            if (!added) {
-                mRestartingServices.add(r);
-            }
+            addToRestartingServicesLocked(r);
         }
 
         cancelForegroundNotificationLocked(r);
@@ -3869,28 +4062,44 @@ public final class ActiveServices {
         return true;
     }
 
+    /**
+     * Add the given service to {@link #mRestartingServices}, which is sorted by
+     * {@link ServiceRecord#nextRestartTime}.
+     */
+    @GuardedBy("mAm")
+    private void addToRestartingServicesLocked(ServiceRecord r) {
+        for (int i = 0, size = mRestartingServices.size(); i < size; i++) {
+            final ServiceRecord r2 = mRestartingServices.get(i);
+            if (r2.nextRestartTime > r.nextRestartTime) {
+                mRestartingServices.add(i, r);
+                return;
+            }
+        }
+        mRestartingServices.add(r);
+    }
+
     @GuardedBy("mAm")
     void performScheduleRestartLocked(ServiceRecord r, @NonNull String scheduling,
             @NonNull String reason, @UptimeMillisLong long now) {
 
-        // If the service is waiting to become a foreground service, remove the pending
-        // SERVICE_FOREGROUND_TIMEOUT_MSG msg, and set fgWaiting to false, so next time the service
-        // is brought up, scheduleServiceForegroundTransitionTimeoutLocked() can be called again and
-        // a new SERVICE_FOREGROUND_TIMEOUT_MSG is scheduled in SERVICE_START_FOREGROUND_TIMEOUT
-        // again.
+        // If the service is waiting to become a foreground service, cancel the pending
+        // fgTimeoutTimer, and set fgWaiting to false, so next time the service is brought up,
+        // scheduleServiceForegroundTransitionTimeoutLocked() can be called again and the timer
+        // is scheduled in SERVICE_START_FOREGROUND_TIMEOUT again.
         if (r.fgRequired && r.fgWaiting) {
-            mAm.mHandler.removeMessages(
-                    ActivityManagerService.SERVICE_FOREGROUND_TIMEOUT_MSG, r);
+            cancelServiceForegroundTransitionTimeoutLocked(r);
             r.fgWaiting = false;
         }
 
         mAm.mHandler.removeCallbacks(r.restarter);
         mAm.mHandler.postAtTime(r.restarter, r.nextRestartTime);
-        r.nextRestartTime = now + r.restartDelay;
+        // Not always now + restartDelay, a restart grouped with others of its process keeps the
+        // delay its backoff is based on.
+        final long delay = r.nextRestartTime - now;
         Slog.w(TAG, scheduling + " restart of crashed service "
-                + r.shortInstanceName + " in " + r.restartDelay + "ms for " + reason);
+                + r.shortInstanceName + " in " + delay + "ms for " + reason);
         EventLog.writeEvent(EventLogTags.AM_SCHEDULE_SERVICE_RESTART,
-                r.userId, r.shortInstanceName, r.restartDelay);
+                r.userId, r.shortInstanceName, delay);
     }
 
     /**
@@ -4061,6 +4270,19 @@ public final class ActiveServices {
             Slog.wtf(TAG, "Restarting service that is not needed: " + r);
             return;
         }
+        if (shouldDeferServiceRestartLocked(r)) {
+            final long now = SystemClock.uptimeMillis();
+            r.restartAdmissionDeferCount++;
+            mNumServiceRestartsDeferred++;
+            r.restartDelay = Math.max(getExtraRestartTimeInBetweenLocked(),
+                    mAm.mConstants.SERVICE_MIN_RESTART_TIME_BETWEEN);
+            r.nextRestartTime = now + r.restartDelay;
+            mRestartingServices.remove(r);
+            addToRestartingServicesLocked(r);
+            performScheduleRestartLocked(r, "Deferring", "memory pressure", now);
+            return;
+        }
+        r.restartAdmissionDeferCount = 0;
         try {
             bringUpServiceLocked(r, r.intent.getIntent().getFlags(), r.createdFromFg, true, false,
                     false, true);
@@ -4072,6 +4294,39 @@ public final class ActiveServices {
         }
     }
 
+    /**
+     * Whether the restart of the given service should wait for the memory pressure to ease:
+     * that is the case if it needs a new process, and neither it nor any of its clients is
+     * important enough to warrant one under the current memory pressure.
+     */
+    @GuardedBy("mAm")
+    private boolean shouldDeferServiceRestartLocked(ServiceRecord r) {
+        if (r.restartAdmissionDeferCount >= MAX_SERVICE_RESTART_ADMISSION_DEFERRALS
+                || r.fgRequired
+                || (r.serviceInfo.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0
+                || mAm.mAppProfiler.getLastMemoryLevelLocked()
+                        < mAm.mConstants.mServiceRestartAdmissionMemFactor) {
+            return false;
+        }
+        if (!r.isSdkSandbox && (r.serviceInfo.flags & ServiceInfo.FLAG_ISOLATED_PROCESS) == 0
+                && mAm.getProcessRecordLocked(r.processName, r.appInfo.uid) != null) {
+            // The process is already there or on its way, this restart is for free.
+            return false;
+        }
+        final ArrayMap<IBinder, ArrayList<ConnectionRecord>> connections = r.getConnections();
+        for (int conni = connections.size() - 1; conni >= 0; conni--) {
+            final ArrayList<ConnectionRecord> cl = connections.valueAt(conni);
+            for (int i = cl.size() - 1; i >= 0; i--) {
+                final ProcessRecord client = cl.get(i).binding.client;
+                if (client != null
+                        && client.mState.getCurAdj() <= ProcessList.PERCEPTIBLE_APP_ADJ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private final boolean unscheduleServiceRestartLocked(ServiceRecord r, int callingUid,
             boolean force) {
         if (!force && r.restartDelay == 0) {
@@ -4137,7 +4392,7 @@ public final class ActiveServices {
                     }
                 }
                 // mRestartingServices is sorted by nextRestartTime.
-                Collections.sort(mRestartingServices,
+                mRestartingServices.sort(
                         (a, b) -> (int) (a.nextRestartTime - b.nextRestartTime));
             }
         } else {
@@ -4277,6 +4532,7 @@ public final class ActiveServices {
         // Not running -- get it started, and enqueue this service record
         // to be executed when the app comes up.
         if (app == null && !permissionsReviewRequired && !packageFrozen) {
+            final long startUptime = SystemClock.uptimeMillis();
             // TODO (chriswailes): Change the Zygote policy flags based on if the launch-for-service
             //  was initiated from a notification tap or not.
             if (r.isSdkSandbox) {
@@ -4297,6 +4553,10 @@ public final class ActiveServices {
                 bringDownServiceLocked(r, enqueueOomAdj);
                 return msg;
             }
+            if (whileRestarting && app.getStartUptime() >= startUptime) {
+                // Only if it was started for us, rather than already being on its way up.
+                app.mServices.setServiceRestartStartTime(startUptime);
+            }
             if (isolated) {
                 r.isolationHostProc = app;
             }
@@ -4659,8 +4919,7 @@ public final class ActiveServices {
             }
             mAm.mAppOpsService.finishOperation(AppOpsManager.getToken(mAm.mAppOpsService),
                     AppOpsManager.OP_START_FOREGROUND, r.appInfo.uid, r.packageName, null);
-            mAm.mHandler.removeMessages(
-                    ActivityManagerService.SERVICE_FOREGROUND_TIMEOUT_MSG, r);
+            cancelServiceForegroundTransitionTimeoutLocked(r);
             if (r.app != null) {
                 Message msg = mAm.mHandler.obtainMessage(
                         ActivityManagerService.SERVICE_FOREGROUND_CRASH_MSG);
@@ -4687,6 +4946,7 @@ public final class ActiveServices {
 
         final ServiceMap smap = getServiceMapLocked(r.userId);
         ServiceRecord found = smap.mServicesByInstanceName.remove(r.instanceName);
+        invalidateServiceMapSnapshotLocked(r.userId);
 
         // Note when this method is called by bringUpServiceLocked(), the service is not found
         // in mServicesByInstanceName and found will be null.
@@ -4737,6 +4997,7 @@ public final class ActiveServices {
         }
 
         r.isForeground = false;
+        invalidateServiceMapSnapshotLocked(r.userId);
         r.mFgsNotificationWasDeferred = false;
         dropFgsNotificationStateLocked(r);
         r.foregroundId = 0;
@@ -5065,7 +5326,9 @@ public final class ActiveServices {
                 if (psr.numberOfExecutingServices() == 0) {
                     if (DEBUG_SERVICE || DEBUG_SERVICE_EXECUTING) Slog.v(TAG_SERVICE_EXECUTING,
                             "No more executingServices of " + r.shortInstanceName);
-                    mAm.mHandler.removeMessages(ActivityManagerService.SERVICE_TIMEOUT_MSG, r.app);
+                    if (psr.mExecutingTimeoutTimer != null) {
+                        mServiceTimers.cancel(psr.mExecutingTimeoutTimer);
+                    }
                 } else if (r.executeFg) {
                     // Need to re-evaluate whether the app still needs to be in the foreground.
                     for (int i = psr.numberOfExecutingServices() - 1; i >= 0; i--) {
@@ -5118,35 +5381,32 @@ public final class ActiveServices {
                 proc.uid, proc.info.packageName));
 
         // Collect any services that are waiting for this process to come up.
+        final boolean scanPending = proc.isolated || proc.isSdkSandbox;
         if (mPendingServices.size() > 0) {
             ServiceRecord sr = null;
             try {
-                for (int i=0; i<mPendingServices.size(); i++) {
-                    sr = mPendingServices.get(i);
-                    if (proc != sr.isolationHostProc && (proc.uid != sr.appInfo.uid
-                            || !processName.equals(sr.processName))) {
-                        continue;
+                if (scanPending) {
+                    // Isolated processes are only matched through
+                    // ServiceRecord#isolationHostProc, which isn't indexed, so scan for those.
+                    for (int i = 0; i < mPendingServices.size(); i++) {
+                        sr = mPendingServices.get(i);
+                        if (proc != sr.isolationHostProc && (proc.uid != sr.appInfo.uid
+                                || !processName.equals(sr.processName))) {
+                            continue;
+                        }
+                        mPendingServices.remove(i);
+                        i--;
+                        startPendingServiceLocked(sr, proc);
+                        didSomething = true;
                     }
-
-                    final IApplicationThread thread = proc.getThread();
-                    final int pid = proc.getPid();
-                    final UidRecord uidRecord = proc.getUidRecord();
-                    mPendingServices.remove(i);
-                    i--;
-                    proc.addPackage(sr.appInfo.packageName, sr.appInfo.longVersionCode,
-                            mAm.mProcessStats);
-                    realStartServiceLocked(sr, proc, thread, pid, uidRecord, sr.createdFromFg,
-                            true);
-                    didSomething = true;
-                    if (!isServiceNeededLocked(sr, false, false)) {
-                        // We were waiting for this service to start, but it is actually no
-                        // longer needed.  This could happen because bringDownServiceIfNeeded
-                        // won't bring down a service that is pending...  so now the pending
-                        // is done, so let's drop it.
-                        bringDownServiceLocked(sr, true);
+                } else {
+                    // Otherwise look them up by process.
+                    while ((sr = mPendingServices.getFirstForProcess(proc.uid, processName))
+                            != null) {
+                        mPendingServices.remove(sr);
+                        startPendingServiceLocked(sr, proc);
+                        didSomething = true;
                     }
-                    /* Will be a no-op if nothing pending */
-                    mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_START_SERVICE);
                 }
             } catch (RemoteException e) {
                 Slog.w(TAG, "Exception in new application when starting service "
@@ -5158,7 +5418,8 @@ public final class ActiveServices {
         // would run in this process, now is a good time to start them.  It would
         // be weird to bring up the process but arbitrarily not let the services
         // run at this point just because their restart time hasn't come up.
-        if (mRestartingServices.size() > 0) {
+        if (mRestartingServices.size() > 0
+                && (scanPending || mRestartingServices.hasAnyForProcess(proc.uid, processName))) {
             ServiceRecord sr;
             boolean didImmediateRestart = false;
             for (int i=0; i<mRestartingServices.size(); i++) {
@@ -5167,10 +5428,18 @@ public final class ActiveServices {
                         || !processName.equals(sr.processName))) {
                     continue;
                 }
+                mTmpRestartGroup.add(sr);
+            }
+            // The restarts run in the order they're posted, bring up the most important first.
+            mTmpRestartGroup.sort(sRestartImportanceComparator);
+            for (int i = 0, size = mTmpRestartGroup.size(); i < size; i++) {
+                sr = mTmpRestartGroup.get(i);
                 mAm.mHandler.removeCallbacks(sr.restarter);
                 mAm.mHandler.post(sr.restarter);
                 didImmediateRestart = true;
+                mNumServiceRestartsGrouped++;
             }
+            mTmpRestartGroup.clear();
             if (didImmediateRestart) {
                 // Since we kicked off all its pending restarts, there could be some open slots
                 // in the pending restarts list, schedule a check on it. We are posting to the same
@@ -5189,8 +5458,36 @@ public final class ActiveServices {
         return didSomething;
     }
 
+    /**
+     * Start the given service, which was waiting for the given process to come up.
+     */
+    @GuardedBy("mAm")
+    private void startPendingServiceLocked(ServiceRecord sr, ProcessRecord proc)
+            throws RemoteException {
+        final IApplicationThread thread = proc.getThread();
+        final int pid = proc.getPid();
+        final UidRecord uidRecord = proc.getUidRecord();
+        proc.addPackage(sr.appInfo.packageName, sr.appInfo.longVersionCode,
+                mAm.mProcessStats);
+        realStartServiceLocked(sr, proc, thread, pid, uidRecord, sr.createdFromFg,
+                true);
+        if (!isServiceNeededLocked(sr, false, false)) {
+            // We were waiting for this service to start, but it is actually no
+            // longer needed.  This could happen because bringDownServiceIfNeeded
+            // won't bring down a service that is pending...  so now the pending
+            // is done, so let's drop it.
+            bringDownServiceLocked(sr, true);
+        }
+        /* Will be a no-op if nothing pending */
+        mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_START_SERVICE);
+    }
+
     void processStartTimedOutLocked(ProcessRecord proc) {
         boolean needOomAdj = false;
+        if (!proc.isolated && !proc.isSdkSandbox
+                && !mPendingServices.hasAnyForProcess(proc.uid, proc.processName)) {
+            return;
+        }
         for (int i = 0, size = mPendingServices.size(); i < size; i++) {
             ServiceRecord sr = mPendingServices.get(i);
             if ((proc.uid == sr.appInfo.uid
@@ -5410,6 +5707,11 @@ public final class ActiveServices {
 
     final void killServicesLocked(ProcessRecord app, boolean allowRestart) {
         final ProcessServiceRecord psr = app.mServices;
+        final long restartStartTime = psr.getServiceRestartStartTime();
+        if (restartStartTime != 0 && !app.isKilledByAm()
+                && SystemClock.uptimeMillis() - restartStartTime < SERVICE_RESTART_KILL_WINDOW_MS) {
+            mNumServiceRestartKills++;
+        }
         // Report disconnected services.
         if (false) {
             // XXX we are letting the client link to the service for
@@ -5773,10 +6075,7 @@ public final class ActiveServices {
                 mAm.mHandler.postDelayed(mLastAnrDumpClearer, LAST_ANR_LIFETIME_DURATION_MSECS);
                 anrMessage = "executing service " + timeout.shortInstanceName;
             } else {
-                Message msg = mAm.mHandler.obtainMessage(
-                        ActivityManagerService.SERVICE_TIMEOUT_MSG);
-                msg.obj = proc;
-                mAm.mHandler.sendMessageAtTime(msg, psr.shouldExecServicesFg()
+                scheduleServiceTimeoutAtLocked(proc, psr.shouldExecServicesFg()
                         ? (nextTime+SERVICE_TIMEOUT) : (nextTime + SERVICE_BACKGROUND_TIMEOUT));
             }
         }
@@ -5854,22 +6153,47 @@ public final class ActiveServices {
         if (proc.mServices.numberOfExecutingServices() == 0 || proc.getThread() == null) {
             return;
         }
-        Message msg = mAm.mHandler.obtainMessage(
-                ActivityManagerService.SERVICE_TIMEOUT_MSG);
-        msg.obj = proc;
-        mAm.mHandler.sendMessageDelayed(msg, proc.mServices.shouldExecServicesFg()
-                ? SERVICE_TIMEOUT : SERVICE_BACKGROUND_TIMEOUT);
+        scheduleServiceTimeoutAtLocked(proc, SystemClock.uptimeMillis()
+                + (proc.mServices.shouldExecServicesFg()
+                        ? SERVICE_TIMEOUT : SERVICE_BACKGROUND_TIMEOUT));
+    }
+
+    @GuardedBy("mAm")
+    private void scheduleServiceTimeoutAtLocked(ProcessRecord proc, @UptimeMillisLong long when) {
+        final ProcessServiceRecord psr = proc.mServices;
+        if (psr.mExecutingTimeoutTimer == null) {
+            psr.mExecutingTimeoutTimer = new TimerWheel.Timer() {
+                @Override
+                void onExpired() {
+                    serviceTimeout(proc);
+                }
+            };
+        }
+        mServiceTimers.schedule(psr.mExecutingTimeoutTimer, when);
     }
 
     void scheduleServiceForegroundTransitionTimeoutLocked(ServiceRecord r) {
         if (r.app.mServices.numberOfExecutingServices() == 0 || r.app.getThread() == null) {
             return;
         }
-        Message msg = mAm.mHandler.obtainMessage(
-                ActivityManagerService.SERVICE_FOREGROUND_TIMEOUT_MSG);
-        msg.obj = r;
+        if (r.fgTimeoutTimer == null) {
+            r.fgTimeoutTimer = new TimerWheel.Timer() {
+                @Override
+                void onExpired() {
+                    serviceForegroundTimeout(r);
+                }
+            };
+        }
         r.fgWaiting = true;
-        mAm.mHandler.sendMessageDelayed(msg, mAm.mConstants.mServiceStartForegroundTimeoutMs);
+        mServiceTimers.schedule(r.fgTimeoutTimer,
+                SystemClock.uptimeMillis() + mAm.mConstants.mServiceStartForegroundTimeoutMs);
+    }
+
+    @GuardedBy("mAm")
+    private void cancelServiceForegroundTransitionTimeoutLocked(ServiceRecord r) {
+        if (r.fgTimeoutTimer != null) {
+            mServiceTimers.cancel(r.fgTimeoutTimer);
+        }
     }
 
     final class ServiceDumper {
@@ -5926,6 +6250,12 @@ public final class ActiveServices {
                 pw.print(mLastAnrDump);
                 pw.println();
             }
+            pw.println("  Service timers:");
+            mServiceTimers.dump(pw, "    ");
+            pw.print("  Service restarts: grouped="); pw.print(mNumServiceRestartsGrouped);
+            pw.print(" deferred="); pw.print(mNumServiceRestartsDeferred);
+            pw.print(" killedAfterRestart="); pw.println(mNumServiceRestartKills);
+            pw.print("  Redundant binds: "); pw.println(mNumRedundantBinds);
         }
 
         void dumpLocked() {
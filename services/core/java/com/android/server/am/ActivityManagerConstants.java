@@ -45,6 +45,7 @@ import android.util.KeyValueListParser;
 import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.app.procstats.ProcessStats;
 
 import dalvik.annotation.optimization.NeverCompile;
 
@@ -126,6 +127,10 @@ final class ActivityManagerConstants extends ContentObserver {
             "extra_delay_svc_restart_mem_pressure";
     static final String KEY_ENABLE_EXTRA_SERVICE_RESTART_DELAY_ON_MEM_PRESSURE =
             "enable_extra_delay_svc_restart_mem_pressure";
+    static final String KEY_SERVICE_RESTART_ADMISSION_MEM_FACTOR =
+            "service_restart_admission_mem_factor";
+    static final String KEY_ENABLE_PROCESS_PRESTART = "enable_process_prestart";
+    static final String KEY_MAX_PROCESS_PRESTARTS_PER_HOUR = "max_process_prestarts_per_hour";
     static final String KEY_KILL_BG_RESTRICTED_CACHED_IDLE = "kill_bg_restricted_cached_idle";
     static final String KEY_KILL_BG_RESTRICTED_CACHED_IDLE_SETTLE_TIME =
             "kill_bg_restricted_cached_idle_settle_time";
@@ -221,6 +226,16 @@ final class ActivityManagerConstants extends ContentObserver {
      * Whether or not to enable the extra delays to service restarts on memory pressure.
      */
     private static final boolean DEFAULT_ENABLE_EXTRA_SERVICE_RESTART_DELAY_ON_MEM_PRESSURE = true;
+
+    /**
+     * The memory factor at or above which restarts of unimportant services that would need a
+     * new process are deferred; {@link ProcessStats#ADJ_MEM_FACTOR_COUNT} disables it.
+     */
+    private static final int DEFAULT_SERVICE_RESTART_ADMISSION_MEM_FACTOR =
+            ProcessStats.ADJ_MEM_FACTOR_CRITICAL;
+
+    private static final boolean DEFAULT_ENABLE_PROCESS_PRESTART = false;
+    private static final int DEFAULT_MAX_PROCESS_PRESTARTS_PER_HOUR = 10;
     private static final boolean DEFAULT_ENABLE_COMPONENT_ALIAS = false;
     private static final String DEFAULT_COMPONENT_ALIAS_OVERRIDES = "";
 
@@ -658,6 +673,24 @@ final class ActivityManagerConstants extends ContentObserver {
     boolean mEnableExtraServiceRestartDelayOnMemPressure =
             DEFAULT_ENABLE_EXTRA_SERVICE_RESTART_DELAY_ON_MEM_PRESSURE;
 
+    /**
+     * @see #KEY_SERVICE_RESTART_ADMISSION_MEM_FACTOR
+     */
+    @GuardedBy("mService")
+    int mServiceRestartAdmissionMemFactor = DEFAULT_SERVICE_RESTART_ADMISSION_MEM_FACTOR;
+
+    /**
+     * Whether to prestart the processes whose start reliably follows that of another one.
+     */
+    @GuardedBy("mService")
+    boolean mEnableProcessPrestart = DEFAULT_ENABLE_PROCESS_PRESTART;
+
+    /**
+     * The maximum number of processes to prestart in an hour.
+     */
+    @GuardedBy("mService")
+    int mMaxProcessPrestartsPerHour = DEFAULT_MAX_PROCESS_PRESTARTS_PER_HOUR;
+
     /**
      * Whether to enable "component alias" experimental feature. This can only be enabled
      * on userdebug or eng builds.
@@ -981,6 +1014,13 @@ final class ActivityManagerConstants extends ContentObserver {
                             case KEY_ENABLE_EXTRA_SERVICE_RESTART_DELAY_ON_MEM_PRESSURE:
                                 updateEnableExtraServiceRestartDelayOnMemPressure();
                                 break;
+                            case KEY_SERVICE_RESTART_ADMISSION_MEM_FACTOR:
+                                updateServiceRestartAdmissionMemFactor();
+                                break;
+                            case KEY_ENABLE_PROCESS_PRESTART:
+                            case KEY_MAX_PROCESS_PRESTARTS_PER_HOUR:
+                                updateProcessPrestart();
+                                break;
                             case KEY_PROCESS_KILL_TIMEOUT:
                                 updateProcessKillTimeout();
                                 break;
@@ -1456,6 +1496,28 @@ final class ActivityManagerConstants extends ContentObserver {
         }
     }
 
+    private void updateServiceRestartAdmissionMemFactor() {
+        synchronized (mService) {
+            mServiceRestartAdmissionMemFactor = DeviceConfig.getInt(
+                    DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                    KEY_SERVICE_RESTART_ADMISSION_MEM_FACTOR,
+                    DEFAULT_SERVICE_RESTART_ADMISSION_MEM_FACTOR);
+        }
+    }
+
+    private void updateProcessPrestart() {
+        synchronized (mService) {
+            mEnableProcessPrestart = DeviceConfig.getBoolean(
+                    DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                    KEY_ENABLE_PROCESS_PRESTART,
+                    DEFAULT_ENABLE_PROCESS_PRESTART);
+            mMaxProcessPrestartsPerHour = DeviceConfig.getInt(
+                    DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                    KEY_MAX_PROCESS_PRESTARTS_PER_HOUR,
+                    DEFAULT_MAX_PROCESS_PRESTARTS_PER_HOUR);
+        }
+    }
+
     private void updateDeferBootCompletedBroadcast() {
         mDeferBootCompletedBroadcast = DeviceConfig.getInt(
                 DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
@@ -1797,6 +1859,12 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.print("="); pw.println(mPushMessagingOverQuotaBehavior);
         pw.print("  "); pw.print(KEY_FGS_ALLOW_OPT_OUT);
         pw.print("="); pw.println(mFgsAllowOptOut);
+        pw.print("  "); pw.print(KEY_SERVICE_RESTART_ADMISSION_MEM_FACTOR);
+        pw.print("="); pw.println(mServiceRestartAdmissionMemFactor);
+        pw.print("  "); pw.print(KEY_ENABLE_PROCESS_PRESTART);
+        pw.print("="); pw.println(mEnableProcessPrestart);
+        pw.print("  "); pw.print(KEY_MAX_PROCESS_PRESTARTS_PER_HOUR);
+        pw.print("="); pw.println(mMaxProcessPrestartsPerHour);
         pw.print("  "); pw.print(KEY_ENABLE_COMPONENT_ALIAS);
         pw.print("="); pw.println(mEnableComponentAlias);
         pw.print("  "); pw.print(KEY_COMPONENT_ALIAS_OVERRIDES);
@@ -1485,7 +1485,6 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int SHOW_NOT_RESPONDING_UI_MSG = 2;
     static final int GC_BACKGROUND_PROCESSES_MSG = 5;
     static final int WAIT_FOR_DEBUGGER_UI_MSG = 6;
-    static final int SERVICE_TIMEOUT_MSG = 12;
     static final int UPDATE_TIME_ZONE = 13;
     static final int PROC_START_TIMEOUT_MSG = 20;
     static final int KILL_APPLICATION_MSG = 22;
@@ -1504,7 +1503,6 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int CONTENT_PROVIDER_PUBLISH_TIMEOUT_MSG = 57;
     static final int IDLE_UIDS_MSG = 58;
     static final int HANDLE_TRUST_STORAGE_UPDATE_MSG = 63;
-    static final int SERVICE_FOREGROUND_TIMEOUT_MSG = 66;
     static final int SERVICE_FOREGROUND_TIMEOUT_ANR_MSG = 67;
     static final int PUSH_TEMP_ALLOWLIST_UI_MSG = 68;
     static final int SERVICE_FOREGROUND_CRASH_MSG = 69;
@@ -1691,12 +1689,6 @@ public class ActivityManagerService extends IActivityManager.Stub
                     mAppProfiler.performAppGcsIfAppropriateLocked();
                 }
             } break;
-            case SERVICE_TIMEOUT_MSG: {
-                mServices.serviceTimeout((ProcessRecord) msg.obj);
-            } break;
-            case SERVICE_FOREGROUND_TIMEOUT_MSG: {
-                mServices.serviceForegroundTimeout((ServiceRecord) msg.obj);
-            } break;
             case SERVICE_FOREGROUND_TIMEOUT_ANR_MSG: {
                 SomeArgs args = (SomeArgs) msg.obj;
                 mServices.serviceForegroundTimeoutANR((ProcessRecord) args.arg1,
@@ -4786,10 +4778,17 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         mHandler.removeMessages(PROC_START_TIMEOUT_MSG, app);
 
+        final ProcessStartProfiler.Sample startSample = app.getStartSample();
+        if (startSample != null) {
+            startSample.mAttachTime = startTime;
+        }
         boolean normalMode = mProcessesReady || isAllowedWhileBooting(app.info);
         List<ProviderInfo> providers = normalMode
                                             ? mCpHelper.generateApplicationProvidersLocked(app)
                                             : null;
+        if (startSample != null) {
+            startSample.mProvidersDoneTime = SystemClock.uptimeMillis();
+        }
 
         if (providers != null && mCpHelper.checkAppInLaunchingProvidersLocked(app)) {
             Message msg = mHandler.obtainMessage(CONTENT_PROVIDER_PUBLISH_TIMEOUT_MSG);
@@ -4936,6 +4935,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                 app.makeActive(thread, mProcessStats);
                 checkTime(startTime, "attachApplicationLocked: immediately after bindApplication");
             }
+            if (startSample != null) {
+                startSample.mBindDoneTime = SystemClock.uptimeMillis();
+            }
             updateLruProcessLocked(app, false, null);
             checkTime(startTime, "attachApplicationLocked: after updateLruProcessLocked");
             final long now = SystemClock.uptimeMillis();
@@ -5030,6 +5032,10 @@ public class ActivityManagerService extends IActivityManager.Stub
 
 
         final HostingRecord hostingRecord = app.getHostingRecord();
+        app.mState.setCacheOomRankerStartCostMs(SystemClock.uptimeMillis() - app.getStartUptime());
+        if (startSample != null) {
+            mProcessList.mStartProfiler.noteAttachDone(startSample, SystemClock.uptimeMillis());
+        }
         String shortAction = getShortAction(hostingRecord.getAction());
         FrameworkStatsLog.write(
                 FrameworkStatsLog.PROCESS_START_TIME,
@@ -9394,6 +9400,12 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (dumpAll) {
                     pw.println("-------------------------------------------------------------------------------");
                 }
+                mProcessList.mStartProfiler.dump(pw);
+                mProcessList.mPrestartPredictor.dumpLocked(pw);
+                pw.println();
+                if (dumpAll) {
+                    pw.println("-------------------------------------------------------------------------------");
+                }
                 dumpLmkLocked(pw);
             }
             pw.println();
@@ -9672,6 +9684,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 synchronized (this) {
                     dumpLmkLocked(pw);
                 }
+            } else if ("start-profile".equals(cmd)) {
+                mProcessList.mStartProfiler.dump(pw);
+                synchronized (this) {
+                    mProcessList.mPrestartPredictor.dumpLocked(pw);
+                }
             } else if ("lru".equals(cmd)) {
                 synchronized (this) {
                     mProcessList.dumpLruLocked(pw, dumpPackage, null);
@@ -9762,6 +9779,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else if ("users".equals(cmd)) {
                 dumpUsers(pw);
             } else if ("exit-info".equals(cmd)) {
+                if (opti < args.length && args[opti].startsWith("--")) {
+                    mProcessList.mAppExitInfoTracker.dumpFilteredProcessExitInfo(pw, args, opti);
+                    return;
+                }
                 if (opti < args.length) {
                     dumpPackage = args[opti];
                     opti++;
@@ -10404,7 +10425,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
         pw.println("  Total number of kills: " + cnt);
 
-        return reportLmkKillAtOrBelow(pw, ProcessList.CACHED_APP_MAX_ADJ) &&
+        final boolean result = reportLmkKillAtOrBelow(pw, ProcessList.CACHED_APP_MAX_ADJ) &&
                 reportLmkKillAtOrBelow(pw, ProcessList.CACHED_APP_MIN_ADJ) &&
                 reportLmkKillAtOrBelow(pw, ProcessList.SERVICE_B_ADJ) &&
                 reportLmkKillAtOrBelow(pw, ProcessList.PREVIOUS_APP_ADJ) &&
@@ -10416,6 +10437,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 reportLmkKillAtOrBelow(pw, ProcessList.PERCEPTIBLE_APP_ADJ) &&
                 reportLmkKillAtOrBelow(pw, ProcessList.VISIBLE_APP_ADJ) &&
                 reportLmkKillAtOrBelow(pw, ProcessList.FOREGROUND_APP_ADJ);
+        mProcessList.mLmkdKillStats.dump(pw, "  ", SystemClock.elapsedRealtime());
+        return result;
     }
 
     public static class ItemMatcher {
@@ -17413,9 +17436,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         @Override
         public boolean hasForegroundServiceNotification(String pkg, int userId,
                 String channelId) {
-            synchronized (ActivityManagerService.this) {
-                return mServices.hasForegroundServiceNotificationLocked(pkg, userId, channelId);
-            }
+            return mServices.hasForegroundServiceNotification(pkg, userId, channelId);
         }
 
         @Override
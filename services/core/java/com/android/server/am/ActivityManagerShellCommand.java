@@ -3406,7 +3406,11 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("    allowed-associations: current package association restrictions");
             pw.println("    as[sociations]: tracked app associations");
             pw.println("    exit-info [PACKAGE_NAME]: historical process exit information");
+            pw.println("    exit-info --uid <UID> [--reason <REASON>[,<REASON>...]]");
+            pw.println("        [--since <TIME_MS>] [--max <COUNT>] [PACKAGE_NAME]:");
+            pw.println("        the matching exit information of the given uid, newest first");
             pw.println("    lmk: stats on low memory killer");
+            pw.println("    start-profile: phase timings and prestarts of process cold starts");
             pw.println("    lru: raw LRU process list");
             pw.println("    binder-proxies: stats on binder objects and IPCs");
             pw.println("    settings: currently applied config settings");
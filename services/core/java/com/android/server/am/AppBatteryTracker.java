@@ -1944,7 +1944,7 @@ final class AppBatteryTracker extends BaseAppStateTracker<AppBatteryPolicy>
                             + TimeUtils.formatDuration(mBgCurrentDrainWindowMs));
                 }
                 if (notifyController) {
-                    mTracker.mAppRestrictionController.refreshAppRestrictionLevelForUid(
+                    mTracker.mAppRestrictionController.scheduleRefreshAppRestrictionLevelForUid(
                             uid, REASON_MAIN_FORCED_BY_SYSTEM,
                             REASON_SUB_FORCED_SYSTEM_FLAG_ABUSE, true);
                 }
@@ -2008,7 +2008,7 @@ final class AppBatteryTracker extends BaseAppStateTracker<AppBatteryPolicy>
             }
             if (changed) {
                 // Request to refresh the app restriction level.
-                mTracker.mAppRestrictionController.refreshAppRestrictionLevelForUid(uid,
+                mTracker.mAppRestrictionController.scheduleRefreshAppRestrictionLevelForUid(uid,
                         REASON_MAIN_USAGE, REASON_SUB_USAGE_USER_INTERACTION, true);
             }
         }
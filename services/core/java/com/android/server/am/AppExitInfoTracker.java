@@ -72,6 +72,9 @@ import com.android.server.os.NativeTombstoneManager;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -80,9 +83,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.List;
 import java.util.Optional;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
@@ -123,8 +127,31 @@ public final class AppExitInfoTracker {
     @VisibleForTesting
     static final String APP_EXIT_INFO_FILE = "procexitinfo";
 
+    @VisibleForTesting
+    static final String APP_EXIT_INFO_LOG_FILE = "procexitinfo.log";
+
+    /**
+     * Compact the append-only log into the snapshot once it grows beyond this size.
+     */
+    private static final long APP_EXIT_INFO_LOG_COMPACT_SIZE = 64 * 1024;
+
+    /**
+     * Records in the log are way smaller than this, anything bigger means it's corrupted.
+     */
+    private static final int APP_EXIT_INFO_LOG_MAX_RECORD_SIZE = 256 * 1024;
+
     private static final String APP_TRACE_FILE_SUFFIX = ".gz";
 
+    /**
+     * Prune the biggest ANR traces once all of them together take more than this.
+     */
+    private static final long APP_TRACE_FILES_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The number of ANR traces pruned per message, so the kill handler isn't held up.
+     */
+    private static final int APP_TRACE_FILES_PRUNE_BATCH = 4;
+
     private final Object mLock = new Object();
 
     /**
@@ -181,10 +208,39 @@ public final class AppExitInfoTracker {
     final ArrayList<ApplicationExitInfo> mTmpInfoList = new ArrayList<ApplicationExitInfo>();
 
     /**
-     * Temporary list being used to filter/sort intermediate results in {@link #getExitInfo}.
+     * Temporary list of the per-container indexes being merged in {@link #getExitInfo}.
      */
     @GuardedBy("mLock")
-    final ArrayList<ApplicationExitInfo> mTmpInfoList2 = new ArrayList<ApplicationExitInfo>();
+    private final ArrayList<ArrayList<ApplicationExitInfo>> mTmpIndexes = new ArrayList<>();
+
+    private static final Comparator<ApplicationExitInfo> NEWEST_FIRST =
+            (a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp());
+
+    /**
+     * Optional filters of the exit info queries, applied while walking the records newest first.
+     */
+    static final class ExitInfoFilter {
+        static final int ANY = -1;
+
+        /** Only the records at or after this time. */
+        @CurrentTimeMillisLong long mSince;
+        /** Only the records at or before this time. */
+        @CurrentTimeMillisLong long mUntil = Long.MAX_VALUE;
+        /** Only the records with one of these reasons, if not null. */
+        @Nullable int[] mReasons;
+        /** Only the records with this sub-reason, if not {@link #ANY}. */
+        int mSubReason = ANY;
+        /** Only the records at least as important as this; the lower, the more important. */
+        int mMaxImportance = Integer.MAX_VALUE;
+
+        boolean matches(ApplicationExitInfo info) {
+            final long timestamp = info.getTimestamp();
+            return timestamp >= mSince && timestamp <= mUntil
+                    && (mReasons == null || ArrayUtils.contains(mReasons, info.getReason()))
+                    && (mSubReason == ANY || info.getSubReason() == mSubReason)
+                    && info.getImportance() <= mMaxImportance;
+        }
+    }
 
     /**
      * The path to the directory which includes the historical proc exit info file
@@ -199,6 +255,19 @@ public final class AppExitInfoTracker {
     @VisibleForTesting
     File mProcExitInfoFile;
 
+    /**
+     * The path to the log of the records added or updated since {@link #mProcExitInfoFile} was
+     * written; each of them is a length-prefixed {@link AppsExitInfoProto.Package} with the single
+     * record it's about.
+     */
+    @VisibleForTesting
+    File mProcExitInfoLogFile;
+
+    /**
+     * The size of {@link #mProcExitInfoLogFile}. Only accessed on the {@link IoThread}.
+     */
+    private long mProcExitInfoLogSize;
+
     /**
      * Mapping between the isolated UID to its application uid.
      */
@@ -223,12 +292,12 @@ public final class AppExitInfoTracker {
      * these state data are to be "claimed" when its process dies, by then the data will be moved
      * from this list to the new instance of ApplicationExitInfo.
      *
-     * <p> The mapping here is UID -> PID -> state </p>
+     * <p> The data is kept by UID and PID, off the heap and within a fixed budget. </p>
      *
      * @see android.app.ActivityManager#setProcessStateSummary(byte[])
      */
     @GuardedBy("mLock")
-    final SparseArray<SparseArray<byte[]>> mActiveAppStateSummary = new SparseArray<>();
+    final ProcessStateSummaryStore mActiveAppStateSummary = new ProcessStateSummaryStore();
 
     /**
      * The active per-UID/PID trace file when an ANR occurs but the process hasn't been killed yet,
@@ -241,6 +310,11 @@ public final class AppExitInfoTracker {
     @GuardedBy("mLock")
     final SparseArray<SparseArray<File>> mActiveAppTraces = new SparseArray<>();
 
+    /**
+     * All the ANR trace files we keep, whoever owns them.
+     */
+    final TraceFileIndex mTraceFiles = new TraceFileIndex();
+
     /**
      * The implementation of the interface IAppTraceRetriever.
      */
@@ -264,6 +338,7 @@ public final class AppExitInfoTracker {
             return;
         }
         mProcExitInfoFile = new File(mProcExitStoreDir, APP_EXIT_INFO_FILE);
+        mProcExitInfoLogFile = new File(mProcExitStoreDir, APP_EXIT_INFO_LOG_FILE);
 
         mAppExitInfoHistoryListSize = service.mContext.getResources().getInteger(
                 com.android.internal.R.integer.config_app_exit_info_history_list_size);
@@ -427,6 +502,7 @@ public final class AppExitInfoTracker {
             info.setStatus(0);
             info.setTimestamp(System.currentTimeMillis());
             info.setDescription(raw.getDescription());
+            noteExitInfoUpdatedLocked(info);
         }
         scheduleLogToStatsdLocked(info, true);
     }
@@ -464,11 +540,11 @@ public final class AppExitInfoTracker {
             }
         }
         for (int i = 0; i < packages.length; i++) {
-            addExitInfoInnerLocked(packages[i], uid, info, recoverable);
+            final AppExitInfoContainer container =
+                    addExitInfoInnerLocked(packages[i], uid, info, recoverable);
+            appendRecordLocked(packages[i], container.mUid, info, recoverable);
         }
 
-        schedulePersistProcessExitInfo(false);
-
         return info;
     }
 
@@ -504,6 +580,7 @@ public final class AppExitInfoTracker {
                 immediateLog = true;
             }
         }
+        noteExitInfoUpdatedLocked(info);
         scheduleLogToStatsdLocked(info, immediateLog);
     }
 
@@ -551,6 +628,16 @@ public final class AppExitInfoTracker {
     @VisibleForTesting
     void getExitInfo(final String packageName, final int filterUid,
             final int filterPid, final int maxNum, final ArrayList<ApplicationExitInfo> results) {
+        getExitInfo(packageName, filterUid, filterPid, maxNum, null, results);
+    }
+
+    /**
+     * Get the exit info with matching package name, filterUid, filterPid (if > 0) and the given
+     * filter, if any, newest first.
+     */
+    void getExitInfo(final String packageName, final int filterUid, final int filterPid,
+            final int maxNum, @Nullable ExitInfoFilter filter,
+            final ArrayList<ApplicationExitInfo> results) {
         final long identity = Binder.clearCallingIdentity();
         try {
             synchronized (mLock) {
@@ -559,32 +646,20 @@ public final class AppExitInfoTracker {
                     // fast path
                     AppExitInfoContainer container = mData.get(packageName, filterUid);
                     if (container != null) {
-                        container.getExitInfoLocked(filterPid, maxNum, results);
+                        container.getExitInfoLocked(filterPid, maxNum, filter, results);
                     }
                 } else {
-                    // slow path
-                    final ArrayList<ApplicationExitInfo> list = mTmpInfoList2;
-                    list.clear();
-                    // get all packages
+                    // slow path: merge the indexes of all the packages, which are sorted already.
+                    final ArrayList<ArrayList<ApplicationExitInfo>> indexes = mTmpIndexes;
                     forEachPackageLocked((name, records) -> {
                         AppExitInfoContainer container = records.get(filterUid);
                         if (container != null) {
-                            mTmpInfoList.clear();
-                            list.addAll(container.toListLocked(mTmpInfoList, filterPid));
+                            container.collectIndexesLocked(indexes);
                         }
                         return AppExitInfoTracker.FOREACH_ACTION_NONE;
                     });
-
-                    Collections.sort(list,
-                            (a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
-                    int size = list.size();
-                    if (maxNum > 0) {
-                        size = Math.min(size, maxNum);
-                    }
-                    for (int i = 0; i < size; i++) {
-                        results.add(list.get(i));
-                    }
-                    list.clear();
+                    mergeNewestFirstLocked(indexes, filterPid, maxNum, filter, results);
+                    indexes.clear();
                 }
             }
         } finally {
@@ -592,6 +667,38 @@ public final class AppExitInfoTracker {
         }
     }
 
+    @GuardedBy("mLock")
+    private static void mergeNewestFirstLocked(ArrayList<ArrayList<ApplicationExitInfo>> indexes,
+            int filterPid, int maxNum, @Nullable ExitInfoFilter filter,
+            ArrayList<ApplicationExitInfo> results) {
+        final int[] cursors = new int[indexes.size()];
+        int added = 0;
+        while (maxNum <= 0 || added < maxNum) {
+            int newest = -1;
+            ApplicationExitInfo newestInfo = null;
+            for (int i = 0; i < cursors.length; i++) {
+                final ArrayList<ApplicationExitInfo> index = indexes.get(i);
+                if (cursors[i] < index.size()) {
+                    final ApplicationExitInfo info = index.get(cursors[i]);
+                    if (newestInfo == null || info.getTimestamp() > newestInfo.getTimestamp()) {
+                        newest = i;
+                        newestInfo = info;
+                    }
+                }
+            }
+            if (newest < 0 || (filter != null && newestInfo.getTimestamp() < filter.mSince)) {
+                break;
+            }
+            cursors[newest]++;
+            if ((filterPid != 0 && newestInfo.getPid() != filterPid)
+                    || (filter != null && !filter.matches(newestInfo))) {
+                continue;
+            }
+            results.add(newestInfo);
+            added++;
+        }
+    }
+
     /**
      * Return the first matching exit info record, for internal use, the parameters are not supposed
      * to be empty.
@@ -675,11 +782,27 @@ public final class AppExitInfoTracker {
      */
     @VisibleForTesting
     void loadExistingProcessExitInfo() {
-        if (!mProcExitInfoFile.canRead()) {
+        // Including its backup, which AtomicFile restores if the last write didn't finish.
+        final boolean hasSnapshot = new AtomicFile(mProcExitInfoFile).exists();
+        if (hasSnapshot) {
+            loadExitInfoSnapshot();
+        }
+        // The log may outlive a lost snapshot, replay it anyway.
+        loadExitInfoLog();
+        indexTraceFiles();
+        if (!hasSnapshot) {
+            // Make sure there's one for the log to be applied to from now on.
+            schedulePersistProcessExitInfo(true);
+        }
+        synchronized (mLock) {
             mAppExitInfoLoaded.set(true);
-            return;
         }
+    }
 
+    /**
+     * Load the records of the snapshot, the log written after it is replayed on top of them.
+     */
+    private void loadExitInfoSnapshot() {
         FileInputStream fin = null;
         try {
             AtomicFile af = new AtomicFile(mProcExitInfoFile);
@@ -710,15 +833,56 @@ public final class AppExitInfoTracker {
                 }
             }
         }
-        synchronized (mLock) {
-            pruneAnrTracesIfNecessaryLocked();
-            mAppExitInfoLoaded.set(true);
+    }
+
+    /**
+     * Replay the records appended to the log since the snapshot was written, each of which
+     * replaces the record of the same pid, if any.
+     */
+    private void loadExitInfoLog() {
+        // Count whatever is on the disk, even if it can't be read, so it still gets compacted.
+        mProcExitInfoLogSize = mProcExitInfoLogFile.length();
+        if (!mProcExitInfoLogFile.canRead()) {
+            return;
+        }
+        boolean corrupted = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mProcExitInfoLogFile)))) {
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > APP_EXIT_INFO_LOG_MAX_RECORD_SIZE) {
+                    throw new IOException("Bad record length " + length);
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                loadPackageFromProto(new ProtoInputStream(record));
+            }
+        } catch (IOException | IllegalArgumentException | WireTypeMismatchException e) {
+            // Most likely the tail of the log didn't make it to the disk.
+            Slog.w(TAG, "Error in replaying the app exit info log: " + e);
+            corrupted = true;
+        }
+        mProcExitInfoLogSize = mProcExitInfoLogFile.length();
+        if (corrupted) {
+            // Don't append anything after the garbage, start over from a new snapshot.
+            schedulePersistProcessExitInfo(true);
         }
     }
 
     private void loadPackagesFromProto(ProtoInputStream proto, long fieldId)
             throws IOException, WireTypeMismatchException {
         long token = proto.start(fieldId);
+        loadPackageFromProto(proto);
+        proto.end(token);
+    }
+
+    private void loadPackageFromProto(ProtoInputStream proto)
+            throws IOException, WireTypeMismatchException {
         String pkgName = "";
         for (int next = proto.nextField();
                 next != ProtoInputStream.NO_MORE_FIELDS;
@@ -732,46 +896,136 @@ public final class AppExitInfoTracker {
                             mAppExitInfoHistoryListSize);
                     int uid = container.readFromProto(proto, AppsExitInfoProto.Package.USERS);
                     synchronized (mLock) {
-                        mData.put(pkgName, uid, container);
+                        final AppExitInfoContainer existing = mData.get(pkgName, uid);
+                        if (existing != null) {
+                            existing.mergeLocked(container);
+                        } else {
+                            mData.put(pkgName, uid, container);
+                        }
                     }
                     break;
             }
         }
+    }
+
+    /**
+     * Append the given record of the given package to the log.
+     */
+    @GuardedBy("mLock")
+    private void appendRecordLocked(String packageName, int uid, ApplicationExitInfo info,
+            boolean recoverable) {
+        if (mProcExitInfoLogFile == null) {
+            return;
+        }
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        proto.write(AppsExitInfoProto.Package.PACKAGE_NAME, packageName);
+        final long token = proto.start(AppsExitInfoProto.Package.USERS);
+        proto.write(AppsExitInfoProto.Package.User.UID, uid);
+        info.writeToProto(proto, recoverable
+                ? AppsExitInfoProto.Package.User.APP_RECOVERABLE_CRASH
+                : AppsExitInfoProto.Package.User.APP_EXIT_INFO);
         proto.end(token);
+        final byte[] record = proto.getBytes();
+        IoThread.getHandler().post(() -> appendToLog(record));
     }
 
     /**
-     * Persist the existing {@link android.app.ApplicationExitInfo} records to storage.
+     * Append the given record, which has been updated, to the log for every package it's kept in,
+     * and have their indexes re-sorted in case its timestamp changed.
+     */
+    @GuardedBy("mLock")
+    private void noteExitInfoUpdatedLocked(ApplicationExitInfo info) {
+        final String[] packages = info.getPackageList();
+        if (packages == null) {
+            return;
+        }
+        final int pid = info.getPid();
+        for (String packageName : packages) {
+            final SparseArray<AppExitInfoContainer> array = mData.getMap().get(packageName);
+            if (array == null) {
+                continue;
+            }
+            for (int i = array.size() - 1; i >= 0; i--) {
+                final AppExitInfoContainer container = array.valueAt(i);
+                final boolean recoverable = container.mRecoverableCrashes.get(pid) == info;
+                if (recoverable || container.mInfos.get(pid) == info) {
+                    container.mIndexDirty = true;
+                    appendRecordLocked(packageName, container.mUid, info, recoverable);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void appendToLog(byte[] record) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mProcExitInfoLogFile, true)))) {
+            out.writeInt(record.length);
+            out.write(record);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to append app exit info to persistent storage: " + e);
+            schedulePersistProcessExitInfo(true);
+            return;
+        }
+        mProcExitInfoLogSize += Integer.BYTES + record.length;
+        if (mProcExitInfoLogSize >= APP_EXIT_INFO_LOG_COMPACT_SIZE) {
+            schedulePersistProcessExitInfo(true);
+        }
+    }
+
+    /**
+     * Persist the existing {@link android.app.ApplicationExitInfo} records to storage, as a
+     * snapshot which replaces the log.
      */
     @VisibleForTesting
     void persistProcessExitInfo() {
         AtomicFile af = new AtomicFile(mProcExitInfoFile);
         FileOutputStream out = null;
         long now = System.currentTimeMillis();
+        // Copy the records under the lock, and serialize them without it.
+        final ArrayList<String> packageNames = new ArrayList<>();
+        final ArrayList<AppExitInfoContainer[]> packageRecords = new ArrayList<>();
+        synchronized (mLock) {
+            forEachPackageLocked((packageName, records) -> {
+                final AppExitInfoContainer[] copies = new AppExitInfoContainer[records.size()];
+                for (int j = 0; j < copies.length; j++) {
+                    copies[j] = records.valueAt(j).copyLocked();
+                }
+                packageNames.add(packageName);
+                packageRecords.add(copies);
+                return AppExitInfoTracker.FOREACH_ACTION_NONE;
+            });
+        }
+        boolean written = false;
         try {
             out = af.startWrite();
             ProtoOutputStream proto = new ProtoOutputStream(out);
             proto.write(AppsExitInfoProto.LAST_UPDATE_TIMESTAMP, now);
-            synchronized (mLock) {
-                forEachPackageLocked((packageName, records) -> {
-                    long token = proto.start(AppsExitInfoProto.PACKAGES);
-                    proto.write(AppsExitInfoProto.Package.PACKAGE_NAME, packageName);
-                    int uidArraySize = records.size();
-                    for (int j = 0; j < uidArraySize; j++) {
-                        records.valueAt(j).writeToProto(proto, AppsExitInfoProto.Package.USERS);
-                    }
-                    proto.end(token);
-                    return AppExitInfoTracker.FOREACH_ACTION_NONE;
-                });
-                mLastAppExitInfoPersistTimestamp = now;
+            for (int i = 0, size = packageNames.size(); i < size; i++) {
+                long token = proto.start(AppsExitInfoProto.PACKAGES);
+                proto.write(AppsExitInfoProto.Package.PACKAGE_NAME, packageNames.get(i));
+                for (AppExitInfoContainer container : packageRecords.get(i)) {
+                    container.writeToProto(proto, AppsExitInfoProto.Package.USERS);
+                }
+                proto.end(token);
             }
             proto.flush();
             af.finishWrite(out);
+            written = true;
         } catch (IOException e) {
             Slog.w(TAG, "Unable to write historical app exit info into persistent storage: " + e);
             af.failWrite(out);
         }
+        if (written) {
+            // Everything in the log is in the snapshot now; anything appended after the copy
+            // above is still queued behind us on the IoThread.
+            mProcExitInfoLogFile.delete();
+            mProcExitInfoLogSize = 0;
+        }
         synchronized (mLock) {
+            if (written) {
+                mLastAppExitInfoPersistTimestamp = now;
+            }
             mAppExitInfoPersistTask = null;
         }
     }
@@ -805,11 +1059,12 @@ public final class AppExitInfoTracker {
             }
             if (removeFile && mProcExitInfoFile != null) {
                 mProcExitInfoFile.delete();
+                mProcExitInfoLogFile.delete();
             }
             mData.getMap().clear();
             mActiveAppStateSummary.clear();
             mActiveAppTraces.clear();
-            pruneAnrTracesIfNecessaryLocked();
+            discardAllTraceFiles();
         }
     }
 
@@ -844,6 +1099,8 @@ public final class AppExitInfoTracker {
         synchronized (mLock) {
             pw.println("Last Timestamp of Persistence Into Persistent Storage: "
                     + sdf.format(new Date(mLastAppExitInfoPersistTimestamp)));
+            mActiveAppStateSummary.dump(pw, "");
+            mTraceFiles.dump(pw, "");
             if (TextUtils.isEmpty(packageName)) {
                 forEachPackageLocked((name, records) -> {
                     dumpHistoryProcessExitInfoLocked(pw, "  ", name, records, sdf);
@@ -858,6 +1115,61 @@ public final class AppExitInfoTracker {
         }
     }
 
+    /**
+     * Dump the records of a uid, and of a package if given, matching the filter options in the
+     * given arguments, newest first.
+     */
+    void dumpFilteredProcessExitInfo(PrintWriter pw, String[] args, int opti) {
+        int uid = -1;
+        int maxNum = 0;
+        String packageName = null;
+        final ExitInfoFilter filter = new ExitInfoFilter();
+        try {
+            while (opti < args.length) {
+                final String opt = args[opti++];
+                if (!opt.startsWith("--")) {
+                    packageName = opt;
+                    continue;
+                }
+                if (opti >= args.length) {
+                    pw.println("Error: " + opt + " option requires an argument");
+                    return;
+                }
+                final String value = args[opti++];
+                if ("--uid".equals(opt)) {
+                    uid = Integer.parseInt(value);
+                } else if ("--reason".equals(opt)) {
+                    final String[] reasons = value.split(",");
+                    filter.mReasons = new int[reasons.length];
+                    for (int i = 0; i < reasons.length; i++) {
+                        filter.mReasons[i] = Integer.parseInt(reasons[i]);
+                    }
+                } else if ("--since".equals(opt)) {
+                    filter.mSince = Long.parseLong(value);
+                } else if ("--max".equals(opt)) {
+                    maxNum = Integer.parseInt(value);
+                } else {
+                    pw.println("Unknown argument: " + opt + "; use -h for help");
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            pw.println("Error: " + e.getMessage());
+            return;
+        }
+        if (uid < 0) {
+            pw.println("Error: --uid option is required");
+            return;
+        }
+        final ArrayList<ApplicationExitInfo> results = new ArrayList<>();
+        getExitInfo(packageName, uid, 0, maxNum, filter, results);
+        pw.println("ACTIVITY MANAGER PROCESS EXIT INFO (dumpsys activity exit-info)");
+        final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (int i = 0, size = results.size(); i < size; i++) {
+            results.get(i).dump(pw, "  ", "#" + i, sdf);
+        }
+    }
+
     @GuardedBy("mLock")
     private void dumpHistoryProcessExitInfoLocked(PrintWriter pw, String prefix,
             String packageName, SparseArray<AppExitInfoContainer> array,
@@ -871,8 +1183,8 @@ public final class AppExitInfoTracker {
     }
 
     @GuardedBy("mLock")
-    private void addExitInfoInnerLocked(String packageName, int uid, ApplicationExitInfo info,
-            boolean recoverable) {
+    private AppExitInfoContainer addExitInfoInnerLocked(String packageName, int uid,
+            ApplicationExitInfo info, boolean recoverable) {
         AppExitInfoContainer container = mData.get(packageName, uid);
         if (container == null) {
             container = new AppExitInfoContainer(mAppExitInfoHistoryListSize);
@@ -891,6 +1203,7 @@ public final class AppExitInfoTracker {
         } else {
             container.addExitInfoLocked(info);
         }
+        return container;
     }
 
     @GuardedBy("mLock")
@@ -956,12 +1269,12 @@ public final class AppExitInfoTracker {
     @GuardedBy("mLock")
     private void removePackageLocked(String packageName, int uid, boolean removeUid, int userId) {
         if (removeUid) {
-            mActiveAppStateSummary.remove(uid);
+            mActiveAppStateSummary.removeUids((v) -> v == uid);
             final int idx = mActiveAppTraces.indexOfKey(uid);
             if (idx >= 0) {
                 final SparseArray<File> array = mActiveAppTraces.valueAt(idx);
                 for (int i = array.size() - 1; i >= 0; i--) {
-                    array.valueAt(i).delete();
+                    discardTraceFile(array.valueAt(i));
                 }
                 mActiveAppTraces.removeAt(idx);
             }
@@ -996,13 +1309,12 @@ public final class AppExitInfoTracker {
             mData.getMap().clear();
             mActiveAppStateSummary.clear();
             mActiveAppTraces.clear();
-            pruneAnrTracesIfNecessaryLocked();
+            discardAllTraceFiles();
             return;
         }
-        removeFromSparse2dArray(mActiveAppStateSummary,
-                (v) -> UserHandle.getUserId(v) == userId, null, null);
+        mActiveAppStateSummary.removeUids((v) -> UserHandle.getUserId(v) == userId);
         removeFromSparse2dArray(mActiveAppTraces,
-                (v) -> UserHandle.getUserId(v) == userId, null, (v) -> v.delete());
+                (v) -> UserHandle.getUserId(v) == userId, null, this::discardTraceFile);
         forEachPackageLocked((packageName, records) -> {
             for (int i = records.size() - 1; i >= 0; i--) {
                 if (UserHandle.getUserId(records.keyAt(i)) == userId) {
@@ -1065,7 +1377,7 @@ public final class AppExitInfoTracker {
             if (k != null) {
                 uid = k;
             }
-            putToSparse2dArray(mActiveAppStateSummary, uid, pid, data, SparseArray::new, null);
+            mActiveAppStateSummary.put(uid, pid, data);
         }
     }
 
@@ -1076,11 +1388,7 @@ public final class AppExitInfoTracker {
             if (k != null) {
                 uid = k;
             }
-            int index = mActiveAppStateSummary.indexOfKey(uid);
-            if (index < 0) {
-                return null;
-            }
-            return mActiveAppStateSummary.valueAt(index).get(pid);
+            return mActiveAppStateSummary.get(uid, pid);
         }
     }
 
@@ -1114,6 +1422,8 @@ public final class AppExitInfoTracker {
         // Copy & compress
         if (copyToGzFile(traceFile, outFile, startOff, length)) {
             // Wrote successfully.
+            mTraceFiles.add(outFile.getName(), outFile.length());
+            schedulePruneTraceFiles();
             synchronized (mLock) {
                 Integer k = mIsolatedUidRecords.getUidByIsolatedUid(uid);
                 if (k != null) {
@@ -1130,12 +1440,14 @@ public final class AppExitInfoTracker {
                     if (container != null && container.appendTraceIfNecessaryLocked(pid, outFile)) {
                         // Okay someone took it
                         pending = false;
+                        appendRecordLocked(packageList[i], container.mUid,
+                                container.mInfos.get(pid), false);
                     }
                 }
                 if (pending) {
                     // Save it into a temporary list for later use (when the app dies).
                     putToSparse2dArray(mActiveAppTraces, uid, pid, outFile,
-                            SparseArray::new, (v) -> v.delete());
+                            SparseArray::new, this::discardTraceFile);
                 }
             }
         }
@@ -1176,45 +1488,101 @@ public final class AppExitInfoTracker {
         return remaining == 0 && outFile.exists();
     }
 
+    private static boolean isTraceFile(String name) {
+        return name.startsWith(ActivityManagerService.ANR_FILE_PREFIX)
+                && name.endsWith(APP_TRACE_FILE_SUFFIX);
+    }
+
     /**
-     * In case there is any orphan ANR trace file, remove it.
+     * Index the ANR traces left from before, and remove those nobody claims. Called on every load,
+     * with or without a snapshot; besides discarding all of them, this is the only time the
+     * directory is listed, the index is kept up to date from then on.
      */
-    @GuardedBy("mLock")
-    private void pruneAnrTracesIfNecessaryLocked() {
-        final ArraySet<String> allFiles = new ArraySet();
-        final File[] files = mProcExitStoreDir.listFiles((f) -> {
-            final String name = f.getName();
-            boolean trace = name.startsWith(ActivityManagerService.ANR_FILE_PREFIX)
-                    && name.endsWith(APP_TRACE_FILE_SUFFIX);
-            if (trace) {
-                allFiles.add(name);
-            }
-            return trace;
-        });
+    private void indexTraceFiles() {
+        final File[] files = mProcExitStoreDir.listFiles((f) -> isTraceFile(f.getName()));
         if (ArrayUtils.isEmpty(files)) {
             return;
         }
-        // Find out the owners from the existing records
-        forEachPackageLocked((name, records) -> {
-            for (int i = records.size() - 1; i >= 0; i--) {
-                final AppExitInfoContainer container = records.valueAt(i);
-                container.forEachRecordLocked((pid, info) -> {
-                    final File traceFile = info.getTraceFile();
-                    if (traceFile != null) {
-                        allFiles.remove(traceFile.getName());
-                    }
-                    return FOREACH_ACTION_NONE;
-                });
+        final ArraySet<String> claimed = new ArraySet<>();
+        synchronized (mLock) {
+            // Find out the owners from the existing records
+            forEachPackageLocked((name, records) -> {
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    records.valueAt(i).forEachRecordLocked((pid, info) -> {
+                        final File traceFile = info.getTraceFile();
+                        if (traceFile != null) {
+                            claimed.add(traceFile.getName());
+                        }
+                        return FOREACH_ACTION_NONE;
+                    });
+                }
+                return AppExitInfoTracker.FOREACH_ACTION_NONE;
+            });
+            // See if there is any active process owns it.
+            forEachSparse2dArray(mActiveAppTraces, (v) -> claimed.add(v.getName()));
+        }
+        for (File file : files) {
+            if (claimed.contains(file.getName())) {
+                mTraceFiles.add(file.getName(), file.length());
+            } else {
+                // Remove orphan traces if nobody claims it.
+                file.delete();
+            }
+        }
+        schedulePruneTraceFiles();
+    }
+
+    /**
+     * Drop the given ANR trace from the index, and delete it off the lock.
+     */
+    private void discardTraceFile(File file) {
+        mTraceFiles.remove(file.getName());
+        mKillHandler.post(file::delete);
+    }
+
+    /**
+     * Delete all the ANR traces off the lock, when nobody can claim them anymore; including the
+     * ones which never made it to the index, e.g. if it was cleared before they were loaded.
+     */
+    private void discardAllTraceFiles() {
+        mTraceFiles.removeAll();
+        mKillHandler.post(() -> {
+            final File[] files = mProcExitStoreDir.listFiles((f) -> isTraceFile(f.getName()));
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                // Spare the ones written since, they've been indexed for their new owners.
+                if (!mTraceFiles.contains(file.getName())) {
+                    file.delete();
+                }
             }
-            return AppExitInfoTracker.FOREACH_ACTION_NONE;
         });
-        // See if there is any active process owns it.
-        forEachSparse2dArray(mActiveAppTraces, (v) -> allFiles.remove(v.getName()));
+    }
+
+    private void schedulePruneTraceFiles() {
+        if (mTraceFiles.getTotalSize() > APP_TRACE_FILES_MAX_SIZE
+                && !mKillHandler.hasMessages(KillHandler.MSG_PRUNE_TRACE_FILES)) {
+            mKillHandler.sendEmptyMessage(KillHandler.MSG_PRUNE_TRACE_FILES);
+        }
+    }
 
-        // Remove orphan traces if nobody claims it.
-        for (int i = allFiles.size() - 1; i >= 0; i--) {
-            (new File(mProcExitStoreDir, allFiles.valueAt(i))).delete();
+    /**
+     * Delete a batch of the biggest ANR traces if they take too much space, and schedule the
+     * next batch if that isn't enough. The records owning them will just find them gone.
+     */
+    private void pruneTraceFiles() {
+        for (int i = 0; i < APP_TRACE_FILES_PRUNE_BATCH; i++) {
+            final String name = mTraceFiles.pollBiggestIfOver(APP_TRACE_FILES_MAX_SIZE);
+            if (name == null) {
+                return;
+            }
+            if (DEBUG_PROCESSES) {
+                Slog.i(TAG, "Pruning ANR traces " + name);
+            }
+            new File(mProcExitStoreDir, name).delete();
         }
+        schedulePruneTraceFiles();
     }
 
     /**
@@ -1320,6 +1688,12 @@ public final class AppExitInfoTracker {
         private int mMaxCapacity;
         private int mUid; // Application uid, not isolated uid.
 
+        // The records of mInfos and mRecoverableCrashes, newest first; rebuilt on the first query
+        // after any change, so repeated queries don't need to copy or sort anything.
+        private final ArrayList<ApplicationExitInfo> mInfosByTime = new ArrayList<>();
+        private final ArrayList<ApplicationExitInfo> mRecoverableCrashesByTime = new ArrayList<>();
+        private boolean mIndexDirty = true;
+
         AppExitInfoContainer(final int maxCapacity) {
             mInfos = new SparseArray<ApplicationExitInfo>();
             mRecoverableCrashes = new SparseArray<ApplicationExitInfo>();
@@ -1327,55 +1701,73 @@ public final class AppExitInfoTracker {
         }
 
         @GuardedBy("mLock")
-        void getInfosLocked(SparseArray<ApplicationExitInfo> map, final int filterPid,
-                final int maxNum, ArrayList<ApplicationExitInfo> results) {
+        private void ensureIndexLocked() {
+            if (!mIndexDirty) {
+                return;
+            }
+            sortByTime(mInfos, mInfosByTime);
+            sortByTime(mRecoverableCrashes, mRecoverableCrashesByTime);
+            mIndexDirty = false;
+        }
+
+        private void sortByTime(SparseArray<ApplicationExitInfo> map,
+                ArrayList<ApplicationExitInfo> index) {
+            index.clear();
+            for (int i = 0, size = map.size(); i < size; i++) {
+                index.add(map.valueAt(i));
+            }
+            index.sort(NEWEST_FIRST);
+        }
+
+        @GuardedBy("mLock")
+        void getInfosLocked(SparseArray<ApplicationExitInfo> map,
+                ArrayList<ApplicationExitInfo> index, final int filterPid, final int maxNum,
+                @Nullable ExitInfoFilter filter, ArrayList<ApplicationExitInfo> results) {
             if (filterPid > 0) {
                 ApplicationExitInfo r = map.get(filterPid);
-                if (r != null) {
+                if (r != null && (filter == null || filter.matches(r))) {
                     results.add(r);
                 }
-            } else {
-                final int numRep = map.size();
-                if (maxNum <= 0 || numRep <= maxNum) {
-                    // Return all records.
-                    for (int i = 0; i < numRep; i++) {
-                        results.add(map.valueAt(i));
+                return;
+            }
+            ensureIndexLocked();
+            int added = 0;
+            for (int i = 0, size = index.size(); i < size && (maxNum <= 0 || added < maxNum);
+                    i++) {
+                final ApplicationExitInfo r = index.get(i);
+                if (filter != null) {
+                    if (r.getTimestamp() < filter.mSince) {
+                        break;
                     }
-                    Collections.sort(results,
-                            (a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
-                } else {
-                    if (maxNum == 1) {
-                        // Most of the caller might be only interested with the most recent one
-                        ApplicationExitInfo r = map.valueAt(0);
-                        for (int i = 1; i < numRep; i++) {
-                            ApplicationExitInfo t = map.valueAt(i);
-                            if (r.getTimestamp() < t.getTimestamp()) {
-                                r = t;
-                            }
-                        }
-                        results.add(r);
-                    } else {
-                        // Huh, need to sort it out then.
-                        ArrayList<ApplicationExitInfo> list = mTmpInfoList2;
-                        list.clear();
-                        for (int i = 0; i < numRep; i++) {
-                            list.add(map.valueAt(i));
-                        }
-                        Collections.sort(list,
-                                (a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
-                        for (int i = 0; i < maxNum; i++) {
-                            results.add(list.get(i));
-                        }
-                        list.clear();
+                    if (!filter.matches(r)) {
+                        continue;
                     }
                 }
+                results.add(r);
+                added++;
             }
         }
 
         @GuardedBy("mLock")
         void getExitInfoLocked(final int filterPid, final int maxNum,
                 ArrayList<ApplicationExitInfo> results) {
-            getInfosLocked(mInfos, filterPid, maxNum, results);
+            getExitInfoLocked(filterPid, maxNum, null, results);
+        }
+
+        @GuardedBy("mLock")
+        void getExitInfoLocked(final int filterPid, final int maxNum,
+                @Nullable ExitInfoFilter filter, ArrayList<ApplicationExitInfo> results) {
+            getInfosLocked(mInfos, mInfosByTime, filterPid, maxNum, filter, results);
+        }
+
+        /**
+         * Add the indexes of both the exit records and the recoverable crashes to the given list.
+         */
+        @GuardedBy("mLock")
+        void collectIndexesLocked(ArrayList<ArrayList<ApplicationExitInfo>> indexes) {
+            ensureIndexLocked();
+            indexes.add(mInfosByTime);
+            indexes.add(mRecoverableCrashesByTime);
         }
 
         @GuardedBy("mLock")
@@ -1394,7 +1786,7 @@ public final class AppExitInfoTracker {
                 if (oldestIndex >= 0) {
                     final File traceFile = map.valueAt(oldestIndex).getTraceFile();
                     if (traceFile != null) {
-                        traceFile.delete();
+                        discardTraceFile(traceFile);
                     }
                     map.removeAt(oldestIndex);
                 }
@@ -1402,11 +1794,11 @@ public final class AppExitInfoTracker {
             // Claim the state information if there is any
             final int uid = info.getPackageUid();
             final int pid = info.getPid();
-            info.setProcessStateSummary(findAndRemoveFromSparse2dArray(
-                    mActiveAppStateSummary, uid, pid));
+            info.setProcessStateSummary(mActiveAppStateSummary.remove(uid, pid));
             info.setTraceFile(findAndRemoveFromSparse2dArray(mActiveAppTraces, uid, pid));
             info.setAppTraceRetriever(mAppTraceRetriever);
             map.append(pid, info);
+            mIndexDirty = true;
         }
 
         @GuardedBy("mLock")
@@ -1430,13 +1822,59 @@ public final class AppExitInfoTracker {
             return false;
         }
 
+        /**
+         * Take the records of the given container, which replace ours of the same pids.
+         */
+        @GuardedBy("mLock")
+        void mergeLocked(AppExitInfoContainer other) {
+            mergeLocked(mInfos, other.mInfos);
+            mergeLocked(mRecoverableCrashes, other.mRecoverableCrashes);
+        }
+
+        @GuardedBy("mLock")
+        private void mergeLocked(SparseArray<ApplicationExitInfo> map,
+                SparseArray<ApplicationExitInfo> from) {
+            mIndexDirty = true;
+            for (int i = 0, size = from.size(); i < size; i++) {
+                map.put(from.keyAt(i), from.valueAt(i));
+            }
+            // The evicted ones' traces are gone already, or will be pruned as orphans.
+            while (map.size() > mMaxCapacity) {
+                int oldestIndex = 0;
+                for (int i = 1, size = map.size(); i < size; i++) {
+                    if (map.valueAt(i).getTimestamp()
+                            < map.valueAt(oldestIndex).getTimestamp()) {
+                        oldestIndex = i;
+                    }
+                }
+                map.removeAt(oldestIndex);
+            }
+        }
+
+        /**
+         * @return A copy of this container and its records, which can be used without the lock.
+         */
+        @GuardedBy("mLock")
+        AppExitInfoContainer copyLocked() {
+            final AppExitInfoContainer copy = new AppExitInfoContainer(mMaxCapacity);
+            copy.mUid = mUid;
+            for (int i = 0, size = mInfos.size(); i < size; i++) {
+                copy.mInfos.append(mInfos.keyAt(i), new ApplicationExitInfo(mInfos.valueAt(i)));
+            }
+            for (int i = 0, size = mRecoverableCrashes.size(); i < size; i++) {
+                copy.mRecoverableCrashes.append(mRecoverableCrashes.keyAt(i),
+                        new ApplicationExitInfo(mRecoverableCrashes.valueAt(i)));
+            }
+            return copy;
+        }
+
         @GuardedBy("mLock")
         void destroyLocked(SparseArray<ApplicationExitInfo> map) {
             for (int i = map.size() - 1; i >= 0; i--) {
                 ApplicationExitInfo ai = map.valueAt(i);
                 final File traceFile = ai.getTraceFile();
                 if (traceFile != null) {
-                    traceFile.delete();
+                    discardTraceFile(traceFile);
                 }
                 ai.setTraceFile(null);
                 ai.setAppTraceRetriever(null);
@@ -1458,9 +1896,10 @@ public final class AppExitInfoTracker {
                     case FOREACH_ACTION_REMOVE_ITEM:
                         final File traceFile = mInfos.valueAt(i).getTraceFile();
                         if (traceFile != null) {
-                            traceFile.delete();
+                            discardTraceFile(traceFile);
                         }
                         mInfos.removeAt(i);
+                        mIndexDirty = true;
                         break;
                 }
             }
@@ -1471,9 +1910,10 @@ public final class AppExitInfoTracker {
                     case FOREACH_ACTION_REMOVE_ITEM:
                         final File traceFile = mRecoverableCrashes.valueAt(i).getTraceFile();
                         if (traceFile != null) {
-                            traceFile.delete();
+                            discardTraceFile(traceFile);
                         }
                         mRecoverableCrashes.removeAt(i);
+                        mIndexDirty = true;
                         break;
                 }
             }
@@ -1538,24 +1978,6 @@ public final class AppExitInfoTracker {
             proto.end(token);
             return mUid;
         }
-
-        @GuardedBy("mLock")
-        List<ApplicationExitInfo> toListLocked(List<ApplicationExitInfo> list, int filterPid) {
-            if (list == null) {
-                list = new ArrayList<ApplicationExitInfo>();
-            }
-            for (int i = mInfos.size() - 1; i >= 0; i--) {
-                if (filterPid == 0 || filterPid == mInfos.keyAt(i)) {
-                    list.add(mInfos.valueAt(i));
-                }
-            }
-            for (int i = mRecoverableCrashes.size() - 1; i >= 0; i--) {
-                if (filterPid == 0 || filterPid == mRecoverableCrashes.keyAt(i)) {
-                    list.add(mRecoverableCrashes.valueAt(i));
-                }
-            }
-            return list;
-        }
     }
 
     /**
@@ -1686,6 +2108,73 @@ public final class AppExitInfoTracker {
         }
     }
 
+    /**
+     * The ANR trace files we keep, biggest first, so they can be pruned without listing the
+     * directory. It has its own lock, so the trace files never need {@link #mLock}.
+     */
+    static final class TraceFileIndex {
+        @GuardedBy("this")
+        private final ArrayMap<String, Long> mSizes = new ArrayMap<>();
+
+        @GuardedBy("this")
+        private final TreeSet<String> mBySize = new TreeSet<>((a, b) -> {
+            final int result = Long.compare(mSizes.get(b), mSizes.get(a));
+            return result != 0 ? result : a.compareTo(b);
+        });
+
+        @GuardedBy("this")
+        private long mTotalSize;
+
+        synchronized void add(String name, long size) {
+            remove(name);
+            mSizes.put(name, size);
+            mBySize.add(name);
+            mTotalSize += size;
+        }
+
+        synchronized void remove(String name) {
+            final Long size = mSizes.get(name);
+            if (size != null) {
+                mBySize.remove(name);
+                mSizes.remove(name);
+                mTotalSize -= size;
+            }
+        }
+
+        /**
+         * @return The name of the biggest trace, after removing it from the index, if all the
+         *         traces take more than the given size; null otherwise.
+         */
+        synchronized @Nullable String pollBiggestIfOver(long maxSize) {
+            if (mTotalSize <= maxSize || mBySize.isEmpty()) {
+                return null;
+            }
+            final String name = mBySize.first();
+            remove(name);
+            return name;
+        }
+
+        synchronized boolean contains(String name) {
+            return mSizes.containsKey(name);
+        }
+
+        synchronized void removeAll() {
+            mSizes.clear();
+            mBySize.clear();
+            mTotalSize = 0;
+        }
+
+        synchronized long getTotalSize() {
+            return mTotalSize;
+        }
+
+        synchronized void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print("ANR traces: count="); pw.print(mSizes.size());
+            pw.print(" size="); pw.print(mTotalSize);
+            pw.print("/"); pw.println(APP_TRACE_FILES_MAX_SIZE);
+        }
+    }
+
     final class KillHandler extends Handler {
         static final int MSG_LMKD_PROC_KILLED = 4101;
         static final int MSG_CHILD_PROC_DIED = 4102;
@@ -1693,6 +2182,7 @@ public final class AppExitInfoTracker {
         static final int MSG_APP_KILL = 4104;
         static final int MSG_STATSD_LOG = 4105;
         static final int MSG_APP_RECOVERABLE_CRASH = 4106;
+        static final int MSG_PRUNE_TRACE_FILES = 4107;
 
         KillHandler(Looper looper) {
             super(looper, null, true);
@@ -1739,6 +2229,9 @@ public final class AppExitInfoTracker {
                     recycleRawRecord(raw);
                 }
                 break;
+                case MSG_PRUNE_TRACE_FILES:
+                    pruneTraceFiles();
+                    break;
                 default:
                     super.handleMessage(msg);
             }
@@ -68,6 +68,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
@@ -140,6 +141,20 @@ public class AppProfiler {
 
     static final String ACTIVITY_START_PSS_DEFER_CONFIG = "activity_start_pss_defer";
 
+    /**
+     * If a process's RSS has changed by less than this percentage since its last full PSS
+     * sample, the full PSS collection is skipped. Zero or negative always collects full PSS.
+     */
+    static final String PSS_RSS_CHANGE_THRESHOLD_CONFIG = "pss_rss_change_threshold_percent";
+    static final int DEFAULT_PSS_RSS_CHANGE_THRESHOLD_PERCENT = 10;
+
+    /**
+     * Thread CPU time, in milliseconds per {@link #PSS_CPU_BUDGET_WINDOW}, that may be spent on
+     * full PSS collection. Zero or negative means no budget.
+     */
+    static final String PSS_CPU_BUDGET_CONFIG = "pss_cpu_budget_ms";
+    static final long PSS_CPU_BUDGET_WINDOW = 60 * 1000;
+
     /**
      * Broadcast sent when heap dump collection has been completed.
      */
@@ -178,6 +193,34 @@ public class AppProfiler {
      */
     private volatile long mPssDeferralTime = 0;
 
+    /**
+     * See {@link #PSS_RSS_CHANGE_THRESHOLD_CONFIG}.
+     */
+    private volatile int mPssRssChangeThresholdPercent = DEFAULT_PSS_RSS_CHANGE_THRESHOLD_PERCENT;
+
+    /**
+     * See {@link #PSS_CPU_BUDGET_CONFIG}.
+     */
+    private volatile long mPssCpuBudgetMs = 0;
+
+    /**
+     * Start of the current PSS CPU budget window and the CPU time spent in it, only accessed
+     * from the background PSS collection.
+     */
+    private long mPssCpuBudgetWindowStart;
+    private long mPssCpuBudgetUsedMs;
+
+    /**
+     * Number of full PSS samples taken, and of those skipped because the RSS hadn't changed
+     * much or the CPU budget was exhausted.
+     */
+    @GuardedBy("mProfilerLock")
+    private long mNumPssSampled;
+    @GuardedBy("mProfilerLock")
+    private long mNumPssSkippedRssUnchanged;
+    @GuardedBy("mProfilerLock")
+    private long mNumPssSkippedBudget;
+
     /**
      * Processes we want to collect PSS data from.
      */
@@ -348,6 +391,14 @@ public class AppProfiler {
                                     + mPssDeferralTime + " ms");
                         }
                     }
+                    if (properties.getKeyset().contains(PSS_RSS_CHANGE_THRESHOLD_CONFIG)) {
+                        mPssRssChangeThresholdPercent = properties.getInt(
+                                PSS_RSS_CHANGE_THRESHOLD_CONFIG,
+                                DEFAULT_PSS_RSS_CHANGE_THRESHOLD_PERCENT);
+                    }
+                    if (properties.getKeyset().contains(PSS_CPU_BUDGET_CONFIG)) {
+                        mPssCpuBudgetMs = properties.getLong(PSS_CPU_BUDGET_CONFIG, 0);
+                    }
                 }
             };
 
@@ -474,6 +525,7 @@ public class AppProfiler {
             int statType;
             int pid = -1;
             long lastPssTime;
+            long lastPssRss;
             synchronized (mProfilerLock) {
                 if (mPendingPssProfiles.size() <= 0) {
                     if (mTestPssMode || DEBUG_PSS) {
@@ -488,6 +540,7 @@ public class AppProfiler {
                 procState = profile.getPssProcState();
                 statType = profile.getPssStatType();
                 lastPssTime = profile.getLastPssTime();
+                lastPssRss = profile.getLastPssRss();
                 long now = SystemClock.uptimeMillis();
                 if (profile.getThread() != null && procState == profile.getSetProcState()
                         && (lastPssTime + ProcessList.PSS_SAFE_TIME_FROM_STATE_CHANGE) < now) {
@@ -505,17 +558,34 @@ public class AppProfiler {
                 }
             }
             if (profile != null) {
+                final int skipReason = shouldSkipFullPss(pid, statType, lastPssTime, lastPssRss);
+                if (skipReason != PSS_SKIP_NONE) {
+                    synchronized (mProfilerLock) {
+                        if (skipReason == PSS_SKIP_RSS_UNCHANGED) {
+                            // The last sample is still good enough; keep to the schedule.
+                            mNumPssSkippedRssUnchanged++;
+                            profile.commitNextPssTime();
+                        } else {
+                            // Try again once there's budget left.
+                            mNumPssSkippedBudget++;
+                            profile.abortNextPssTime();
+                        }
+                    }
+                    continue;
+                }
                 long startTime = SystemClock.currentThreadTimeMillis();
                 // skip background PSS calculation of apps that are capturing
                 // camera imagery
                 final boolean usingCamera = mService.isCameraActiveForUid(profile.mApp.uid);
                 long pss = usingCamera ? 0 : Debug.getPss(pid, tmp, null);
                 long endTime = SystemClock.currentThreadTimeMillis();
+                mPssCpuBudgetUsedMs += endTime - startTime;
                 synchronized (mProfilerLock) {
                     if (pss != 0 && profile.getThread() != null
                             && profile.getSetProcState() == procState
                             && profile.getPid() == pid && profile.getLastPssTime() == lastPssTime) {
                         num++;
+                        mNumPssSampled++;
                         profile.commitNextPssTime();
                         recordPssSampleLPf(profile, procState, pss, tmp[0], tmp[1], tmp[2],
                                 statType, endTime - startTime, SystemClock.uptimeMillis());
@@ -537,6 +607,43 @@ public class AppProfiler {
         } while (true);
     }
 
+    private static final int PSS_SKIP_NONE = 0;
+    private static final int PSS_SKIP_RSS_UNCHANGED = 1;
+    private static final int PSS_SKIP_BUDGET = 2;
+
+    /**
+     * Decide whether the full PSS collection of a process, which walks all of its smaps, can be
+     * skipped: either its RSS (cheap to read) hasn't changed much since the last full sample,
+     * or we've used up the CPU budget for PSS collection.
+     */
+    private int shouldSkipFullPss(int pid, int statType, long lastPssTime, long lastPssRss) {
+        if (mTestPssMode || statType == ProcessStats.ADD_PSS_INTERNAL_ALL_MEM) {
+            // Always do the full collection when asked for it due to low memory.
+            return PSS_SKIP_NONE;
+        }
+        final int threshold = mPssRssChangeThresholdPercent;
+        if (threshold > 0 && lastPssRss > 0
+                && SystemClock.uptimeMillis() < lastPssTime + ProcessList.PSS_MAX_INTERVAL) {
+            final long[] rss = Process.getRss(pid);
+            if (rss != null && rss.length > 0 && rss[0] > 0
+                    && Math.abs(rss[0] - lastPssRss) * 100 < lastPssRss * threshold) {
+                return PSS_SKIP_RSS_UNCHANGED;
+            }
+        }
+        final long budget = mPssCpuBudgetMs;
+        if (budget > 0) {
+            final long now = SystemClock.uptimeMillis();
+            if (now >= mPssCpuBudgetWindowStart + PSS_CPU_BUDGET_WINDOW) {
+                mPssCpuBudgetWindowStart = now;
+                mPssCpuBudgetUsedMs = 0;
+            }
+            if (mPssCpuBudgetUsedMs >= budget) {
+                return PSS_SKIP_BUDGET;
+            }
+        }
+        return PSS_SKIP_NONE;
+    }
+
     @GuardedBy("mProfilerLock")
     void updateNextPssTimeLPf(int procState, ProcessProfileRecord profile, long now,
             boolean forceUpdate) {
@@ -594,6 +701,7 @@ public class AppProfiler {
             profile.setLastCachedSwapPss(swapPss);
         }
         profile.setLastRss(rss);
+        profile.setLastPssRss(rss);
 
         final SparseArray<Pair<Long, String>> watchUids =
                 mMemWatchProcesses.getMap().get(proc.processName);
@@ -1993,6 +2101,11 @@ public class AppProfiler {
                 ActivityThread.currentApplication().getMainExecutor(),
                 mPssDelayConfigListener);
         mPssDeferralTime = pssDeferralMs;
+        mPssRssChangeThresholdPercent = DeviceConfig.getInt(
+                DeviceConfig.NAMESPACE_ACTIVITY_MANAGER, PSS_RSS_CHANGE_THRESHOLD_CONFIG,
+                DEFAULT_PSS_RSS_CHANGE_THRESHOLD_PERCENT);
+        mPssCpuBudgetMs = DeviceConfig.getLong(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                PSS_CPU_BUDGET_CONFIG, 0L);
     }
 
     void onActivityManagerInternalAdded() {
@@ -2222,6 +2335,11 @@ public class AppProfiler {
         pw.println("  mAllowLowerMemLevel=" + mAllowLowerMemLevel
                 + " mLastMemoryLevel=" + mLastMemoryLevel
                 + " mLastNumProcesses=" + mLastNumProcesses);
+        synchronized (mProfilerLock) {
+            pw.println("  mNumPssSampled=" + mNumPssSampled
+                    + " mNumPssSkippedRssUnchanged=" + mNumPssSkippedRssUnchanged
+                    + " mNumPssSkippedBudget=" + mNumPssSkippedBudget);
+        }
     }
 
     @GuardedBy("mProfilerLock")
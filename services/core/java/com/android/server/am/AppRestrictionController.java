@@ -145,6 +145,7 @@ import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseArrayMap;
+import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.TypedXmlPullParser;
 import android.util.TypedXmlSerializer;
@@ -305,6 +306,42 @@ public final class AppRestrictionController {
      */
     ArraySet<String> mBgRestrictionExemptioFromSysConfig;
 
+    /**
+     * The uids whose restriction levels the trackers asked to refresh, to be refreshed together
+     * on the bg handler.
+     */
+    @GuardedBy("mLock")
+    private SparseArray<PendingRefresh> mPendingRefreshes = new SparseArray<>();
+
+    /**
+     * The refreshes being processed; only accessed from the bg handler.
+     */
+    private SparseArray<PendingRefresh> mTmpRefreshes = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mNumRefreshRequests;
+
+    @GuardedBy("mLock")
+    private long mNumRefreshBatches;
+
+    /**
+     * The thread running a batch of refreshes, if any; the exemption reasons it looks up are
+     * cached in {@link #mBatchExemptionReasons} until the batch is done, as every tracker's
+     * policy checks them for every uid.
+     */
+    private volatile Thread mBatchRefreshThread;
+
+    /**
+     * Only accessed from {@link #mBatchRefreshThread}.
+     */
+    private final SparseIntArray mBatchExemptionReasons = new SparseIntArray();
+
+    private static final class PendingRefresh {
+        int mReason;
+        int mSubReason;
+        boolean mAllowRequestBgRestricted;
+    }
+
     /**
      * Lock specifically for bookkeeping around the carrier-privileged app set.
      * Do not acquire any other locks while holding this one. Methods that
@@ -1714,6 +1751,56 @@ public final class AppRestrictionController {
         }
     }
 
+    /**
+     * Refresh the restriction level of the given uid later on the bg handler, along with the
+     * other uids requested meanwhile; requests for the same uid are coalesced.
+     */
+    void scheduleRefreshAppRestrictionLevelForUid(int uid, int reason, int subReason,
+            boolean allowRequestBgRestricted) {
+        synchronized (mLock) {
+            mNumRefreshRequests++;
+            PendingRefresh refresh = mPendingRefreshes.get(uid);
+            if (refresh == null) {
+                refresh = new PendingRefresh();
+                mPendingRefreshes.put(uid, refresh);
+            }
+            // The latest reason wins, unless a pending one is forced by the system, e.g. on
+            // an abuse, which a later usage change mustn't hide; and don't lose a request to
+            // ask for bg restriction.
+            if (refresh.mReason != REASON_MAIN_FORCED_BY_SYSTEM
+                    || reason == REASON_MAIN_FORCED_BY_SYSTEM) {
+                refresh.mReason = reason;
+                refresh.mSubReason = subReason;
+            }
+            refresh.mAllowRequestBgRestricted |= allowRequestBgRestricted;
+            if (mPendingRefreshes.size() == 1) {
+                mBgHandler.sendEmptyMessage(BgHandler.MSG_REFRESH_RESTRICTION_LEVELS);
+            }
+        }
+    }
+
+    private void refreshPendingAppRestrictionLevels() {
+        final SparseArray<PendingRefresh> refreshes = mTmpRefreshes;
+        synchronized (mLock) {
+            mTmpRefreshes = mPendingRefreshes;
+            mPendingRefreshes = refreshes;
+            mNumRefreshBatches++;
+        }
+        final SparseArray<PendingRefresh> batch = mTmpRefreshes;
+        mBatchRefreshThread = Thread.currentThread();
+        try {
+            for (int i = 0, size = batch.size(); i < size; i++) {
+                final PendingRefresh refresh = batch.valueAt(i);
+                refreshAppRestrictionLevelForUid(batch.keyAt(i), refresh.mReason,
+                        refresh.mSubReason, refresh.mAllowRequestBgRestricted);
+            }
+        } finally {
+            mBatchRefreshThread = null;
+            mBatchExemptionReasons.clear();
+            batch.clear();
+        }
+    }
+
     void refreshAppRestrictionLevelForUid(int uid, int reason, int subReason,
             boolean allowRequestBgRestricted) {
         final String[] packages = mInjector.getPackageManager().getPackagesForUid(uid);
@@ -2036,6 +2123,15 @@ public final class AppRestrictionController {
         pw.println("BACKGROUND RESTRICTION LEVEL SETTINGS");
         mRestrictionSettings.dump(pw, "  " + prefix);
         mConstantsObserver.dump(pw, "  " + prefix);
+        synchronized (mLock) {
+            pw.print("  " + prefix);
+            pw.print("Refresh requests=");
+            pw.print(mNumRefreshRequests);
+            pw.print(" batches=");
+            pw.print(mNumRefreshBatches);
+            pw.print(" pending=");
+            pw.println(mPendingRefreshes.size());
+        }
         for (int i = 0, size = mAppStateTrackers.size(); i < size; i++) {
             pw.println();
             mAppStateTrackers.get(i).dump(pw, prefix);
@@ -2784,6 +2880,20 @@ public final class AppRestrictionController {
      */
     @ReasonCode
     int getBackgroundRestrictionExemptionReason(int uid) {
+        if (Thread.currentThread() != mBatchRefreshThread) {
+            return computeBackgroundRestrictionExemptionReason(uid);
+        }
+        final int index = mBatchExemptionReasons.indexOfKey(uid);
+        if (index >= 0) {
+            return mBatchExemptionReasons.valueAt(index);
+        }
+        final int reason = computeBackgroundRestrictionExemptionReason(uid);
+        mBatchExemptionReasons.put(uid, reason);
+        return reason;
+    }
+
+    @ReasonCode
+    private int computeBackgroundRestrictionExemptionReason(int uid) {
         if (UserHandle.isCore(uid)) {
             return REASON_SYSTEM_UID;
         }
@@ -3012,6 +3122,7 @@ public final class AppRestrictionController {
         static final int MSG_CANCEL_REQUEST_BG_RESTRICTED = 9;
         static final int MSG_LOAD_RESTRICTION_SETTINGS = 10;
         static final int MSG_PERSIST_RESTRICTION_SETTINGS = 11;
+        static final int MSG_REFRESH_RESTRICTION_LEVELS = 12;
 
         private final Injector mInjector;
 
@@ -3063,6 +3174,9 @@ public final class AppRestrictionController {
                 case MSG_PERSIST_RESTRICTION_SETTINGS: {
                     c.mRestrictionSettings.persistToXml(msg.arg1);
                 } break;
+                case MSG_REFRESH_RESTRICTION_LEVELS: {
+                    c.refreshPendingAppRestrictionLevels();
+                } break;
             }
         }
     }
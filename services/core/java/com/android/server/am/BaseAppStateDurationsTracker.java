@@ -21,6 +21,7 @@ import static android.app.ActivityManager.PROCESS_STATE_NONEXISTENT;
 
 import android.content.Context;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
@@ -44,6 +45,16 @@ abstract class BaseAppStateDurationsTracker
     @GuardedBy("mLock")
     final SparseArray<UidStateDurations> mUidStateDurations = new SparseArray<>();
 
+    /**
+     * Scratch buffers for the duration queries, which the policies run for every uid, so they
+     * neither copy nor merge the event lists.
+     */
+    @GuardedBy("mLock")
+    private final ActiveIntervals mTmpIntervals = new ActiveIntervals();
+
+    @GuardedBy("mLock")
+    private final ActiveIntervals mTmpFgIntervals = new ActiveIntervals();
+
     BaseAppStateDurationsTracker(Context context, AppRestrictionController controller,
             Constructor<? extends Injector<T>> injector, Object outerContext) {
         super(context, controller, injector, outerContext);
@@ -92,21 +103,7 @@ abstract class BaseAppStateDurationsTracker
     }
 
     long getTotalDurations(String packageName, int uid, long now, int index, boolean bgOnly) {
-        synchronized (mLock) {
-            final U durations = mPkgEvents.get(uid, packageName);
-            if (durations == null) {
-                return 0;
-            }
-            if (bgOnly) {
-                final UidStateDurations uidDurations = mUidStateDurations.get(uid);
-                if (uidDurations != null && !uidDurations.isEmpty()) {
-                    final U res = createAppStateEvents(durations);
-                    res.subtract(uidDurations, index, UidStateDurations.DEFAULT_INDEX);
-                    return res.getTotalDurations(now, index);
-                }
-            }
-            return durations.getTotalDurations(now, index);
-        }
+        return getTotalDurationsSince(packageName, uid, 0, now, index, bgOnly);
     }
 
     long getTotalDurations(String packageName, int uid, long now, int index) {
@@ -118,19 +115,7 @@ abstract class BaseAppStateDurationsTracker
     }
 
     long getTotalDurations(int uid, long now, int index, boolean bgOnly) {
-        synchronized (mLock) {
-            final U durations = getUidEventsLocked(uid);
-            if (durations == null) {
-                return 0;
-            }
-            if (bgOnly) {
-                final UidStateDurations uidDurations = mUidStateDurations.get(uid);
-                if (uidDurations != null && !uidDurations.isEmpty()) {
-                    durations.subtract(uidDurations, index, UidStateDurations.DEFAULT_INDEX);
-                }
-            }
-            return durations.getTotalDurations(now, index);
-        }
+        return getTotalDurationsSince(uid, 0, now, index, bgOnly);
     }
 
     long getTotalDurations(int uid, long now, int index) {
@@ -148,15 +133,11 @@ abstract class BaseAppStateDurationsTracker
             if (durations == null) {
                 return 0;
             }
-            if (bgOnly) {
-                final UidStateDurations uidDurations = mUidStateDurations.get(uid);
-                if (uidDurations != null && !uidDurations.isEmpty()) {
-                    final U res = createAppStateEvents(durations);
-                    res.subtract(uidDurations, index, UidStateDurations.DEFAULT_INDEX);
-                    return res.getTotalDurationsSince(since, now, index);
-                }
+            mTmpIntervals.clear();
+            if (index < durations.mEvents.length) {
+                mTmpIntervals.union(durations.mEvents[index], now);
             }
-            return durations.getTotalDurationsSince(since, now, index);
+            return getTotalDurationsSinceLocked(uid, since, now, bgOnly);
         }
     }
 
@@ -171,18 +152,37 @@ abstract class BaseAppStateDurationsTracker
 
     long getTotalDurationsSince(int uid, long since, long now, int index, boolean bgOnly) {
         synchronized (mLock) {
-            final U durations = getUidEventsLocked(uid);
-            if (durations == null) {
+            final ArrayMap<String, U> pkgs = mPkgEvents.getMap().get(uid);
+            if (pkgs == null) {
                 return 0;
             }
-            if (bgOnly) {
-                final UidStateDurations uidDurations = mUidStateDurations.get(uid);
-                if (uidDurations != null && !uidDurations.isEmpty()) {
-                    durations.subtract(uidDurations, index, UidStateDurations.DEFAULT_INDEX);
+            mTmpIntervals.clear();
+            for (int i = pkgs.size() - 1; i >= 0; i--) {
+                final U durations = pkgs.valueAt(i);
+                if (durations != null && index < durations.mEvents.length) {
+                    mTmpIntervals.union(durations.mEvents[index], now);
                 }
             }
-            return durations.getTotalDurationsSince(since, now, index);
+            return getTotalDurationsSinceLocked(uid, since, now, bgOnly);
+        }
+    }
+
+    /**
+     * @return The total durations in {@link #mTmpIntervals} since the given time, excluding
+     *         those the given uid was in the foreground if requested.
+     */
+    @GuardedBy("mLock")
+    private long getTotalDurationsSinceLocked(int uid, long since, long now, boolean bgOnly) {
+        if (bgOnly) {
+            final UidStateDurations uidDurations = mUidStateDurations.get(uid);
+            if (uidDurations != null && !uidDurations.isEmpty()) {
+                mTmpFgIntervals.clear();
+                mTmpFgIntervals.union(uidDurations.mEvents[UidStateDurations.DEFAULT_INDEX], now);
+                return mTmpIntervals.getTotalSince(since)
+                        - mTmpIntervals.getOverlapSince(mTmpFgIntervals, since);
+            }
         }
+        return mTmpIntervals.getTotalSince(since);
     }
 
     long getTotalDurationsSince(int uid, long since, long now, int index) {
@@ -109,7 +109,7 @@ abstract class BaseAppStateEvents<E> {
      */
     boolean isEmpty() {
         for (int i = 0; i < mEvents.length; i++) {
-            if (mEvents[i] != null && !mEvents[i].isEmpty()) {
+            if (!isEmpty(i)) {
                 return false;
             }
         }
@@ -123,6 +123,13 @@ abstract class BaseAppStateEvents<E> {
         return mEvents[index] == null || mEvents[index].isEmpty();
     }
 
+    /**
+     * @return {@code true} if the events of the given type have ever been tracked.
+     */
+    boolean isTracked(int index) {
+        return mEvents[index] != null;
+    }
+
     /**
      * Merge the events table from another instance.
      */
@@ -169,7 +176,7 @@ abstract class BaseAppStateEvents<E> {
 
     void dump(PrintWriter pw, String prefix, @ElapsedRealtimeLong long nowElapsed) {
         for (int i = 0; i < mEvents.length; i++) {
-            if (mEvents[i] == null) {
+            if (!isTracked(i)) {
                 continue;
             }
             pw.print(prefix);
@@ -21,7 +21,6 @@ import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -29,6 +28,9 @@ import java.util.LinkedList;
  * slots, thus we could only track the total number of events in a slot, eliminating
  * the needs to track the timestamps for each individual event. This will be much more memory
  * efficient for the case of massive amount of events.
+ *
+ * <p>The counts of the slots are kept in {@link EventCountRing}s rather than in {@link #mEvents},
+ * so tracking an event doesn't allocate, and counting them over any period is O(1).</p>
  */
 class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
 
@@ -44,12 +46,18 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
      */
     long[] mCurSlotStartTime;
 
+    /**
+     * The number of events in each timeslot, the last one being the current one.
+     */
+    final EventCountRing[] mSlotCounts;
+
     BaseAppStateTimeSlotEvents(int uid, @NonNull String packageName, int numOfEventTypes,
             long timeslotSize, @NonNull String tag,
             @NonNull MaxTrackingDurationConfig maxTrackingDurationConfig) {
         super(uid, packageName, numOfEventTypes, tag, maxTrackingDurationConfig);
         mTimeSlotSize = timeslotSize;
         mCurSlotStartTime = new long[numOfEventTypes];
+        mSlotCounts = new EventCountRing[numOfEventTypes];
     }
 
     BaseAppStateTimeSlotEvents(@NonNull BaseAppStateTimeSlotEvents other) {
@@ -59,6 +67,12 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
         for (int i = 0; i < mCurSlotStartTime.length; i++) {
             mCurSlotStartTime[i] = other.mCurSlotStartTime[i];
         }
+        mSlotCounts = new EventCountRing[other.mSlotCounts.length];
+        for (int i = 0; i < mSlotCounts.length; i++) {
+            if (other.mSlotCounts[i] != null) {
+                mSlotCounts[i] = new EventCountRing(other.mSlotCounts[i]);
+            }
+        }
     }
 
     @Override
@@ -76,27 +90,25 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
             return;
         }
         final BaseAppStateTimeSlotEvents other = (BaseAppStateTimeSlotEvents) otherObj;
-        if (mEvents.length != other.mEvents.length) {
+        if (mSlotCounts.length != other.mSlotCounts.length) {
             if (DEBUG_BASE_APP_TIME_SLOT_EVENTS) {
                 Slog.wtf(mTag, "Incompatible event table this=" + this + ", other=" + other);
             }
             return;
         }
-        for (int i = 0; i < mEvents.length; i++) {
-            final LinkedList<Integer> otherEvents = other.mEvents[i];
+        for (int i = 0; i < mSlotCounts.length; i++) {
+            final EventCountRing otherEvents = other.mSlotCounts[i];
             if (otherEvents == null || otherEvents.size() == 0) {
                 continue;
             }
-            LinkedList<Integer> events = mEvents[i];
+            final EventCountRing events = mSlotCounts[i];
             if (events == null || events.size() == 0) {
-                mEvents[i] = new LinkedList<Integer>(otherEvents);
+                mSlotCounts[i] = new EventCountRing(otherEvents);
                 mCurSlotStartTime[i] = other.mCurSlotStartTime[i];
                 continue;
             }
 
-            final LinkedList<Integer> dest = new LinkedList<>();
-            final Iterator<Integer> itl = events.iterator();
-            final Iterator<Integer> itr = otherEvents.iterator();
+            final EventCountRing dest = new EventCountRing();
             final long maxl = mCurSlotStartTime[i];
             final long maxr = other.mCurSlotStartTime[i];
             final long minl = maxl - mTimeSlotSize * (events.size() - 1);
@@ -104,10 +116,12 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
             final long latest = Math.max(maxl, maxr);
             final long earliest = Math.min(minl, minr);
             for (long start = earliest; start <= latest; start += mTimeSlotSize) {
-                dest.add((start >= minl && start <= maxl ? itl.next() : 0)
-                        + (start >= minr && start <= maxr ? itr.next() : 0));
+                dest.addLast((start >= minl && start <= maxl
+                        ? events.get((int) ((start - minl) / mTimeSlotSize)) : 0)
+                        + (start >= minr && start <= maxr
+                        ? otherEvents.get((int) ((start - minr) / mTimeSlotSize)) : 0));
             }
-            mEvents[i] = dest;
+            mSlotCounts[i] = dest;
             if (maxl < maxr) {
                 mCurSlotStartTime[i] = other.mCurSlotStartTime[i];
             }
@@ -117,7 +131,7 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
 
     @Override
     int getTotalEventsSince(long since, long now, int index) {
-        final LinkedList<Integer> events = mEvents[index];
+        final EventCountRing events = mSlotCounts[index];
         if (events == null || events.size() == 0) {
             return 0;
         }
@@ -126,16 +140,15 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
             return 0;
         }
         final long end = Math.min(getSlotStartTime(now), mCurSlotStartTime[index]);
-        final Iterator<Integer> it = events.descendingIterator();
-        int count = 0;
-        for (long time = mCurSlotStartTime[index]; time >= start && it.hasNext();
-                time -= mTimeSlotSize) {
-            final int val = it.next();
-            if (time <= end) {
-                count += val;
-            }
+        if (end < start) {
+            return 0;
+        }
+        final long first = mCurSlotStartTime[index] - mTimeSlotSize * (events.size() - 1);
+        if (end < first) {
+            return 0;
         }
-        return count;
+        return events.sum((int) (Math.max(0, start - first) / mTimeSlotSize),
+                (int) ((end - first) / mTimeSlotSize) + 1);
     }
 
     void addEvent(long now, int index) {
@@ -143,18 +156,26 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
         if (DEBUG_BASE_APP_TIME_SLOT_EVENTS) {
             Slog.i(mTag, "Adding event to slot " + slot);
         }
-        LinkedList<Integer> events = mEvents[index];
+        EventCountRing events = mSlotCounts[index];
         if (events == null) {
-            events = new LinkedList<Integer>();
-            mEvents[index] = events;
+            events = new EventCountRing();
+            mSlotCounts[index] = events;
         }
         if (events.size() == 0) {
-            events.add(1);
+            events.addLast(1);
         } else {
-            for (long start = mCurSlotStartTime[index]; start < slot; start += mTimeSlotSize) {
-                events.add(0);
+            long newSlots = slot > mCurSlotStartTime[index]
+                    ? (slot - mCurSlotStartTime[index]) / mTimeSlotSize : 0;
+            // No need to fill in the empty slots which would be trimmed right away.
+            final long maxSlots = (slot - getSlotStartTime(getEarliest(now))) / mTimeSlotSize + 1;
+            if (newSlots > maxSlots) {
+                events.clear();
+                newSlots = maxSlots;
+            }
+            for (long i = 0; i < newSlots; i++) {
+                events.addLast(0);
             }
-            events.offerLast(events.pollLast() + 1);
+            events.incrementLast(1);
         }
         mCurSlotStartTime[index] = slot;
         trimEvents(getEarliest(now), index);
@@ -162,15 +183,39 @@ class BaseAppStateTimeSlotEvents extends BaseAppStateEvents<Integer> {
 
     @Override
     void trimEvents(long earliest, int index) {
-        final LinkedList<Integer> events = mEvents[index];
+        final EventCountRing events = mSlotCounts[index];
         if (events == null || events.size() == 0) {
             return;
         }
         final long slot = getSlotStartTime(earliest);
-        for (long time = mCurSlotStartTime[index] - mTimeSlotSize * (events.size() - 1);
-                time < slot && events.size() > 0; time += mTimeSlotSize) {
-            events.pop();
+        final long first = mCurSlotStartTime[index] - mTimeSlotSize * (events.size() - 1);
+        if (slot > first) {
+            events.removeFirst((int) Math.min(events.size(), (slot - first) / mTimeSlotSize));
+        }
+    }
+
+    @Override
+    boolean isTracked(int index) {
+        return mSlotCounts[index] != null;
+    }
+
+    @Override
+    boolean isEmpty(int index) {
+        return mSlotCounts[index] == null || mSlotCounts[index].size() == 0;
+    }
+
+    @VisibleForTesting
+    @Override
+    LinkedList<Integer> getRawEvents(int index) {
+        final EventCountRing events = mSlotCounts[index];
+        if (events == null) {
+            return null;
+        }
+        final LinkedList<Integer> result = new LinkedList<>();
+        for (int i = 0; i < events.size(); i++) {
+            result.add(events.get(i));
         }
+        return result;
     }
 
     long getSlotStartTime(long timestamp) {
@@ -269,7 +269,7 @@ abstract class BaseAppStateTimeSlotEventsTracker
                 }
             }
             if (notifyController) {
-                mTracker.mAppRestrictionController.refreshAppRestrictionLevelForUid(
+                mTracker.mAppRestrictionController.scheduleRefreshAppRestrictionLevelForUid(
                         uid, REASON_MAIN_FORCED_BY_SYSTEM,
                         REASON_SUB_FORCED_SYSTEM_FLAG_ABUSE, true);
             }
@@ -327,7 +327,7 @@ abstract class BaseAppStateTimeSlotEventsTracker
             synchronized (mLock) {
                 notifyController = mExcessiveEventPkgs.remove(packageName, uid) != null;
             }
-            mTracker.mAppRestrictionController.refreshAppRestrictionLevelForUid(uid,
+            mTracker.mAppRestrictionController.scheduleRefreshAppRestrictionLevelForUid(uid,
                     REASON_MAIN_USAGE, REASON_SUB_USAGE_USER_INTERACTION, true);
         }
 
@@ -371,7 +371,7 @@ abstract class BaseAppStateTimeSlotEventsTracker
 
         @Override
         String formatEventSummary(long now, int index) {
-            if (mEvents[DEFAULT_INDEX] == null || mEvents[DEFAULT_INDEX].size() == 0) {
+            if (isEmpty(DEFAULT_INDEX)) {
                 return "(none)";
             }
             final int total = getTotalEvents(now, DEFAULT_INDEX);
@@ -50,6 +50,7 @@ import com.android.server.LocalServices;
 
 import libcore.util.EmptyArray;
 
+import java.io.PrintWriter;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -82,6 +83,32 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
     // Delay for clearing out battery stats for UIDs corresponding to a removed user
     public static final int UID_REMOVAL_AFTER_USER_REMOVAL_DELAY_MILLIS = 10_000;
 
+    // The subsystems whose stats are collected separately.
+    private static final int SUBSYSTEM_CPU = 0;
+    private static final int SUBSYSTEM_WIFI = 1;
+    private static final int SUBSYSTEM_BT = 2;
+    private static final int SUBSYSTEM_RADIO = 3;
+    private static final int SUBSYSTEM_RPM = 4;
+    private static final int SUBSYSTEM_COUNT = 5;
+
+    private static final int[] SUBSYSTEM_FLAGS = {
+        UPDATE_CPU, UPDATE_WIFI, UPDATE_BT, UPDATE_RADIO, UPDATE_RPM
+    };
+
+    private static final String[] SUBSYSTEM_NAMES = {
+        "cpu", "wifi", "bluetooth", "radio", "rpm"
+    };
+
+    /**
+     * How long the stats of each subsystem are fresh enough for the syncs which don't ask for
+     * all of the stats; the syncs which do, such as before a write or a reset, always query
+     * everything. The costlier a subsystem is to query, the longer it's allowed to get stale.
+     */
+    @VisibleForTesting
+    static final long[] SUBSYSTEM_FRESHNESS_MILLIS = {
+        0, 10_000, 10_000, 60_000, 30_000
+    };
+
     private final ScheduledExecutorService mExecutorService =
             Executors.newSingleThreadScheduledExecutor(
                     (ThreadFactory) r -> {
@@ -134,6 +161,35 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
     @GuardedBy("this")
     private Future<?> mProcessStateSync;
 
+    /**
+     * The number of syncs requested, and the number of them which ended up querying anything,
+     * rather than finding everything asked for fresh enough.
+     */
+    @GuardedBy("this")
+    private long mNumSyncRequests;
+
+    @GuardedBy("this")
+    private long mNumSyncs;
+
+    // What each subsystem cost us, indexed by SUBSYSTEM_*.
+    @GuardedBy("this")
+    private final long[] mLastQueryTimes = new long[SUBSYSTEM_COUNT];
+
+    @GuardedBy("this")
+    private final long[] mNumQueries = new long[SUBSYSTEM_COUNT];
+
+    @GuardedBy("this")
+    private final long[] mNumSkippedFresh = new long[SUBSYSTEM_COUNT];
+
+    @GuardedBy("this")
+    private final long[] mNumSkippedUnchanged = new long[SUBSYSTEM_COUNT];
+
+    @GuardedBy("this")
+    private final long[] mTotalQueryMillis = new long[SUBSYSTEM_COUNT];
+
+    @GuardedBy("this")
+    private final long[] mMaxQueryMillis = new long[SUBSYSTEM_COUNT];
+
     // If both mStats and mWorkerLock need to be synchronized, mWorkerLock must be acquired first.
     private final Object mWorkerLock = new Object();
 
@@ -152,6 +208,14 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
     private WifiActivityEnergyInfo mLastWifiInfo =
             new WifiActivityEnergyInfo(0, 0, 0, 0, 0, 0);
 
+    // The last reports of the controllers which take their deltas in BatteryStatsImpl, to tell
+    // whether anything changed since.
+    @GuardedBy("mWorkerLock")
+    private BluetoothActivityEnergyInfo mLastBluetoothInfo = null;
+
+    @GuardedBy("mWorkerLock")
+    private ModemActivityInfo mLastModemInfo = null;
+
     /**
      * Maps an {@link EnergyConsumerType} to it's corresponding {@link EnergyConsumer#id}s,
      * unless it is of {@link EnergyConsumer#type}=={@link EnergyConsumerType#OTHER}
@@ -409,6 +473,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             return CompletableFuture.failedFuture(new IllegalStateException("worker shutdown"));
         }
 
+        mNumSyncRequests++;
         if (mCurrentFuture == null) {
             mUpdateFlags = flags;
             mCurrentReason = reason;
@@ -418,6 +483,80 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         return mCurrentFuture;
     }
 
+    /**
+     * Drop the subsystems which have been queried recently enough from the given flags, unless
+     * all of the stats are asked for.
+     */
+    @GuardedBy("this")
+    private int applyFreshnessLocked(int flags, long now) {
+        if ((flags & UPDATE_ALL) == UPDATE_ALL || (flags & RESET) != 0) {
+            for (int i = 0; i < SUBSYSTEM_COUNT; i++) {
+                mLastQueryTimes[i] = now;
+            }
+            return flags;
+        }
+        for (int i = 0; i < SUBSYSTEM_COUNT; i++) {
+            if ((flags & SUBSYSTEM_FLAGS[i]) == 0) {
+                continue;
+            }
+            if (mLastQueryTimes[i] != 0
+                    && now - mLastQueryTimes[i] < SUBSYSTEM_FRESHNESS_MILLIS[i]) {
+                flags &= ~SUBSYSTEM_FLAGS[i];
+                mNumSkippedFresh[i]++;
+            } else {
+                mLastQueryTimes[i] = now;
+            }
+        }
+        return flags;
+    }
+
+    private void noteQueried(int subsystem, long startTime) {
+        noteQueried(subsystem, startTime, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param endTime When the result came in, or 0 if it didn't, e.g. on a timeout.
+     */
+    private void noteQueried(int subsystem, long startTime, long endTime) {
+        final long duration = (endTime != 0 ? endTime : SystemClock.elapsedRealtime())
+                - startTime;
+        synchronized (this) {
+            mNumQueries[subsystem]++;
+            mTotalQueryMillis[subsystem] += duration;
+            mMaxQueryMillis[subsystem] = Math.max(mMaxQueryMillis[subsystem], duration);
+        }
+    }
+
+    private void noteUnchanged(int subsystem) {
+        synchronized (this) {
+            mNumSkippedUnchanged[subsystem]++;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            pw.print("External stats syncs: requested="); pw.print(mNumSyncRequests);
+            pw.print(" run="); pw.println(mNumSyncs);
+            for (int i = 0; i < SUBSYSTEM_COUNT; i++) {
+                pw.print("  "); pw.print(SUBSYSTEM_NAMES[i]);
+                pw.print(": freshness="); pw.print(SUBSYSTEM_FRESHNESS_MILLIS[i]);
+                pw.print("ms queries="); pw.print(mNumQueries[i]);
+                pw.print(" skipped-fresh="); pw.print(mNumSkippedFresh[i]);
+                pw.print(" skipped-unchanged="); pw.print(mNumSkippedUnchanged[i]);
+                if (mNumQueries[i] > 0) {
+                    pw.print(" avg="); pw.print(mTotalQueryMillis[i] / mNumQueries[i]);
+                    pw.print("ms max="); pw.print(mMaxQueryMillis[i]); pw.print("ms");
+                }
+                if (mLastQueryTimes[i] != 0) {
+                    pw.print(" last="); pw.print((now - mLastQueryTimes[i]) / 1000);
+                    pw.print("s ago");
+                }
+                pw.println();
+            }
+        }
+    }
+
     long getLastCollectionTimeStamp() {
         synchronized (this) {
             return mLastCollectionTimeStamp;
@@ -428,6 +567,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         @Override
         public void run() {
             // Capture a snapshot of the state we are meant to process.
+            final int requestedFlags;
             final int updateFlags;
             final String reason;
             final int[] uidsToRemove;
@@ -437,7 +577,8 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             final int[] displayScreenStates;
             final boolean useLatestStates;
             synchronized (BatteryExternalStatsWorker.this) {
-                updateFlags = mUpdateFlags;
+                requestedFlags = mUpdateFlags;
+                updateFlags = applyFreshnessLocked(requestedFlags, SystemClock.elapsedRealtime());
                 reason = mCurrentReason;
                 uidsToRemove = mUidsToRemove.size() > 0 ? mUidsToRemove.toArray() : EmptyArray.INT;
                 onBattery = mOnBattery;
@@ -450,35 +591,45 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
                 mUidsToRemove.clear();
                 mCurrentFuture = null;
                 mUseLatestStates = true;
-                if ((updateFlags & UPDATE_ALL) == UPDATE_ALL) {
+                if (updateFlags != 0 || requestedFlags == 0) {
+                    mNumSyncs++;
+                }
+                // The stats which are fresh enough count as collected.
+                if ((requestedFlags & UPDATE_ALL) == UPDATE_ALL) {
                     cancelSyncDueToBatteryLevelChangeLocked();
                 }
-                if ((updateFlags & UPDATE_CPU) != 0) {
+                if ((requestedFlags & UPDATE_CPU) != 0) {
                     cancelCpuSyncDueToWakelockChange();
                 }
-                if ((updateFlags & UPDATE_ON_PROC_STATE_CHANGE) == UPDATE_ON_PROC_STATE_CHANGE) {
+                if ((requestedFlags & UPDATE_ON_PROC_STATE_CHANGE)
+                        == UPDATE_ON_PROC_STATE_CHANGE) {
                     cancelSyncDueToProcessStateChange();
                 }
             }
 
             try {
-                synchronized (mWorkerLock) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "begin updateExternalStatsSync reason=" + reason);
-                    }
-                    try {
-                        updateExternalStatsLocked(reason, updateFlags, onBattery,
-                                onBatteryScreenOff, screenState, displayScreenStates,
-                                useLatestStates);
-                    } finally {
+                // Nothing to query if everything asked for is fresh enough.
+                if (updateFlags != 0 || requestedFlags == 0) {
+                    synchronized (mWorkerLock) {
                         if (DEBUG) {
-                            Slog.d(TAG, "end updateExternalStatsSync");
+                            Slog.d(TAG, "begin updateExternalStatsSync reason=" + reason);
+                        }
+                        try {
+                            updateExternalStatsLocked(reason, updateFlags, onBattery,
+                                    onBatteryScreenOff, screenState, displayScreenStates,
+                                    useLatestStates);
+                        } finally {
+                            if (DEBUG) {
+                                Slog.d(TAG, "end updateExternalStatsSync");
+                            }
                         }
                     }
                 }
 
                 if ((updateFlags & UPDATE_CPU) != 0) {
+                    final long startTime = SystemClock.elapsedRealtime();
                     mStats.updateCpuTimesForAllUids();
+                    noteQueried(SUBSYSTEM_CPU, startTime);
                 }
 
                 // Clean up any UIDs if necessary.
@@ -525,6 +676,9 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         SynchronousResultReceiver bluetoothReceiver = null;
         CompletableFuture<ModemActivityInfo> modemFuture = CompletableFuture.completedFuture(null);
         boolean railUpdated = false;
+        // When each of the queries was sent, and when its result came in, if it did.
+        final long[] queryStartTimes = new long[SUBSYSTEM_COUNT];
+        final long[] queryEndTimes = new long[SUBSYSTEM_COUNT];
 
         CompletableFuture<EnergyConsumerResult[]> futureECRs = getMeasuredEnergyLocked(updateFlags);
 
@@ -533,6 +687,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             // Only fetch WiFi power data if it is supported.
             if (mWifiManager != null && mWifiManager.isEnhancedPowerReportingSupported()) {
                 SynchronousResultReceiver tempWifiReceiver = new SynchronousResultReceiver("wifi");
+                queryStartTimes[SUBSYSTEM_WIFI] = SystemClock.elapsedRealtime();
                 mWifiManager.getWifiActivityEnergyInfoAsync(
                         new Executor() {
                             @Override
@@ -543,6 +698,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
                             }
                         },
                         info -> {
+                            queryEndTimes[SUBSYSTEM_WIFI] = SystemClock.elapsedRealtime();
                             Bundle bundle = new Bundle();
                             bundle.putParcelable(BatteryStats.RESULT_RECEIVER_CONTROLLER_KEY, info);
                             tempWifiReceiver.send(0, bundle);
@@ -562,12 +718,14 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             if (adapter != null) {
                 SynchronousResultReceiver resultReceiver =
                         new SynchronousResultReceiver("bluetooth");
+                queryStartTimes[SUBSYSTEM_BT] = SystemClock.elapsedRealtime();
                 adapter.requestControllerActivityEnergyInfo(
                         Runnable::run,
                         new BluetoothAdapter.OnBluetoothActivityEnergyInfoCallback() {
                             @Override
                             public void onBluetoothActivityEnergyInfoAvailable(
                                     BluetoothActivityEnergyInfo info) {
+                                queryEndTimes[SUBSYSTEM_BT] = SystemClock.elapsedRealtime();
                                 Bundle bundle = new Bundle();
                                 bundle.putParcelable(
                                         BatteryStats.RESULT_RECEIVER_CONTROLLER_KEY, info);
@@ -577,6 +735,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
                             @Override
                             public void onBluetoothActivityEnergyInfoError(int errorCode) {
                                 Slog.w(TAG, "error reading Bluetooth stats: " + errorCode);
+                                queryEndTimes[SUBSYSTEM_BT] = SystemClock.elapsedRealtime();
                                 Bundle bundle = new Bundle();
                                 bundle.putParcelable(
                                         BatteryStats.RESULT_RECEIVER_CONTROLLER_KEY, null);
@@ -592,17 +751,20 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             // We were asked to fetch Telephony data.
             if (mTelephony != null) {
                 CompletableFuture<ModemActivityInfo> temp = new CompletableFuture<>();
+                queryStartTimes[SUBSYSTEM_RADIO] = SystemClock.elapsedRealtime();
                 mTelephony.requestModemActivityInfo(Runnable::run,
                         new OutcomeReceiver<ModemActivityInfo,
                                 TelephonyManager.ModemActivityInfoException>() {
                             @Override
                             public void onResult(ModemActivityInfo result) {
+                                queryEndTimes[SUBSYSTEM_RADIO] = SystemClock.elapsedRealtime();
                                 temp.complete(result);
                             }
 
                             @Override
                             public void onError(TelephonyManager.ModemActivityInfoException e) {
                                 Slog.w(TAG, "error reading modem stats:" + e);
+                                queryEndTimes[SUBSYSTEM_RADIO] = SystemClock.elapsedRealtime();
                                 temp.complete(null);
                             }
                         });
@@ -617,11 +779,22 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
 
         if ((updateFlags & BatteryStatsImpl.ExternalStatsSync.UPDATE_RPM) != 0) {
             // Collect the latest low power stats without holding the mStats lock.
+            final long rpmStartTime = SystemClock.elapsedRealtime();
             mStats.fillLowPowerStats();
+            noteQueried(SUBSYSTEM_RPM, rpmStartTime);
         }
 
+        // The queries run concurrently, so each of them costs the time from when it was sent
+        // until its result came in, as recorded by its callback; not until we got to wait for it.
         final WifiActivityEnergyInfo wifiInfo = awaitControllerInfo(wifiReceiver);
+        if (wifiReceiver != null) {
+            noteQueried(SUBSYSTEM_WIFI, queryStartTimes[SUBSYSTEM_WIFI],
+                    queryEndTimes[SUBSYSTEM_WIFI]);
+        }
         final BluetoothActivityEnergyInfo bluetoothInfo = awaitControllerInfo(bluetoothReceiver);
+        if (bluetoothReceiver != null) {
+            noteQueried(SUBSYSTEM_BT, queryStartTimes[SUBSYSTEM_BT], queryEndTimes[SUBSYSTEM_BT]);
+        }
         ModemActivityInfo modemInfo = null;
         try {
             modemInfo = modemFuture.get(EXTERNAL_STATS_SYNC_TIMEOUT_MILLIS,
@@ -631,6 +804,10 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         } catch (ExecutionException e) {
             Slog.w(TAG, "exception reading modem stats: " + e.getCause());
         }
+        if ((updateFlags & UPDATE_RADIO) != 0 && mTelephony != null) {
+            noteQueried(SUBSYSTEM_RADIO, queryStartTimes[SUBSYSTEM_RADIO],
+                    queryEndTimes[SUBSYSTEM_RADIO]);
+        }
 
         final MeasuredEnergySnapshot.MeasuredEnergyDeltaData measuredEnergyDeltas;
         if (mMeasuredEnergySnapshot == null || futureECRs == null) {
@@ -724,8 +901,13 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
                     final long btChargeUC = measuredEnergyDeltas != null
                             ? measuredEnergyDeltas.bluetoothChargeUC
                             : MeasuredEnergySnapshot.UNAVAILABLE;
-                    mStats.updateBluetoothStateLocked(bluetoothInfo,
-                            btChargeUC, elapsedRealtime, uptime);
+                    if (isUnchanged(bluetoothInfo, mLastBluetoothInfo) && isIdle(btChargeUC)) {
+                        noteUnchanged(SUBSYSTEM_BT);
+                    } else {
+                        mStats.updateBluetoothStateLocked(bluetoothInfo,
+                                btChargeUC, elapsedRealtime, uptime);
+                    }
+                    mLastBluetoothInfo = bluetoothInfo;
                 } else {
                     Slog.w(TAG, "bluetooth info is invalid: " + bluetoothInfo);
                 }
@@ -739,10 +921,16 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
             if (wifiInfo.isValid()) {
                 final long wifiChargeUC = measuredEnergyDeltas != null ?
                         measuredEnergyDeltas.wifiChargeUC : MeasuredEnergySnapshot.UNAVAILABLE;
-                final NetworkStatsManager networkStatsManager = mInjector.getSystemService(
-                        NetworkStatsManager.class);
-                mStats.updateWifiState(extractDeltaLocked(wifiInfo),
-                        wifiChargeUC, elapsedRealtime, uptime, networkStatsManager);
+                final WifiActivityEnergyInfo wifiDelta = extractDeltaLocked(wifiInfo);
+                if (isEmpty(wifiDelta) && isIdle(wifiChargeUC)) {
+                    // Skip the network stats retrieval, there's nothing to attribute.
+                    noteUnchanged(SUBSYSTEM_WIFI);
+                } else {
+                    final NetworkStatsManager networkStatsManager = mInjector.getSystemService(
+                            NetworkStatsManager.class);
+                    mStats.updateWifiState(wifiDelta,
+                            wifiChargeUC, elapsedRealtime, uptime, networkStatsManager);
+                }
             } else {
                 Slog.w(TAG, "wifi info is invalid: " + wifiInfo);
             }
@@ -751,10 +939,16 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         if (modemInfo != null) {
             final long mobileRadioChargeUC = measuredEnergyDeltas != null
                     ? measuredEnergyDeltas.mobileRadioChargeUC : MeasuredEnergySnapshot.UNAVAILABLE;
-            final NetworkStatsManager networkStatsManager = mInjector.getSystemService(
-                    NetworkStatsManager.class);
-            mStats.noteModemControllerActivity(modemInfo, mobileRadioChargeUC, elapsedRealtime,
-                    uptime, networkStatsManager);
+            if (isUnchanged(modemInfo, mLastModemInfo) && isIdle(mobileRadioChargeUC)) {
+                // Skip the network stats retrieval, there's nothing to attribute.
+                noteUnchanged(SUBSYSTEM_RADIO);
+            } else {
+                final NetworkStatsManager networkStatsManager = mInjector.getSystemService(
+                        NetworkStatsManager.class);
+                mStats.noteModemControllerActivity(modemInfo, mobileRadioChargeUC,
+                        elapsedRealtime, uptime, networkStatsManager);
+            }
+            mLastModemInfo = modemInfo;
         }
 
         if ((updateFlags & UPDATE_ALL) == UPDATE_ALL) {
@@ -763,6 +957,47 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         }
     }
 
+    private static boolean isIdle(long chargeUC) {
+        return chargeUC == MeasuredEnergySnapshot.UNAVAILABLE || chargeUC == 0;
+    }
+
+    private static boolean isEmpty(WifiActivityEnergyInfo delta) {
+        return delta.getControllerTxDurationMillis() == 0
+                && delta.getControllerRxDurationMillis() == 0
+                && delta.getControllerScanDurationMillis() == 0
+                && delta.getControllerIdleDurationMillis() == 0
+                && delta.getControllerEnergyUsedMicroJoules() == 0;
+    }
+
+    private static boolean isUnchanged(BluetoothActivityEnergyInfo info,
+            @Nullable BluetoothActivityEnergyInfo last) {
+        return last != null
+                && info.getControllerTxTimeMillis() == last.getControllerTxTimeMillis()
+                && info.getControllerRxTimeMillis() == last.getControllerRxTimeMillis()
+                && info.getControllerIdleTimeMillis() == last.getControllerIdleTimeMillis()
+                && info.getControllerEnergyUsed() == last.getControllerEnergyUsed()
+                && info.getUidTraffic().isEmpty();
+    }
+
+    /**
+     * Unlike {@link ModemActivityInfo#equals}, ignores the timestamp, which changes every time.
+     */
+    private static boolean isUnchanged(ModemActivityInfo info, @Nullable ModemActivityInfo last) {
+        if (last == null
+                || info.getSleepTimeMillis() != last.getSleepTimeMillis()
+                || info.getIdleTimeMillis() != last.getIdleTimeMillis()
+                || info.getReceiveTimeMillis() != last.getReceiveTimeMillis()) {
+            return false;
+        }
+        for (int i = 0; i < ModemActivityInfo.getNumTxPowerLevels(); i++) {
+            if (info.getTransmitDurationMillisAtPowerLevel(i)
+                    != last.getTransmitDurationMillisAtPowerLevel(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Helper method to extract the Parcelable controller info from a
      * SynchronousResultReceiver.
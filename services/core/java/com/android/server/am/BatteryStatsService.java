@@ -154,6 +154,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
     private final Object mLock = new Object();
+    private final EventRing mEventRing = new EventRing();
 
     private final Object mPowerStatsLock = new Object();
     @GuardedBy("mPowerStatsLock")
@@ -491,15 +492,241 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     private void awaitCompletion() {
         final CountDownLatch latch = new CountDownLatch(1);
-        mHandler.post(() -> {
-            latch.countDown();
-        });
+        // Behind the events noted so far, which may take more than one message to apply.
+        synchronized (mLock) {
+            mEventRing.post(() -> {
+                latch.countDown();
+            });
+        }
         try {
             latch.await();
         } catch (InterruptedException e) {
         }
     }
 
+    /**
+     * The events noted with {@link #mLock} held, in the order they were noted, until the handler
+     * thread applies them to {@link #mStats} in batches.
+     *
+     * <p>The most frequent events are kept in preallocated slots, so noting them allocates
+     * nothing, and a single message is posted for as many events as come in before the handler
+     * gets to them. The other events are kept as runnables, in the same order. The slots only
+     * grow if a burst outpaces the handler thread.</p>
+     */
+    private final class EventRing {
+        static final int EVENT_RUNNABLE = 0;
+        static final int EVENT_PROCESS_START = 1;
+        static final int EVENT_PROCESS_CRASH = 2;
+        static final int EVENT_PROCESS_ANR = 3;
+        static final int EVENT_PROCESS_FINISH = 4;
+        static final int EVENT_UID_PROCESS_STATE = 5;
+        static final int EVENT_NOTE_EVENT = 6;
+        static final int EVENT_SYNC_START = 7;
+        static final int EVENT_SYNC_FINISH = 8;
+        static final int EVENT_JOB_START = 9;
+        static final int EVENT_JOB_FINISH = 10;
+
+        private static final int INITIAL_CAPACITY = 256;
+
+        private final class Slots {
+            final int[] mTypes;
+            final int[] mUids;
+            final int[] mArgs;
+            final String[] mNames;
+            final long[] mElapsedRealtimes;
+            final long[] mUptimes;
+            final Runnable[] mRunnables;
+
+            Slots(int capacity) {
+                mTypes = new int[capacity];
+                mUids = new int[capacity];
+                mArgs = new int[capacity];
+                mNames = new String[capacity];
+                mElapsedRealtimes = new long[capacity];
+                mUptimes = new long[capacity];
+                mRunnables = new Runnable[capacity];
+            }
+        }
+
+        @GuardedBy("mLock")
+        private Slots mSlots = new Slots(INITIAL_CAPACITY);
+
+        /** The index of the oldest event which hasn't been applied yet. */
+        @GuardedBy("mLock")
+        private int mHead;
+
+        @GuardedBy("mLock")
+        private int mSize;
+
+        @GuardedBy("mLock")
+        private boolean mDrainPending;
+
+        private final Runnable mDrain = this::drain;
+
+        /**
+         * Note an event of the given type, along with the current time.
+         */
+        @GuardedBy("mLock")
+        void add(int type, int uid, int arg, String name) {
+            final int index = claimLocked(type);
+            final Slots slots = mSlots;
+            slots.mUids[index] = uid;
+            slots.mArgs[index] = arg;
+            slots.mNames[index] = name;
+            slots.mElapsedRealtimes[index] = SystemClock.elapsedRealtime();
+            slots.mUptimes[index] = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Note an event which doesn't have a type of its own, to be run on the handler thread.
+         */
+        @GuardedBy("mLock")
+        void post(Runnable runnable) {
+            mSlots.mRunnables[claimLocked(EVENT_RUNNABLE)] = runnable;
+        }
+
+        @GuardedBy("mLock")
+        private int claimLocked(int type) {
+            if (mSize == mSlots.mTypes.length) {
+                growLocked();
+            }
+            final int index = (mHead + mSize) % mSlots.mTypes.length;
+            mSlots.mTypes[index] = type;
+            mSize++;
+            if (!mDrainPending) {
+                mDrainPending = true;
+                mHandler.post(mDrain);
+            }
+            return index;
+        }
+
+        /**
+         * Double the slots, moving the pending events to the start of them, in order; a drain
+         * in progress keeps reading the old ones.
+         */
+        @GuardedBy("mLock")
+        private void growLocked() {
+            final Slots from = mSlots;
+            final int capacity = from.mTypes.length;
+            final Slots to = new Slots(capacity * 2);
+            copyLocked(from.mTypes, to.mTypes, capacity);
+            copyLocked(from.mUids, to.mUids, capacity);
+            copyLocked(from.mArgs, to.mArgs, capacity);
+            copyLocked(from.mNames, to.mNames, capacity);
+            copyLocked(from.mElapsedRealtimes, to.mElapsedRealtimes, capacity);
+            copyLocked(from.mUptimes, to.mUptimes, capacity);
+            copyLocked(from.mRunnables, to.mRunnables, capacity);
+            mSlots = to;
+            mHead = 0;
+        }
+
+        @GuardedBy("mLock")
+        private void copyLocked(Object from, Object to, int capacity) {
+            final int first = Math.min(mSize, capacity - mHead);
+            System.arraycopy(from, mHead, to, 0, first);
+            System.arraycopy(from, 0, to, first, mSize - first);
+        }
+
+        /**
+         * Apply the events noted so far; the ones noted meanwhile are left to another message,
+         * so a steady flow of them doesn't hold off the other messages of the handler.
+         */
+        private void drain() {
+            final Slots slots;
+            final int head;
+            final int count;
+            synchronized (mLock) {
+                if (mSize == 0) {
+                    mDrainPending = false;
+                    return;
+                }
+                slots = mSlots;
+                head = mHead;
+                count = mSize;
+            }
+            apply(slots, head, count);
+            synchronized (mLock) {
+                // The slots may have grown meanwhile, with our events moved to the start.
+                final int capacity = mSlots.mTypes.length;
+                for (int i = 0; i < count; i++) {
+                    final int index = (mHead + i) % capacity;
+                    mSlots.mNames[index] = null;
+                    mSlots.mRunnables[index] = null;
+                }
+                mHead = (mHead + count) % capacity;
+                mSize -= count;
+                if (mSize > 0) {
+                    mHandler.post(mDrain);
+                } else {
+                    mDrainPending = false;
+                }
+            }
+        }
+
+        private void apply(Slots slots, int head, int count) {
+            final int capacity = slots.mTypes.length;
+            int i = 0;
+            while (i < count) {
+                if (slots.mTypes[(head + i) % capacity] != EVENT_RUNNABLE) {
+                    synchronized (mStats) {
+                        for (; i < count; i++) {
+                            final int index = (head + i) % capacity;
+                            if (slots.mTypes[index] == EVENT_RUNNABLE) {
+                                break;
+                            }
+                            applyLocked(slots, index);
+                        }
+                    }
+                } else {
+                    // Runnables take the locks they need themselves.
+                    slots.mRunnables[(head + i) % capacity].run();
+                    i++;
+                }
+            }
+        }
+
+        @GuardedBy("mStats")
+        private void applyLocked(Slots slots, int index) {
+            final int uid = slots.mUids[index];
+            final int arg = slots.mArgs[index];
+            final String name = slots.mNames[index];
+            final long elapsedRealtime = slots.mElapsedRealtimes[index];
+            final long uptime = slots.mUptimes[index];
+            switch (slots.mTypes[index]) {
+                case EVENT_PROCESS_START:
+                    mStats.noteProcessStartLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_PROCESS_CRASH:
+                    mStats.noteProcessCrashLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_PROCESS_ANR:
+                    mStats.noteProcessAnrLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_PROCESS_FINISH:
+                    mStats.noteProcessFinishLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_UID_PROCESS_STATE:
+                    mStats.noteUidProcessStateLocked(uid, arg, elapsedRealtime, uptime);
+                    break;
+                case EVENT_NOTE_EVENT:
+                    mStats.noteEventLocked(arg, name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_SYNC_START:
+                    mStats.noteSyncStartLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_SYNC_FINISH:
+                    mStats.noteSyncFinishLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_JOB_START:
+                    mStats.noteJobStartLocked(name, uid, elapsedRealtime, uptime);
+                    break;
+                case EVENT_JOB_FINISH:
+                    mStats.noteJobFinishLocked(name, uid, arg, elapsedRealtime, uptime);
+                    break;
+            }
+        }
+    }
+
     /**
      * At the time when the constructor runs, the power manager has not yet been
      * initialized.  So we initialize the low power observer later.
@@ -550,7 +777,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePowerSaveModeLocked(result.batterySaverEnabled,
                             elapsedRealtime, uptime);
@@ -575,7 +802,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void scheduleWriteToDisk() {
         synchronized (mLock) {
             // We still schedule it on the handler so we'll have all existing pending works done.
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 mWorker.scheduleWrite();
             });
         }
@@ -589,7 +816,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void removeUid(final int uid) {
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.removeUidStatsLocked(uid, elapsedRealtime);
                 }
@@ -600,7 +827,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void onCleanupUser(final int userId) {
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.onCleanupUserLocked(userId, elapsedRealtime);
                 }
@@ -610,7 +837,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void onUserRemoved(final int userId) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.onUserRemovedLocked(userId);
                 }
@@ -622,7 +849,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.addIsolatedUidLocked(isolatedUid, appUid, elapsedRealtime, uptime);
                 }
@@ -632,7 +859,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void removeIsolatedUid(final int isolatedUid, final int appUid) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid);
                 }
@@ -642,13 +869,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void noteProcessStart(final String name, final int uid) {
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteProcessStartLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_PROCESS_START, uid, 0, name);
         }
         FrameworkStatsLog.write(FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED, uid, name,
                 FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED__STATE__STARTED);
@@ -656,13 +877,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void noteProcessCrash(String name, int uid) {
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteProcessCrashLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_PROCESS_CRASH, uid, 0, name);
         }
         FrameworkStatsLog.write(FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED, uid, name,
                 FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED__STATE__CRASHED);
@@ -670,25 +885,13 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void noteProcessAnr(String name, int uid) {
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteProcessAnrLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_PROCESS_ANR, uid, 0, name);
         }
     }
 
     void noteProcessFinish(String name, int uid) {
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteProcessFinishLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_PROCESS_FINISH, uid, 0, name);
         }
         FrameworkStatsLog.write(FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED, uid, name,
                 FrameworkStatsLog.PROCESS_LIFE_CYCLE_STATE_CHANGED__STATE__FINISHED);
@@ -697,13 +900,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     /** @param state Process state from ActivityManager.java. */
     void noteUidProcessState(int uid, int state) {
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteUidProcessStateLocked(uid, state, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_UID_PROCESS_STATE, uid, state, null);
         }
     }
 
@@ -882,26 +1079,14 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         }
 
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteEventLocked(code, name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_NOTE_EVENT, uid, code, name);
         }
     }
 
     public void noteSyncStart(final String name, final int uid) {
         enforceCallingPermission();
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteSyncStartLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_SYNC_START, uid, 0, name);
         }
         FrameworkStatsLog.write_non_chained(FrameworkStatsLog.SYNC_STATE_CHANGED, uid, null,
                 name, FrameworkStatsLog.SYNC_STATE_CHANGED__STATE__ON);
@@ -910,13 +1095,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteSyncFinish(final String name, final int uid) {
         enforceCallingPermission();
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteSyncFinishLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_SYNC_FINISH, uid, 0, name);
         }
         FrameworkStatsLog.write_non_chained(FrameworkStatsLog.SYNC_STATE_CHANGED, uid, null,
                 name, FrameworkStatsLog.SYNC_STATE_CHANGED__STATE__OFF);
@@ -926,13 +1105,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteJobStart(final String name, final int uid) {
         enforceCallingPermission();
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteJobStartLocked(name, uid, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_JOB_START, uid, 0, name);
         }
     }
 
@@ -940,13 +1113,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteJobFinish(final String name, final int uid, final int stopReason) {
         enforceCallingPermission();
         synchronized (mLock) {
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
-                synchronized (mStats) {
-                    mStats.noteJobFinishLocked(name, uid, stopReason, elapsedRealtime, uptime);
-                }
-            });
+            mEventRing.add(EventRing.EVENT_JOB_FINISH, uid, stopReason, name);
         }
     }
 
@@ -955,7 +1122,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteJobsDeferredLocked(uid, numDeferred, sinceLast,
                             elapsedRealtime, uptime);
@@ -971,7 +1138,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWakupAlarmLocked(name, uid, localWs, tag,
                             elapsedRealtime, uptime);
@@ -986,7 +1153,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteAlarmStartLocked(name, localWs, uid, elapsedRealtime, uptime);
                 }
@@ -1000,7 +1167,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteAlarmFinishLocked(name, localWs, uid, elapsedRealtime, uptime);
                 }
@@ -1014,7 +1181,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStartWakeLocked(uid, pid, null, name, historyName, type,
                             unimportantForLogging, elapsedRealtime, uptime);
@@ -1029,7 +1196,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStopWakeLocked(uid, pid, null, name, historyName, type,
                             elapsedRealtime, uptime);
@@ -1045,7 +1212,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStartWakeFromSourceLocked(localWs, pid, name, historyName,
                             type, unimportantForLogging, elapsedRealtime, uptime);
@@ -1064,7 +1231,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteChangeWakelockFromSourceLocked(localWs, pid, name, historyName, type,
                             localNewWs, newPid, newName, newHistoryName, newType,
@@ -1081,7 +1248,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStopWakeFromSourceLocked(localWs, pid, name, historyName, type,
                             elapsedRealtime, uptime);
@@ -1097,7 +1264,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockStart(name, historyName, uid,
                             elapsedRealtime, uptime);
@@ -1114,7 +1281,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockStartFromSource(name, historyName, localWs,
                             elapsedRealtime, uptime);
@@ -1130,7 +1297,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockFinish(name, historyName, uid,
                             elapsedRealtime, uptime);
@@ -1147,7 +1314,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockFinishFromSource(name, historyName, localWs,
                             elapsedRealtime, uptime);
@@ -1161,7 +1328,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStartSensorLocked(uid, sensor, elapsedRealtime, uptime);
                 }
@@ -1176,7 +1343,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteStopSensorLocked(uid, sensor, elapsedRealtime, uptime);
                 }
@@ -1191,7 +1358,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteVibratorOnLocked(uid, durationMillis, elapsedRealtime, uptime);
                 }
@@ -1204,7 +1371,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteVibratorOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1220,7 +1387,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteGpsChangedLocked(localOldWs, localNewWs, elapsedRealtime, uptime);
                 }
@@ -1232,7 +1399,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteGpsSignalQualityLocked(signalLevel, elapsedRealtime, uptime);
                 }
@@ -1246,7 +1413,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
             final long currentTime = System.currentTimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 if (DBG) Slog.d(TAG, "begin noteScreenState");
                 synchronized (mStats) {
                     mStats.noteScreenStateLocked(0, state, elapsedRealtime, uptime, currentTime);
@@ -1262,7 +1429,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteScreenBrightnessLocked(0, brightness, elapsedRealtime, uptime);
                 }
@@ -1276,7 +1443,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteUserActivityLocked(uid, event, elapsedRealtime, uptime);
                 }
@@ -1289,7 +1456,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWakeUpLocked(reason, reasonUid, elapsedRealtime, uptime);
                 }
@@ -1301,7 +1468,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteInteractiveLocked(interactive, elapsedRealtime);
                 }
@@ -1314,7 +1481,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteConnectivityChangedLocked(type, extra, elapsedRealtime, uptime);
                 }
@@ -1328,7 +1495,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 final boolean update;
                 synchronized (mStats) {
                     // Ignore if no power state change.
@@ -1353,7 +1520,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneOnLocked(elapsedRealtime, uptime);
                 }
@@ -1366,7 +1533,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneOffLocked(elapsedRealtime, uptime);
                 }
@@ -1379,7 +1546,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneSignalStrengthLocked(signalStrength, elapsedRealtime, uptime);
                 }
@@ -1393,7 +1560,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneDataConnectionStateLocked(dataType, hasData, serviceType,
                             nrFrequency, elapsedRealtime, uptime);
@@ -1407,7 +1574,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 int simState = mContext.getSystemService(TelephonyManager.class).getSimState();
                 synchronized (mStats) {
                     mStats.notePhoneStateLocked(state, simState, elapsedRealtime, uptime);
@@ -1421,7 +1588,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiOnLocked(elapsedRealtime, uptime);
                 }
@@ -1436,7 +1603,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiOffLocked(elapsedRealtime, uptime);
                 }
@@ -1451,7 +1618,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteAudioOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1466,7 +1633,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteAudioOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1481,7 +1648,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteVideoOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1496,7 +1663,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteVideoOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1511,7 +1678,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteResetAudioLocked(elapsedRealtime, uptime);
                 }
@@ -1526,7 +1693,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteResetVideoLocked(elapsedRealtime, uptime);
                 }
@@ -1541,7 +1708,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFlashlightOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1556,7 +1723,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFlashlightOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1572,7 +1739,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteCameraOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1588,7 +1755,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteCameraOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1603,7 +1770,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteResetCameraLocked(elapsedRealtime, uptime);
                 }
@@ -1618,7 +1785,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteResetFlashlightLocked(elapsedRealtime, uptime);
                 }
@@ -1634,7 +1801,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 // There was a change in WiFi power state.
                 // Collect data now for the past activity.
                 synchronized (mStats) {
@@ -1665,7 +1832,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRunningLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1683,7 +1850,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRunningChangedLocked(
                             localOldWs, localNewWs, elapsedRealtime, uptime);
@@ -1702,7 +1869,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiStoppedLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1716,7 +1883,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiStateLocked(wifiState, accessPoint, elapsedRealtime);
                 }
@@ -1729,7 +1896,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth,
                             elapsedRealtime, uptime);
@@ -1743,7 +1910,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRssiChangedLocked(newRssi, elapsedRealtime, uptime);
                 }
@@ -1756,7 +1923,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockAcquiredLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1769,7 +1936,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockReleasedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1782,7 +1949,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStartedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1795,7 +1962,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStoppedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1808,7 +1975,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiMulticastEnabledLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1821,7 +1988,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiMulticastDisabledLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1835,7 +2002,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockAcquiredFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1850,7 +2017,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockReleasedFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1865,7 +2032,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStartedFromSourceLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1879,7 +2046,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStoppedFromSourceLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1893,7 +2060,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiBatchedScanStartedFromSourceLocked(localWs, csph,
                             elapsedRealtime, uptime);
@@ -1908,7 +2075,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiBatchedScanStoppedFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1921,7 +2088,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteNetworkInterfaceForTransports(final String iface, int[] transportTypes) {
         PermissionUtils.enforceNetworkStackPermission(mContext);
         synchronized (mLock) {
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 mStats.noteNetworkInterfaceForTransports(iface, transportTypes);
             });
         }
@@ -1935,7 +2102,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         // snapshot for future delta calculation.
         synchronized (mLock) {
             // Still schedule it on the handler to make sure we have existing pending works done
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 mWorker.scheduleSync("network-stats-enabled",
                         BatteryExternalStatsWorker.UPDATE_RADIO
                         | BatteryExternalStatsWorker.UPDATE_WIFI);
@@ -1949,7 +2116,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid,
                             elapsedRealtime, uptime);
@@ -1963,7 +2130,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePackageInstalledLocked(pkgName, versionCode,
                             elapsedRealtime, uptime);
@@ -1977,7 +2144,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.notePackageUninstalledLocked(pkgName, elapsedRealtime, uptime);
                 }
@@ -1992,7 +2159,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanStartedFromSourceLocked(localWs, isUnoptimized,
                             elapsedRealtime, uptime);
@@ -2008,7 +2175,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanStoppedFromSourceLocked(localWs, isUnoptimized,
                             elapsedRealtime, uptime);
@@ -2023,7 +2190,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteResetBluetoothScanLocked(elapsedRealtime, uptime);
                 }
@@ -2038,7 +2205,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanResultsFromSourceLocked(localWs, numNewResults,
                             elapsedRealtime, uptime);
@@ -2061,7 +2228,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long uptime = SystemClock.uptimeMillis();
             final NetworkStatsManager networkStatsManager = mContext.getSystemService(
                     NetworkStatsManager.class);
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 mStats.updateWifiState(info, POWER_DATA_UNAVAILABLE, elapsedRealtime, uptime,
                         networkStatsManager);
             });
@@ -2079,7 +2246,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.updateBluetoothStateLocked(
                             info, POWER_DATA_UNAVAILABLE, elapsedRealtime, uptime);
@@ -2102,7 +2269,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long uptime = SystemClock.uptimeMillis();
             final NetworkStatsManager networkStatsManager = mContext.getSystemService(
                     NetworkStatsManager.class);
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 mStats.noteModemControllerActivity(info, POWER_DATA_UNAVAILABLE, elapsedRealtime,
                         uptime, networkStatsManager);
             });
@@ -2125,7 +2292,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long currentTime = System.currentTimeMillis();
             // We still schedule this task over the handler thread to make sure we've had
             // all existing pending work handled before setting the battery state
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 // BatteryService calls us here and we may update external state. It would be wrong
                 // to block such a low level service like BatteryService on external stats like WiFi
                 mWorker.scheduleRunnable(() -> {
@@ -2264,6 +2431,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         pw.println("  --read-daily: read-load last written daily stats.");
         pw.println("  --settings: dump the settings key/values related to batterystats");
         pw.println("  --cpu: dump cpu stats for debugging purpose");
+        pw.println("  --external-stats: dump the cost of collecting the external stats");
         pw.println("  --power-profile: dump the power profile constants");
         pw.println("  --usage: write battery usage stats. Optional arguments:");
         pw.println("     --proto: output as a binary protobuffer");
@@ -2484,6 +2652,9 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 } else if ("--cpu".equals(arg)) {
                     dumpCpuStats(pw);
                     return;
+                } else if ("--external-stats".equals(arg)) {
+                    mWorker.dump(pw);
+                    return;
                 } else  if ("--measured-energy".equals(arg)) {
                     dumpMeasuredEnergyStats(pw);
                     return;
@@ -2855,7 +3026,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 if (!isOnBattery()) {
                     return;
                 }
@@ -2875,7 +3046,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long currentTime = System.currentTimeMillis();
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteCurrentTimeChangedLocked(currentTime, elapsedRealtime, uptime);
                 }
@@ -2888,7 +3059,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     if (resumed) {
                         mStats.noteActivityResumedLocked(uid, elapsedRealtime, uptime);
@@ -2907,7 +3078,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void noteProcessDied(final int uid, final int pid) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessDiedLocked(uid, pid);
                 }
@@ -2918,7 +3089,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void reportExcessiveCpu(final int uid, final String processName, final long uptimeSince,
             long cputimeUsed) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     mStats.reportExcessiveCpuLocked(uid, processName, uptimeSince, cputimeUsed);
                 }
@@ -2930,7 +3101,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2944,7 +3115,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2958,7 +3129,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2972,7 +3143,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            mEventRing.post(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
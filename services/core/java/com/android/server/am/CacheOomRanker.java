@@ -67,6 +67,15 @@ public class CacheOomRanker {
     static final String KEY_OOM_RE_RANKING_RSS_WEIGHT = "oom_re_ranking_rss_weight";
     @VisibleForTesting
     static final float DEFAULT_OOM_RE_RANKING_RSS_WEIGHT = 0.15f;
+    @VisibleForTesting
+    static final String KEY_OOM_RE_RANKING_START_COST_WEIGHT =
+            "oom_re_ranking_start_cost_weight";
+    @VisibleForTesting
+    static final float DEFAULT_OOM_RE_RANKING_START_COST_WEIGHT = 0.0f;
+    @VisibleForTesting
+    static final String KEY_OOM_RE_RANKING_THRASH_WEIGHT = "oom_re_ranking_thrash_weight";
+    @VisibleForTesting
+    static final float DEFAULT_OOM_RE_RANKING_THRASH_WEIGHT = 0.0f;
 
     private static final Comparator<RankedProcessRecord> SCORED_PROCESS_RECORD_COMPARATOR =
             new ScoreComparator();
@@ -74,10 +83,12 @@ public class CacheOomRanker {
             new CacheUseComparator();
     private static final Comparator<RankedProcessRecord> RSS_COMPARATOR =
             new RssComparator();
-    private static final Comparator<RankedProcessRecord> LAST_RSS_COMPARATOR =
-            new LastRssComparator();
     private static final Comparator<RankedProcessRecord> LAST_ACTIVITY_TIME_COMPARATOR =
             new LastActivityTimeComparator();
+    private static final Comparator<RankedProcessRecord> START_COST_COMPARATOR =
+            new StartCostComparator();
+    private static final Comparator<RankedProcessRecord> THRASH_COMPARATOR =
+            new ThrashComparator();
 
     private final Object mPhenotypeFlagLock = new Object();
 
@@ -109,6 +120,16 @@ public class CacheOomRanker {
     @GuardedBy("mPhenotypeFlagLock")
     @VisibleForTesting
     float mRssWeight = DEFAULT_OOM_RE_RANKING_RSS_WEIGHT;
+    // Weight to apply to the ordering by how long the process took to start, so processes that
+    // are expensive to relaunch are kept in the cache longer.
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting
+    float mStartCostWeight = DEFAULT_OOM_RE_RANKING_START_COST_WEIGHT;
+    // Weight to apply to the ordering by how often the process has recently been relaunched
+    // right after being killed by lmkd, see LmkdKillStats.
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting
+    float mThrashWeight = DEFAULT_OOM_RE_RANKING_THRASH_WEIGHT;
 
     // Positions to replace in the lru list.
     @GuardedBy("mPhenotypeFlagLock")
@@ -139,6 +160,10 @@ public class CacheOomRanker {
                                 updateUsesWeight();
                             } else if (KEY_OOM_RE_RANKING_RSS_WEIGHT.equals(name)) {
                                 updateRssWeight();
+                            } else if (KEY_OOM_RE_RANKING_START_COST_WEIGHT.equals(name)) {
+                                updateStartCostWeight();
+                            } else if (KEY_OOM_RE_RANKING_THRASH_WEIGHT.equals(name)) {
+                                updateThrashWeight();
                             }
                         }
                     }
@@ -167,6 +192,8 @@ public class CacheOomRanker {
             updateLruWeight();
             updateUsesWeight();
             updateRssWeight();
+            updateStartCostWeight();
+            updateThrashWeight();
         }
     }
 
@@ -248,9 +275,23 @@ public class CacheOomRanker {
                 KEY_OOM_RE_RANKING_RSS_WEIGHT, DEFAULT_OOM_RE_RANKING_RSS_WEIGHT);
     }
 
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateStartCostWeight() {
+        mStartCostWeight = DeviceConfig.getFloat(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_OOM_RE_RANKING_START_COST_WEIGHT, DEFAULT_OOM_RE_RANKING_START_COST_WEIGHT);
+    }
+
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateThrashWeight() {
+        mThrashWeight = DeviceConfig.getFloat(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_OOM_RE_RANKING_THRASH_WEIGHT, DEFAULT_OOM_RE_RANKING_THRASH_WEIGHT);
+    }
+
     /**
      * Re-rank the cached processes in the lru list with a weighted ordering
-     * of lru, rss size and number of times the process has been put in the cache.
+     * of lru, rss size, number of times the process has been put in the cache,
+     * how long the process took to start and how often it was recently relaunched
+     * after an lmkd kill.
      */
     @GuardedBy({"mService", "mProcLock"})
     void reRankLruCachedAppsLSP(ArrayList<ProcessRecord> lruList, int lruProcessServiceStart) {
@@ -284,6 +325,8 @@ public class CacheOomRanker {
         float lruWeight;
         float usesWeight;
         float rssWeight;
+        float startCostWeight;
+        float thrashWeight;
         int preserveTopNApps;
         boolean useFrequentRss;
         long rssUpdateRateMs;
@@ -294,6 +337,8 @@ public class CacheOomRanker {
             lruWeight = mLruWeight;
             usesWeight = mUsesWeight;
             rssWeight = mRssWeight;
+            startCostWeight = mStartCostWeight;
+            thrashWeight = mThrashWeight;
             preserveTopNApps = mPreserveTopNApps;
             useFrequentRss = mUseFrequentRss;
             rssUpdateRateMs = mRssUpdateRateMs;
@@ -315,8 +360,7 @@ public class CacheOomRanker {
             ProcessRecord process = lruList.get(numProcessesEvaluated);
             // Processes that will be assigned a cached oom adj score.
             if (appCanBeReRanked(process)) {
-                scoredProcessRecords[numProcessesReRanked].proc = process;
-                scoredProcessRecords[numProcessesReRanked].score = 0.0f;
+                scoredProcessRecords[numProcessesReRanked].set(process);
                 lruPositions[numProcessesReRanked] = numProcessesEvaluated;
                 ++numProcessesReRanked;
             }
@@ -366,6 +410,18 @@ public class CacheOomRanker {
                 scoredProcessRecord.proc.mState.setCacheOomRankerRss(rss[0], nowMs);
                 scoredProcessRecord.proc.mProfile.setLastRss(rss[0]);
             }
+            for (int i = 0; i < numProcessesReRanked; ++i) {
+                scoredProcessRecords[i].rss = scoredProcessRecords[i].proc.mState
+                        .getCacheOomRankerRss();
+            }
+        } else if (rssWeight > 0.0f) {
+            // Read the last RSS values once, rather than holding the profiler lock while sorting.
+            synchronized (mProfilerLock) {
+                for (int i = 0; i < numProcessesReRanked; ++i) {
+                    scoredProcessRecords[i].rss = scoredProcessRecords[i].proc.mProfile
+                            .getLastRss();
+                }
+            }
         }
 
         // Add scores for each of the weighted features we want to rank based on.
@@ -377,19 +433,28 @@ public class CacheOomRanker {
             addToScore(scoredProcessRecords, lruWeight);
         }
         if (rssWeight > 0.0f) {
-            if (useFrequentRss) {
-                Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, RSS_COMPARATOR);
-            } else {
-                synchronized (mService.mAppProfiler.mProfilerLock) {
-                    Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, LAST_RSS_COMPARATOR);
-                }
-            }
+            Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, RSS_COMPARATOR);
             addToScore(scoredProcessRecords, rssWeight);
         }
         if (usesWeight > 0.0f) {
             Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, CACHE_USE_COMPARATOR);
             addToScore(scoredProcessRecords, usesWeight);
         }
+        if (startCostWeight > 0.0f) {
+            Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, START_COST_COMPARATOR);
+            addToScore(scoredProcessRecords, startCostWeight);
+        }
+        if (thrashWeight > 0.0f) {
+            final LmkdKillStats killStats = mService.mProcessList.mLmkdKillStats;
+            final long nowElapsed = SystemClock.elapsedRealtime();
+            for (int i = 0; i < numProcessesReRanked; ++i) {
+                final ProcessRecord proc = scoredProcessRecords[i].proc;
+                scoredProcessRecords[i].thrashScore =
+                        killStats.getThrashScore(proc.info.packageName, proc.uid, nowElapsed);
+            }
+            Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked, THRASH_COMPARATOR);
+            addToScore(scoredProcessRecords, thrashWeight);
+        }
 
         // Re-rank by the new combined score.
         Arrays.sort(scoredProcessRecords, 0, numProcessesReRanked,
@@ -412,7 +477,7 @@ public class CacheOomRanker {
 
         for (int i = 0; i < numProcessesReRanked; ++i) {
             lruList.set(lruPositions[i], scoredProcessRecords[i].proc);
-            scoredProcessRecords[i].proc = null;
+            scoredProcessRecords[i].clear();
         }
     }
 
@@ -436,6 +501,8 @@ public class CacheOomRanker {
             pw.println("  " + KEY_OOM_RE_RANKING_LRU_WEIGHT + "=" + mLruWeight);
             pw.println("  " + KEY_OOM_RE_RANKING_USES_WEIGHT + "=" + mUsesWeight);
             pw.println("  " + KEY_OOM_RE_RANKING_RSS_WEIGHT + "=" + mRssWeight);
+            pw.println("  " + KEY_OOM_RE_RANKING_START_COST_WEIGHT + "=" + mStartCostWeight);
+            pw.println("  " + KEY_OOM_RE_RANKING_THRASH_WEIGHT + "=" + mThrashWeight);
         }
     }
 
@@ -449,15 +516,14 @@ public class CacheOomRanker {
     private static class LastActivityTimeComparator implements Comparator<RankedProcessRecord> {
         @Override
         public int compare(RankedProcessRecord o1, RankedProcessRecord o2) {
-            return Long.compare(o1.proc.getLastActivityTime(), o2.proc.getLastActivityTime());
+            return Long.compare(o1.lastActivityTime, o2.lastActivityTime);
         }
     }
 
     private static class CacheUseComparator implements Comparator<RankedProcessRecord> {
         @Override
         public int compare(RankedProcessRecord o1, RankedProcessRecord o2) {
-            return Long.compare(o1.proc.mState.getCacheOomRankerUseCount(),
-                    o2.proc.mState.getCacheOomRankerUseCount());
+            return Long.compare(o1.useCount, o2.useCount);
         }
     }
 
@@ -465,23 +531,52 @@ public class CacheOomRanker {
         @Override
         public int compare(RankedProcessRecord o1, RankedProcessRecord o2) {
             // High RSS first to match least recently used.
-            return Long.compare(
-                    o2.proc.mState.getCacheOomRankerRss(),
-                    o1.proc.mState.getCacheOomRankerRss());
+            return Long.compare(o2.rss, o1.rss);
         }
     }
 
-    private static class LastRssComparator implements Comparator<RankedProcessRecord> {
+    private static class StartCostComparator implements Comparator<RankedProcessRecord> {
         @Override
         public int compare(RankedProcessRecord o1, RankedProcessRecord o2) {
-            // High RSS first to match least recently used.
-            return Long.compare(o2.proc.mProfile.getLastRss(), o1.proc.mProfile.getLastRss());
+            // Cheap to start first to match least recently used.
+            return Long.compare(o1.startCostMs, o2.startCostMs);
         }
     }
 
+    private static class ThrashComparator implements Comparator<RankedProcessRecord> {
+        @Override
+        public int compare(RankedProcessRecord o1, RankedProcessRecord o2) {
+            // Rarely relaunched first to match least recently used.
+            return Integer.compare(o1.thrashScore, o2.thrashScore);
+        }
+    }
+
+    /**
+     * A candidate for re-ranking. The sort keys are captured once when the candidate is
+     * collected, so that each of the weighted sorts compares plain fields.
+     */
     private static class RankedProcessRecord {
         public ProcessRecord proc;
         public float score;
+        public long lastActivityTime;
+        public int useCount;
+        public long rss;
+        public long startCostMs;
+        public int thrashScore;
+
+        void set(ProcessRecord process) {
+            proc = process;
+            score = 0.0f;
+            lastActivityTime = process.getLastActivityTime();
+            useCount = process.mState.getCacheOomRankerUseCount();
+            rss = 0;
+            startCostMs = process.mState.getCacheOomRankerStartCostMs();
+            thrashScore = 0;
+        }
+
+        void clear() {
+            proc = null;
+        }
     }
 
     /**
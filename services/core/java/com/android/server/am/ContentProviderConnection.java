@@ -25,10 +25,12 @@ import android.os.SystemClock;
 import android.util.Slog;
 import android.util.TimeUtils;
 
-import com.android.internal.annotations.GuardedBy;
 import com.android.internal.app.procstats.AssociationState;
 import com.android.internal.app.procstats.ProcessStats;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a link between a content provider and client.
  */
@@ -41,27 +43,30 @@ public final class ContentProviderConnection extends Binder {
     private Object mProcStatsLock;  // Internal lock for accessing AssociationState
 
     /**
-     * Internal lock that guards access to the two counters.
+     * The stable reference count in the upper 32 bits and the unstable one in the lower 32 bits,
+     * so that clients can add and drop references without any lock; see {@link #pack}.
      */
-    private final Object mLock = new Object();
-    @GuardedBy("mLock")
-    private int mStableCount;
-    @GuardedBy("mLock")
-    private int mUnstableCount;
+    private final AtomicLong mCounts = new AtomicLong();
     // The client of this connection is currently waiting for the provider to appear.
     // Protected by the provider lock.
     public boolean waiting;
-    // The provider of this connection is now dead.
-    public boolean dead;
+    // The provider of this connection is now dead. Set with the global lock held, but volatile,
+    // as the lock-free acquisitions check it after taking their reference, while the death path
+    // checks the references after setting it; so either of them sees what the other did.
+    public volatile boolean dead;
 
     // The original user id when this connection was requested, it could be different from
     // the client's user id because the client could request to access a content provider
     // living in a different user if it has the permission.
     @UserIdInt final int mExpectedUserId;
 
+    // The last time the client acquired the provider through the global lock, which also reports
+    // the usage of the provider.
+    private volatile long mLastLockedAcquireTime;
+
     // For debugging.
-    private int mNumStableIncs;
-    private int mNumUnstableIncs;
+    private final AtomicInteger mNumStableIncs = new AtomicInteger();
+    private final AtomicInteger mNumUnstableIncs = new AtomicInteger();
 
     public ContentProviderConnection(ContentProviderRecord _provider, ProcessRecord _client,
             String _clientPackage, @UserIdInt int _expectedUserId) {
@@ -146,16 +151,15 @@ public final class ContentProviderConnection extends Binder {
 
     public void toClientString(StringBuilder sb) {
         sb.append(client.toShortString());
-        synchronized (mLock) {
-            sb.append(" s");
-            sb.append(mStableCount);
-            sb.append("/");
-            sb.append(mNumStableIncs);
-            sb.append(" u");
-            sb.append(mUnstableCount);
-            sb.append("/");
-            sb.append(mNumUnstableIncs);
-        }
+        final long counts = mCounts.get();
+        sb.append(" s");
+        sb.append(stableOf(counts));
+        sb.append("/");
+        sb.append(mNumStableIncs.get());
+        sb.append(" u");
+        sb.append(unstableOf(counts));
+        sb.append("/");
+        sb.append(mNumUnstableIncs.get());
         if (waiting) {
             sb.append(" WAITING");
         }
@@ -167,24 +171,43 @@ public final class ContentProviderConnection extends Binder {
         TimeUtils.formatDuration(nowReal-createTime, sb);
     }
 
+    private static long pack(int stable, int unstable) {
+        return ((long) stable << 32) | (unstable & 0xffffffffL);
+    }
+
+    private static int stableOf(long counts) {
+        return (int) (counts >> 32);
+    }
+
+    private static int unstableOf(long counts) {
+        return (int) counts;
+    }
+
+    private static int totalOf(long counts) {
+        return stableOf(counts) + unstableOf(counts);
+    }
+
+    private static long unit(boolean stable) {
+        return stable ? 1L << 32 : 1L;
+    }
+
+    private void logCountChange(String what, long counts) {
+        final ContentProviderRecord cpr = provider;
+        Slog.v(TAG_AM,
+               what + " provider requested by "
+               + client.processName + " from process "
+               + cpr.info.processName + ": " + cpr.name.flattenToShortString()
+               + " scnt=" + stableOf(counts) + " uscnt=" + unstableOf(counts));
+    }
+
     /**
      * Initializes the reference counts.  Either the stable or unstable count
      * is set to 1; the other reference count is set to zero.
      */
     public void initializeCount(boolean stable) {
-        synchronized (mLock) {
-            if (stable) {
-                mStableCount = 1;
-                mNumStableIncs = 1;
-                mUnstableCount = 0;
-                mNumUnstableIncs = 0;
-            } else {
-                mStableCount = 0;
-                mNumStableIncs = 0;
-                mUnstableCount = 1;
-                mNumUnstableIncs = 1;
-            }
-        }
+        mCounts.set(unit(stable));
+        mNumStableIncs.set(stable ? 1 : 0);
+        mNumUnstableIncs.set(stable ? 0 : 1);
     }
 
     /**
@@ -192,24 +215,39 @@ public final class ContentProviderConnection extends Binder {
      * number of references.
      */
     public int incrementCount(boolean stable) {
-        synchronized (mLock) {
-            if (DEBUG_PROVIDER) {
-                final ContentProviderRecord cpr = provider;
-                Slog.v(TAG_AM,
-                       "Adding provider requested by "
-                       + client.processName + " from process "
-                       + cpr.info.processName + ": " + cpr.name.flattenToShortString()
-                       + " scnt=" + mStableCount + " uscnt=" + mUnstableCount);
-            }
-            if (stable) {
-                mStableCount++;
-                mNumStableIncs++;
-            } else {
-                mUnstableCount++;
-                mNumUnstableIncs++;
-            }
-            return mStableCount + mUnstableCount;
+        final long counts = mCounts.addAndGet(unit(stable));
+        if (DEBUG_PROVIDER) {
+            logCountChange("Adding", counts);
         }
+        (stable ? mNumStableIncs : mNumUnstableIncs).incrementAndGet();
+        return totalOf(counts);
+    }
+
+    /**
+     * Increments the stable or unstable reference count only if it is already
+     * positive, so that the connection can't come back to life after its last
+     * reference of that kind was released.
+     *
+     * @return Whether the count was incremented.
+     */
+    boolean incrementCountIfHeld(boolean stable) {
+        long counts;
+        do {
+            counts = mCounts.get();
+            if ((stable ? stableOf(counts) : unstableOf(counts)) <= 0) {
+                return false;
+            }
+        } while (!mCounts.compareAndSet(counts, counts + unit(stable)));
+        (stable ? mNumStableIncs : mNumUnstableIncs).incrementAndGet();
+        return true;
+    }
+
+    long getLastLockedAcquireTime() {
+        return mLastLockedAcquireTime;
+    }
+
+    void setLastLockedAcquireTime(long elapsedRealtime) {
+        mLastLockedAcquireTime = elapsedRealtime;
     }
 
     /**
@@ -217,22 +255,33 @@ public final class ContentProviderConnection extends Binder {
      * number of references.
      */
     public int decrementCount(boolean stable) {
-        synchronized (mLock) {
-            if (DEBUG_PROVIDER) {
-                final ContentProviderRecord cpr = provider;
-                Slog.v(TAG_AM,
-                       "Removing provider requested by "
-                       + client.processName + " from process "
-                       + cpr.info.processName + ": " + cpr.name.flattenToShortString()
-                       + " scnt=" + mStableCount + " uscnt=" + mUnstableCount);
-            }
-            if (stable) {
-                mStableCount--;
-            } else {
-                mUnstableCount--;
+        final long counts = mCounts.addAndGet(-unit(stable));
+        if (DEBUG_PROVIDER) {
+            logCountChange("Removing", counts);
+        }
+        return totalOf(counts);
+    }
+
+    /**
+     * Decrements either the stable or unstable count, unless this would drop
+     * the last reference of the connection, which needs the connection to be
+     * torn down under the global lock.
+     *
+     * @return Whether the count was decremented.
+     */
+    boolean decrementCountIfNotLast(boolean stable) {
+        long counts;
+        do {
+            counts = mCounts.get();
+            if (totalOf(counts) <= 1
+                    || (stable ? stableOf(counts) : unstableOf(counts)) <= 0) {
+                return false;
             }
-            return mStableCount + mUnstableCount;
+        } while (!mCounts.compareAndSet(counts, counts - unit(stable)));
+        if (DEBUG_PROVIDER) {
+            logCountChange("Removing", counts - unit(stable));
         }
+        return true;
     }
 
     /**
@@ -241,18 +290,15 @@ public final class ContentProviderConnection extends Binder {
      * a return is not needed for the current use case.
     */
     public void adjustCounts(int stableIncrement, int unstableIncrement) {
-        synchronized (mLock) {
-            if (stableIncrement > 0) {
-                mNumStableIncs += stableIncrement;
-            }
-            final int stable = mStableCount + stableIncrement;
+        long counts;
+        long newCounts;
+        do {
+            counts = mCounts.get();
+            final int stable = stableOf(counts) + stableIncrement;
             if (stable < 0) {
                 throw new IllegalStateException("stableCount < 0: " + stable);
             }
-            if (unstableIncrement > 0) {
-                mNumUnstableIncs += unstableIncrement;
-            }
-            final int unstable = mUnstableCount + unstableIncrement;
+            final int unstable = unstableOf(counts) + unstableIncrement;
             if (unstable < 0) {
                 throw new IllegalStateException("unstableCount < 0: " + unstable);
             }
@@ -260,8 +306,13 @@ public final class ContentProviderConnection extends Binder {
                 throw new IllegalStateException("ref counts can't go to zero here: stable="
                                                 + stable + " unstable=" + unstable);
             }
-            mStableCount = stable;
-            mUnstableCount = unstable;
+            newCounts = pack(stable, unstable);
+        } while (!mCounts.compareAndSet(counts, newCounts));
+        if (stableIncrement > 0) {
+            mNumStableIncs.addAndGet(stableIncrement);
+        }
+        if (unstableIncrement > 0) {
+            mNumUnstableIncs.addAndGet(unstableIncrement);
         }
     }
 
@@ -269,26 +320,20 @@ public final class ContentProviderConnection extends Binder {
      * Returns the number of stable references.
      */
     public int stableCount() {
-        synchronized (mLock) {
-            return mStableCount;
-        }
+        return stableOf(mCounts.get());
     }
 
     /**
      * Returns the number of unstable references.
      */
     public int unstableCount() {
-        synchronized (mLock) {
-            return mUnstableCount;
-        }
+        return unstableOf(mCounts.get());
     }
 
     /**
      * Returns the total number of stable and unstable references.
      */
     int totalRefCount() {
-        synchronized (mLock) {
-            return mStableCount + mUnstableCount;
-        }
+        return totalOf(mCounts.get());
     }
 }
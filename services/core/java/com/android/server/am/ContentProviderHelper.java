@@ -88,6 +88,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Activity manager code dealing with content providers.
@@ -106,6 +107,14 @@ public class ContentProviderHelper {
     private final ProviderMap mProviderMap;
     private boolean mSystemProvidersInstalled;
 
+    /**
+     * How often a foreground client reacquiring a provider it's already connected to goes
+     * through the global lock anyway, to get the usage of the provider reported.
+     */
+    private static final long PROVIDER_USAGE_REPORT_INTERVAL_MS = 60 * 1000L;
+
+    private final AtomicLong mNumFastProviderAcquisitions = new AtomicLong();
+
     ContentProviderHelper(ActivityManagerService service, boolean createProviderMap) {
         mService = service;
         mProviderMap = createProviderMap ? new ProviderMap(mService) : null;
@@ -163,6 +172,13 @@ public class ContentProviderHelper {
     private ContentProviderHolder getContentProviderImpl(IApplicationThread caller,
             String name, IBinder token, int callingUid, String callingPackage, String callingTag,
             boolean stable, int userId) {
+        if (caller != null) {
+            final ContentProviderHolder holder = getConnectedContentProvider(caller, name,
+                    callingUid, stable, userId);
+            if (holder != null) {
+                return holder;
+            }
+        }
         ContentProviderRecord cpr = null;
         ContentProviderConnection conn = null;
         ProviderInfo cpi = null;
@@ -299,6 +315,9 @@ public class ContentProviderHelper {
                         success = false;
                     }
                     maybeUpdateProviderUsageStatsLocked(r, cpr.info.packageName, name);
+                    if (conn != null) {
+                        conn.setLastLockedAcquireTime(SystemClock.elapsedRealtime());
+                    }
                     checkTime(startTime, "getContentProviderImpl: after updateOomAdj");
                     if (ActivityManagerDebugConfig.DEBUG_PROVIDER) {
                         Slog.i(TAG, "Adjust success: " + success);
@@ -327,6 +346,9 @@ public class ContentProviderHelper {
                         dyingProc = cpr.proc;
                     } else {
                         cpr.proc.mState.setVerifiedAdj(cpr.proc.mState.getSetAdj());
+                        if (conn != null && checkCrossUser) {
+                            r.mProviders.notePublishedConnectionLocked(name, conn);
+                        }
                         FrameworkStatsLog.write(
                                 PROVIDER_ACQUISITION_EVENT_REPORTED,
                                 cpr.proc.uid, callingUid,
@@ -648,6 +670,63 @@ public class ContentProviderHelper {
         return cpr.newHolder(conn, false);
     }
 
+    /**
+     * Hands out a published provider the calling process already holds a reference of the same
+     * kind on, without taking the global lock. The association, instant app and oom adj work was
+     * done when the connection was made and an extra reference doesn't change any of it, so only
+     * the permissions are checked again.
+     *
+     * @return The holder, or null if the caller has to go through the regular path.
+     */
+    private ContentProviderHolder getConnectedContentProvider(IApplicationThread caller,
+            String name, int callingUid, boolean stable, int userId) {
+        final int callingPid = Binder.getCallingPid();
+        final ProcessRecord r;
+        synchronized (mService.mPidsSelfLocked) {
+            r = mService.mPidsSelfLocked.get(callingPid);
+        }
+        if (r == null) {
+            return null;
+        }
+        final IApplicationThread thread = r.getThread();
+        if (thread == null || thread.asBinder() != caller.asBinder()) {
+            return null;
+        }
+        final ContentProviderConnection conn = r.mProviders.getPublishedConnection(name, userId);
+        if (conn == null) {
+            return null;
+        }
+        final ContentProviderRecord cpr = conn.provider;
+        final ProcessRecord proc = cpr.proc;
+        if (conn.dead || cpr.provider == null || proc == null || proc.isKilled()) {
+            return null;
+        }
+        if (r.mState.getCurProcState() <= ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND
+                && SystemClock.elapsedRealtime() - conn.getLastLockedAcquireTime()
+                        >= PROVIDER_USAGE_REPORT_INTERVAL_MS) {
+            return null;
+        }
+        // Leave it to the regular path to throw if the permission is gone.
+        if (checkContentProviderPermission(cpr.info, callingPid, callingUid, userId, true,
+                r.toString()) != null) {
+            return null;
+        }
+        if (!conn.incrementCountIfHeld(stable)) {
+            return null;
+        }
+        if (conn.dead) {
+            // Raced with the death of the provider, let the regular path sort it out.
+            conn.decrementCount(stable);
+            return null;
+        }
+        mNumFastProviderAcquisitions.incrementAndGet();
+        FrameworkStatsLog.write(
+                PROVIDER_ACQUISITION_EVENT_REPORTED,
+                proc.uid, callingUid,
+                PROVIDER_ACQUISITION_EVENT_REPORTED__PROC_START_TYPE__PROCESS_START_TYPE_WARM);
+        return cpr.newHolder(conn, false);
+    }
+
     private void checkAssociationAndPermissionLocked(ProcessRecord callingApp, ProviderInfo cpi,
             int callingUid, int userId, boolean checkUser, String cprName, long startTime) {
         String msg;
@@ -741,6 +820,11 @@ public class ContentProviderHelper {
 
             // update the app's oom adj value and each provider's usage stats
             if (providersPublished) {
+                final ProcessStartProfiler.Sample startSample = r.getStartSample();
+                if (startSample != null) {
+                    mService.mProcessList.mStartProfiler.noteProvidersPublished(startSample,
+                            SystemClock.uptimeMillis());
+                }
                 mService.updateOomAdjLocked(r, OomAdjuster.OOM_ADJ_REASON_GET_PROVIDER);
                 for (int i = 0, size = providers.size(); i < size; i++) {
                     ContentProviderHolder src = providers.get(i);
@@ -780,8 +864,11 @@ public class ContentProviderHelper {
                     (conn.provider != null && conn.provider.info != null
                     ? conn.provider.info.authority : ""));
             try {
-                synchronized (mService) {
-                    decProviderCountLocked(conn, null, null, stable, true, true);
+                // Only the last reference of the connection needs it torn down under the lock.
+                if (!conn.decrementCountIfNotLast(stable)) {
+                    synchronized (mService) {
+                        decProviderCountLocked(conn, null, null, stable, true, true);
+                    }
                 }
             } finally {
                 Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
@@ -875,9 +962,10 @@ public class ContentProviderHelper {
                 ? conn.provider.info.authority : ""));
 
         try {
-            // Safely retrieve the content provider associated with the connection.
+            // Safely retrieve the content provider associated with the connection; it's published
+            // under the lock of its record, and re-checked under the global lock below.
             IContentProvider provider;
-            synchronized (mService) {
+            synchronized (conn.provider) {
                 provider = conn.provider.provider;
             }
 
@@ -889,11 +977,9 @@ public class ContentProviderHelper {
             // Make sure the caller is being honest with us.
             if (provider.asBinder().pingBinder()) {
                 // Er, no, still looks good to us.
-                synchronized (mService) {
-                    Slog.w(TAG, "unstableProviderDied: caller " + Binder.getCallingUid()
-                            + " says " + conn + " died, but we don't agree");
-                    return;
-                }
+                Slog.w(TAG, "unstableProviderDied: caller " + Binder.getCallingUid()
+                        + " says " + conn + " died, but we don't agree");
+                return;
             }
 
             // Well look at that!  It's dead!
@@ -1441,8 +1527,7 @@ public class ContentProviderHelper {
             return false;
         }
 
-        if (conn.totalRefCount() > 1) {
-            conn.decrementCount(stable);
+        if (conn.decrementCountIfNotLast(stable)) {
             return false;
         }
         if (enforceDelay) {
@@ -1894,6 +1979,11 @@ public class ContentProviderHelper {
         if (!printedAnything) {
             pw.println("  (nothing)");
         }
+        if (dumpPackage == null) {
+            pw.println();
+            pw.print("  Lock-free reacquisitions of connected providers: ");
+            pw.println(mNumFastProviderAcquisitions.get());
+        }
     }
 
     /**
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * A double ended queue of event counts, i.e. one per time slot, backed by a circular buffer of
+ * their prefix sums; so that adding to the newest count, dropping the oldest ones and summing any
+ * range of them are all O(1), without any allocation once the buffer is large enough.
+ *
+ * <p>This class isn't thread safe.</p>
+ */
+final class EventCountRing {
+    @VisibleForTesting
+    static final int INITIAL_CAPACITY = 8;
+
+    /** The total of the counts from the first ever added one, up to and including each one. */
+    private long[] mSums;
+    private int mHead;
+    private int mSize;
+
+    /** The total of the counts which were dropped. */
+    private long mBase;
+
+    EventCountRing() {
+        mSums = new long[INITIAL_CAPACITY];
+    }
+
+    EventCountRing(@NonNull EventCountRing other) {
+        mSums = other.mSums.clone();
+        mHead = other.mHead;
+        mSize = other.mSize;
+        mBase = other.mBase;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+        mBase = 0;
+    }
+
+    /**
+     * Append a new count.
+     */
+    void addLast(int count) {
+        if (mSize == mSums.length) {
+            final long[] sums = new long[mSums.length * 2];
+            final int headLength = Math.min(mSize, mSums.length - mHead);
+            System.arraycopy(mSums, mHead, sums, 0, headLength);
+            System.arraycopy(mSums, 0, sums, headLength, mSize - headLength);
+            mSums = sums;
+            mHead = 0;
+        }
+        final long last = getSumBefore(mSize);
+        mSums[(mHead + mSize) % mSums.length] = last + count;
+        mSize++;
+    }
+
+    /**
+     * Add the given number to the newest count, which must exist.
+     */
+    void incrementLast(int delta) {
+        mSums[(mHead + mSize - 1) % mSums.length] += delta;
+    }
+
+    /**
+     * Drop the given number of the oldest counts, or all of them if there are fewer.
+     */
+    void removeFirst(int count) {
+        if (count >= mSize) {
+            clear();
+            return;
+        }
+        if (count <= 0) {
+            return;
+        }
+        mBase = mSums[(mHead + count - 1) % mSums.length];
+        mHead = (mHead + count) % mSums.length;
+        mSize -= count;
+    }
+
+    /**
+     * @return The count at the given position, the oldest one being at 0.
+     */
+    int get(int index) {
+        return (int) (getSumBefore(index + 1) - getSumBefore(index));
+    }
+
+    /**
+     * @return The total of the counts from the given position, inclusive, to the given position,
+     *         exclusive.
+     */
+    int sum(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(mSize, to);
+        return from < to ? (int) (getSumBefore(to) - getSumBefore(from)) : 0;
+    }
+
+    private long getSumBefore(int index) {
+        return index == 0 ? mBase : mSums[(mHead + index - 1) % mSums.length];
+    }
+}
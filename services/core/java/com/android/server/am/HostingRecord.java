@@ -88,6 +88,7 @@ public final class HostingRecord {
     public static final String HOSTING_TYPE_ON_HOLD = "on-hold";
     public static final String HOSTING_TYPE_NEXT_ACTIVITY = "next-activity";
     public static final String HOSTING_TYPE_NEXT_TOP_ACTIVITY = "next-top-activity";
+    public static final String HOSTING_TYPE_PRESTART = "prestart";
     public static final String HOSTING_TYPE_RESTART = "restart";
     public static final String HOSTING_TYPE_SERVICE = "service";
     public static final String HOSTING_TYPE_SYSTEM = "system";
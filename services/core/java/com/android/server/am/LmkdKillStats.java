@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.internal.app.procstats.ProcessStats.ADJ_MEM_FACTOR_COUNT;
+import static com.android.internal.app.procstats.ProcessStats.ADJ_SCREEN_MOD;
+
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Aggregates the processes killed by lmkd in rolling windows, and matches them against later
+ * starts of the same package, to find apps that are stuck in a kill/relaunch loop.
+ */
+final class LmkdKillStats {
+    /**
+     * Duration of one rolling window; kills are aggregated in the current and previous window.
+     */
+    @VisibleForTesting
+    static final long WINDOW_MS = 60 * 60 * 1000;
+
+    /**
+     * A start of the package within this duration after it was killed counts as a relaunch.
+     */
+    @VisibleForTesting
+    static final long RELAUNCH_THRESHOLD_MS = 5 * 60 * 1000;
+
+    /**
+     * How many recent relaunches of a package we remember, which also caps its thrash score.
+     */
+    private static final int MAX_RECENT_RELAUNCHES = 16;
+
+    static final int ADJ_BUCKET_FOREGROUND = 0;
+    static final int ADJ_BUCKET_PERCEPTIBLE = 1;
+    static final int ADJ_BUCKET_BACKGROUND = 2;
+    static final int ADJ_BUCKET_CACHED = 3;
+    static final int ADJ_BUCKET_COUNT = 4;
+
+    private static final String[] ADJ_BUCKET_NAMES = {"fg", "perceptible", "bg", "cached"};
+    private static final String[] MEM_FACTOR_NAMES = {"normal", "moderate", "low", "critical"};
+
+    private final Object mLock = new Object();
+
+    /**
+     * Kill counts of the current (index 0) and previous (index 1) window, by adj bucket
+     * and memory factor.
+     */
+    @GuardedBy("mLock")
+    private final int[][][] mKillCounts = new int[2][ADJ_BUCKET_COUNT][ADJ_MEM_FACTOR_COUNT];
+
+    @GuardedBy("mLock")
+    private long mWindowStart;
+
+    @GuardedBy("mLock")
+    private final UidProcessMap<PackageKillStats> mPackages = new UidProcessMap<>();
+
+    /**
+     * Called when lmkd kills a process hosting the given package.
+     */
+    void noteLmkdKill(String packageName, int uid, int adj, int memFactor, long nowElapsed) {
+        synchronized (mLock) {
+            rotateWindowLocked(nowElapsed);
+            mKillCounts[0][getAdjBucket(adj)][clampMemFactor(memFactor)]++;
+            PackageKillStats stats = mPackages.get(uid, packageName);
+            if (stats == null) {
+                stats = mPackages.put(uid, packageName, new PackageKillStats());
+            }
+            stats.mTotalKills++;
+            stats.mLastKillTime = nowElapsed;
+            stats.mLastActiveTime = nowElapsed;
+        }
+    }
+
+    /**
+     * Called when a process for the given package is being started.
+     */
+    void noteProcessStart(String packageName, int uid, long nowElapsed) {
+        synchronized (mLock) {
+            final PackageKillStats stats = mPackages.get(uid, packageName);
+            if (stats == null || stats.mLastKillTime == 0) {
+                return;
+            }
+            final long latency = nowElapsed - stats.mLastKillTime;
+            stats.mLastKillTime = 0;
+            stats.mLastActiveTime = nowElapsed;
+            if (latency > RELAUNCH_THRESHOLD_MS) {
+                return;
+            }
+            stats.mTotalRelaunches++;
+            stats.mTotalRelaunchLatency += latency;
+            stats.mRecentRelaunchTimes[stats.mRecentRelaunchIndex] = nowElapsed;
+            stats.mRecentRelaunchIndex =
+                    (stats.mRecentRelaunchIndex + 1) % MAX_RECENT_RELAUNCHES;
+        }
+    }
+
+    /**
+     * @return The number of times the given package has been relaunched shortly after being
+     *         killed by lmkd within the last {@link #WINDOW_MS}.
+     */
+    int getThrashScore(String packageName, int uid, long nowElapsed) {
+        synchronized (mLock) {
+            final PackageKillStats stats = mPackages.get(uid, packageName);
+            return stats == null ? 0 : stats.getThrashScore(nowElapsed);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void rotateWindowLocked(long nowElapsed) {
+        if (nowElapsed - mWindowStart < WINDOW_MS) {
+            return;
+        }
+        final boolean skippedWindow = nowElapsed - mWindowStart >= 2 * WINDOW_MS;
+        final int[][] previous = mKillCounts[1];
+        mKillCounts[1] = mKillCounts[0];
+        mKillCounts[0] = previous;
+        for (int[] counts : previous) {
+            Arrays.fill(counts, 0);
+        }
+        if (skippedWindow) {
+            for (int[] counts : mKillCounts[1]) {
+                Arrays.fill(counts, 0);
+            }
+        }
+        mWindowStart = nowElapsed;
+
+        // Forget about packages we haven't heard from in the last two windows.
+        final SparseArray<ArrayMap<String, PackageKillStats>> map = mPackages.getMap();
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final ArrayMap<String, PackageKillStats> pkgs = map.valueAt(i);
+            for (int j = pkgs.size() - 1; j >= 0; j--) {
+                if (nowElapsed - pkgs.valueAt(j).mLastActiveTime >= 2 * WINDOW_MS) {
+                    pkgs.removeAt(j);
+                }
+            }
+            if (pkgs.isEmpty()) {
+                map.removeAt(i);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static int getAdjBucket(int adj) {
+        if (adj <= ProcessList.VISIBLE_APP_ADJ) {
+            return ADJ_BUCKET_FOREGROUND;
+        } else if (adj <= ProcessList.PERCEPTIBLE_LOW_APP_ADJ) {
+            return ADJ_BUCKET_PERCEPTIBLE;
+        } else if (adj < ProcessList.CACHED_APP_MIN_ADJ) {
+            return ADJ_BUCKET_BACKGROUND;
+        }
+        return ADJ_BUCKET_CACHED;
+    }
+
+    private static int clampMemFactor(int memFactor) {
+        // Drop the screen state, should the caller pass the combined factor.
+        return Math.max(0, Math.min(memFactor % ADJ_SCREEN_MOD, ADJ_MEM_FACTOR_COUNT - 1));
+    }
+
+    void dump(PrintWriter pw, String prefix, long nowElapsed) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.println("lmkd kills by adj bucket and memory factor"
+                    + " (current window, previous window):");
+            for (int bucket = 0; bucket < ADJ_BUCKET_COUNT; bucket++) {
+                pw.print(prefix); pw.print("  "); pw.print(ADJ_BUCKET_NAMES[bucket]);
+                pw.print(":");
+                for (int mem = 0; mem < ADJ_MEM_FACTOR_COUNT; mem++) {
+                    pw.print(" "); pw.print(MEM_FACTOR_NAMES[mem]); pw.print("=");
+                    pw.print(mKillCounts[0][bucket][mem]); pw.print(",");
+                    pw.print(mKillCounts[1][bucket][mem]);
+                }
+                pw.println();
+            }
+            pw.print(prefix); pw.println("lmkd kill/relaunch by package:");
+            final SparseArray<ArrayMap<String, PackageKillStats>> map = mPackages.getMap();
+            for (int i = 0; i < map.size(); i++) {
+                final int uid = map.keyAt(i);
+                final ArrayMap<String, PackageKillStats> pkgs = map.valueAt(i);
+                for (int j = 0; j < pkgs.size(); j++) {
+                    final PackageKillStats stats = pkgs.valueAt(j);
+                    pw.print(prefix); pw.print("  "); pw.print(pkgs.keyAt(j));
+                    pw.print("/"); pw.print(uid);
+                    pw.print(" kills="); pw.print(stats.mTotalKills);
+                    pw.print(" relaunches="); pw.print(stats.mTotalRelaunches);
+                    if (stats.mTotalRelaunches > 0) {
+                        pw.print(" avgRelaunchLatency=");
+                        TimeUtils.formatDuration(
+                                stats.mTotalRelaunchLatency / stats.mTotalRelaunches, pw);
+                    }
+                    pw.print(" thrashScore="); pw.println(stats.getThrashScore(nowElapsed));
+                }
+            }
+        }
+    }
+
+    private static final class PackageKillStats {
+        int mTotalKills;
+        int mTotalRelaunches;
+        long mTotalRelaunchLatency;
+        // Elapsed time of the last kill which hasn't been followed by a start yet, or 0.
+        long mLastKillTime;
+        long mLastActiveTime;
+        final long[] mRecentRelaunchTimes = new long[MAX_RECENT_RELAUNCHES];
+        int mRecentRelaunchIndex;
+
+        int getThrashScore(long nowElapsed) {
+            int score = 0;
+            for (long time : mRecentRelaunchTimes) {
+                if (time != 0 && nowElapsed - time < WINDOW_MS) {
+                    score++;
+                }
+            }
+            return score;
+        }
+    }
+}
@@ -21,22 +21,24 @@ import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NA
 import static com.android.server.wm.ActivityTaskManagerDebugConfig.DEBUG_METRICS;
 
 import android.annotation.Nullable;
-import android.os.FileUtils;
 import android.os.SystemProperties;
+import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Static utility methods related to {@link MemoryStat}.
+ *
+ * <p>Each read opens the stat file and parses it into a per-thread buffer, without regexes or
+ * intermediate strings.</p>
  */
 public final class MemoryStatUtil {
     static final int PAGE_SIZE = (int) Os.sysconf(OsConstants._SC_PAGESIZE);
@@ -48,15 +50,22 @@ public final class MemoryStatUtil {
             SystemProperties.getBoolean("ro.config.per_app_memcg", false);
 
     /** Path to memory stat file for logging app start memory state */
-    private static final String MEMORY_STAT_FILE_FMT = "/dev/memcg/apps/uid_%d/pid_%d/memory.stat";
+    private static final String MEMORY_STAT_FILE_PREFIX = "/dev/memcg/apps/uid_";
     /** Path to procfs stat file for logging app start memory state */
-    private static final String PROC_STAT_FILE_FMT = "/proc/%d/stat";
+    private static final String PROC_STAT_FILE_PREFIX = "/proc/";
+
+    private static final byte[] PGFAULT = asciiBytes("total_pgfault");
+    private static final byte[] PGMAJFAULT = asciiBytes("total_pgmajfault");
+    private static final byte[] RSS_IN_BYTES = asciiBytes("total_rss");
+    private static final byte[] CACHE_IN_BYTES = asciiBytes("total_cache");
+    private static final byte[] SWAP_IN_BYTES = asciiBytes("total_swap");
+
+    /** Big enough for both memory.stat and /proc/pid/stat. */
+    private static final int READ_BUFFER_SIZE = 8192;
 
-    private static final Pattern PGFAULT = Pattern.compile("total_pgfault (\\d+)");
-    private static final Pattern PGMAJFAULT = Pattern.compile("total_pgmajfault (\\d+)");
-    private static final Pattern RSS_IN_BYTES = Pattern.compile("total_rss (\\d+)");
-    private static final Pattern CACHE_IN_BYTES = Pattern.compile("total_cache (\\d+)");
-    private static final Pattern SWAP_IN_BYTES = Pattern.compile("total_swap (\\d+)");
+    /** Per-thread buffer the stat files are read into, so reading doesn't allocate. */
+    private static final ThreadLocal<byte[]> sReadBuffer =
+            ThreadLocal.withInitial(() -> new byte[READ_BUFFER_SIZE]);
 
     private static final int PGFAULT_INDEX = 9;
     private static final int PGMAJFAULT_INDEX = 11;
@@ -82,8 +91,8 @@ public final class MemoryStatUtil {
      */
     @Nullable
     static MemoryStat readMemoryStatFromMemcg(int uid, int pid) {
-        final String statPath = String.format(Locale.US, MEMORY_STAT_FILE_FMT, uid, pid);
-        return parseMemoryStatFromMemcg(readFileContents(statPath));
+        final MemoryStat memoryStat = new MemoryStat();
+        return readStatFile(getMemcgStatPath(uid, pid), true, memoryStat) ? memoryStat : null;
     }
 
     /**
@@ -93,23 +102,57 @@ public final class MemoryStatUtil {
      */
     @Nullable
     public static MemoryStat readMemoryStatFromProcfs(int pid) {
-        final String statPath = String.format(Locale.US, PROC_STAT_FILE_FMT, pid);
-        return parseMemoryStatFromProcfs(readFileContents(statPath));
+        final MemoryStat memoryStat = new MemoryStat();
+        return readStatFile(getProcStatPath(pid), false, memoryStat) ? memoryStat : null;
+    }
+
+    private static String getMemcgStatPath(int uid, int pid) {
+        return MEMORY_STAT_FILE_PREFIX + uid + "/pid_" + pid + "/memory.stat";
+    }
+
+    private static String getProcStatPath(int pid) {
+        return PROC_STAT_FILE_PREFIX + pid + "/stat";
     }
 
-    private static String readFileContents(String path) {
-        final File file = new File(path);
-        if (!file.exists()) {
+    private static boolean readStatFile(String path, boolean memcg, MemoryStat out) {
+        final FileDescriptor fd = openStatFile(path);
+        if (fd == null) {
+            return false;
+        }
+        try {
+            return readStatFd(fd, memcg, out);
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    @Nullable
+    private static FileDescriptor openStatFile(String path) {
+        try {
+            return Os.open(path, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+        } catch (ErrnoException e) {
             if (DEBUG_METRICS) Slog.i(TAG, path + " not found");
             return null;
         }
+    }
 
+    /**
+     * Reads the stat file from its beginning into the calling thread's buffer, and parses it
+     * into {@code out}. Returns false if the file could not be read or parsed.
+     */
+    private static boolean readStatFd(FileDescriptor fd, boolean memcg, MemoryStat out) {
+        final byte[] buf = sReadBuffer.get();
+        int len = 0;
         try {
-            return FileUtils.readTextFile(file, 0 /* max */, null /* ellipsis */);
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read file:", e);
-            return null;
+            int read;
+            while (len < buf.length
+                    && (read = Os.pread(fd, buf, len, buf.length - len, len)) > 0) {
+                len += read;
+            }
+        } catch (ErrnoException e) {
+            return false;
         }
+        return memcg ? parseMemcg(buf, len, out) : parseProcfs(buf, len, out);
     }
 
     /**
@@ -121,14 +164,9 @@ public final class MemoryStatUtil {
         if (memoryStatContents == null || memoryStatContents.isEmpty()) {
             return null;
         }
-
+        final byte[] buf = memoryStatContents.getBytes(StandardCharsets.US_ASCII);
         final MemoryStat memoryStat = new MemoryStat();
-        memoryStat.pgfault = tryParseLong(PGFAULT, memoryStatContents);
-        memoryStat.pgmajfault = tryParseLong(PGMAJFAULT, memoryStatContents);
-        memoryStat.rssInBytes = tryParseLong(RSS_IN_BYTES, memoryStatContents);
-        memoryStat.cacheInBytes = tryParseLong(CACHE_IN_BYTES, memoryStatContents);
-        memoryStat.swapInBytes = tryParseLong(SWAP_IN_BYTES, memoryStatContents);
-        return memoryStat;
+        return parseMemcg(buf, buf.length, memoryStat) ? memoryStat : null;
     }
 
     /**
@@ -140,41 +178,151 @@ public final class MemoryStatUtil {
         if (procStatContents == null || procStatContents.isEmpty()) {
             return null;
         }
-        final String[] splits = procStatContents.split(" ");
-        if (splits.length < 24) {
-            return null;
+        final byte[] buf = procStatContents.getBytes(StandardCharsets.US_ASCII);
+        final MemoryStat memoryStat = new MemoryStat();
+        return parseProcfs(buf, buf.length, memoryStat) ? memoryStat : null;
+    }
+
+    /**
+     * Scans the "key value" lines of a memory.stat file. Fields which aren't present are
+     * reported as 0.
+     */
+    private static boolean parseMemcg(byte[] buf, int len, MemoryStat out) {
+        if (len <= 0) {
+            return false;
         }
-        try {
-            final MemoryStat memoryStat = new MemoryStat();
-            memoryStat.pgfault = Long.parseLong(splits[PGFAULT_INDEX]);
-            memoryStat.pgmajfault = Long.parseLong(splits[PGMAJFAULT_INDEX]);
-            memoryStat.rssInBytes = Long.parseLong(splits[RSS_IN_PAGES_INDEX]) * PAGE_SIZE;
-            return memoryStat;
-        } catch (NumberFormatException e) {
-            Slog.e(TAG, "Failed to parse value", e);
-            return null;
+        out.pgfault = 0;
+        out.pgmajfault = 0;
+        out.rssInBytes = 0;
+        out.cacheInBytes = 0;
+        out.swapInBytes = 0;
+        int lineStart = 0;
+        while (lineStart < len) {
+            int keyEnd = lineStart;
+            while (keyEnd < len && buf[keyEnd] != ' ' && buf[keyEnd] != '\n') {
+                keyEnd++;
+            }
+            int lineEnd = keyEnd;
+            while (lineEnd < len && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (keyEnd < lineEnd) {
+                if (keyEquals(buf, lineStart, keyEnd, PGFAULT)) {
+                    out.pgfault = Math.max(0, parseLong(buf, keyEnd + 1, lineEnd));
+                } else if (keyEquals(buf, lineStart, keyEnd, PGMAJFAULT)) {
+                    out.pgmajfault = Math.max(0, parseLong(buf, keyEnd + 1, lineEnd));
+                } else if (keyEquals(buf, lineStart, keyEnd, RSS_IN_BYTES)) {
+                    out.rssInBytes = Math.max(0, parseLong(buf, keyEnd + 1, lineEnd));
+                } else if (keyEquals(buf, lineStart, keyEnd, CACHE_IN_BYTES)) {
+                    out.cacheInBytes = Math.max(0, parseLong(buf, keyEnd + 1, lineEnd));
+                } else if (keyEquals(buf, lineStart, keyEnd, SWAP_IN_BYTES)) {
+                    out.swapInBytes = Math.max(0, parseLong(buf, keyEnd + 1, lineEnd));
+                }
+            }
+            lineStart = lineEnd + 1;
         }
+        return true;
     }
 
     /**
-     * Returns whether per-app memcg is available on device.
+     * Picks the page fault and rss fields out of the space separated /proc/pid/stat fields.
      */
-    static boolean hasMemcg() {
-        return DEVICE_HAS_PER_APP_MEMCG;
+    private static boolean parseProcfs(byte[] buf, int len, MemoryStat out) {
+        if (len <= 0) {
+            return false;
+        }
+        // The command name in the second field may contain spaces; it's the only field
+        // wrapped in parentheses, so start counting after its closing one.
+        int pos = len - 1;
+        while (pos >= 0 && buf[pos] != ')') {
+            pos--;
+        }
+        int index;
+        if (pos >= 0) {
+            index = 1;
+            pos++;
+        } else {
+            index = -1;
+            pos = 0;
+        }
+        long pgfault = -1;
+        long pgmajfault = -1;
+        long rssInPages = -1;
+        while (pos < len && rssInPages < 0) {
+            if (buf[pos] == '\n') {
+                // The fields end with the line, the ones we're after are missing.
+                break;
+            }
+            if (buf[pos] == ' ') {
+                pos++;
+                continue;
+            }
+            int end = pos;
+            while (end < len && buf[end] != ' ' && buf[end] != '\n') {
+                end++;
+            }
+            index++;
+            if (index == PGFAULT_INDEX) {
+                pgfault = parseLong(buf, pos, end);
+            } else if (index == PGMAJFAULT_INDEX) {
+                pgmajfault = parseLong(buf, pos, end);
+            } else if (index == RSS_IN_PAGES_INDEX) {
+                rssInPages = parseLong(buf, pos, end);
+            }
+            pos = end;
+        }
+        if (pgfault < 0 || pgmajfault < 0 || rssInPages < 0) {
+            return false;
+        }
+        out.pgfault = pgfault;
+        out.pgmajfault = pgmajfault;
+        out.rssInBytes = rssInPages * PAGE_SIZE;
+        out.cacheInBytes = 0;
+        out.swapInBytes = 0;
+        return true;
+    }
+
+    private static boolean keyEquals(byte[] buf, int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Parses a long from the input using the pattern. Returns 0 if the captured value is not
-     * parsable. The pattern must have a single capturing group.
+     * Parses the decimal digits in {@code buf[start, end)}. Returns -1 if there are none or
+     * there's anything else in the range.
      */
-    private static long tryParseLong(Pattern pattern, String input) {
-        final Matcher m = pattern.matcher(input);
-        try {
-            return m.find() ? Long.parseLong(m.group(1)) : 0;
-        } catch (NumberFormatException e) {
-            Slog.e(TAG, "Failed to parse value", e);
-            return 0;
+    private static long parseLong(byte[] buf, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                Slog.e(TAG, "Failed to parse value");
+                return -1;
+            }
+            value = value * 10 + digit;
         }
+        return value;
+    }
+
+    private static byte[] asciiBytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns whether per-app memcg is available on device.
+     */
+    static boolean hasMemcg() {
+        return DEVICE_HAS_PER_APP_MEMCG;
     }
 
     public static final class MemoryStat {
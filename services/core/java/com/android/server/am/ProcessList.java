@@ -116,6 +116,7 @@ import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 import android.view.Display;
@@ -360,6 +361,9 @@ public final class ProcessList {
     // lmkd reconnect delay in msecs
     private static final long LMKD_RECONNECT_DELAY_MS = 1000;
 
+    // Pending adj value marking a queued LMK_PROCREMOVE rather than an LMK_PROCPRIO.
+    private static final int LMKD_PENDING_REMOVE = Integer.MIN_VALUE;
+
     /**
      * Apps have no access to the private data directories of any other app, even if the other
      * app has made them world-readable.
@@ -404,6 +408,36 @@ public final class ProcessList {
 
     private static LmkdConnection sLmkdConnection = null;
 
+    private static final Object sLmkdProcPrioLock = new Object();
+
+    /**
+     * The adj and uid last requested for each pid registered with lmkd. Replayed to lmkd when
+     * the connection is re-established, as lmkd purges all registered pids on connect.
+     */
+    @GuardedBy("sLmkdProcPrioLock")
+    private static final SparseIntArray sLmkdAdjs = new SparseIntArray();
+    @GuardedBy("sLmkdProcPrioLock")
+    private static final SparseIntArray sLmkdUids = new SparseIntArray();
+
+    /**
+     * LMK_PROCPRIO / LMK_PROCREMOVE requests waiting to be written by the kill thread, keyed
+     * by pid. Only the last request for a pid matters, so a newer one replaces the older one.
+     * A value of {@link #LMKD_PENDING_REMOVE} in {@link #sPendingLmkdAdjs} means the pid is
+     * to be removed.
+     */
+    @GuardedBy("sLmkdProcPrioLock")
+    private static final SparseIntArray sPendingLmkdAdjs = new SparseIntArray();
+    @GuardedBy("sLmkdProcPrioLock")
+    private static final SparseIntArray sPendingLmkdUids = new SparseIntArray();
+    @GuardedBy("sLmkdProcPrioLock")
+    private static boolean sLmkdFlushScheduled;
+
+    // Buffers only used on the kill thread to drain the pending lmkd requests.
+    private static int[] sFlushLmkdPids = new int[16];
+    private static int[] sFlushLmkdUids = new int[16];
+    private static int[] sFlushLmkdAdjs = new int[16];
+    private static final ByteBuffer sFlushLmkdBuf = ByteBuffer.allocate(4 * 4);
+
     private boolean mOomLevelsSet = false;
 
     private boolean mAppDataIsolationEnabled = false;
@@ -489,6 +523,21 @@ public final class ProcessList {
     @GuardedBy("mAppExitInfoTracker")
     final AppExitInfoTracker mAppExitInfoTracker = new AppExitInfoTracker();
 
+    /**
+     * Aggregates the kills by lmkd and the relaunches following them.
+     */
+    final LmkdKillStats mLmkdKillStats = new LmkdKillStats();
+
+    /**
+     * Phase timings of recent process cold starts.
+     */
+    final ProcessStartProfiler mStartProfiler = new ProcessStartProfiler();
+
+    /**
+     * Predicts process starts from the recent ones, and optionally prestarts them.
+     */
+    ProcessPrestartPredictor mPrestartPredictor;
+
     /**
      * The processes that are forked off an application zygote.
      */
@@ -707,6 +756,7 @@ public final class ProcessList {
     final class KillHandler extends Handler {
         static final int KILL_PROCESS_GROUP_MSG = 4000;
         static final int LMKD_RECONNECT_MSG = 4001;
+        static final int LMKD_FLUSH_PROCPRIO_MSG = 4002;
 
         public KillHandler(Looper looper) {
             super(looper, null, true);
@@ -729,6 +779,9 @@ public final class ProcessList {
                                 KillHandler.LMKD_RECONNECT_MSG), LMKD_RECONNECT_DELAY_MS);
                     }
                     break;
+                case LMKD_FLUSH_PROCPRIO_MSG:
+                    flushLmkdProcPrio();
+                    break;
                 default:
                     super.handleMessage(msg);
             }
@@ -755,6 +808,7 @@ public final class ProcessList {
         mActiveUids = activeUids;
         mPlatformCompat = platformCompat;
         mProcLock = service.mProcLock;
+        mPrestartPredictor = new ProcessPrestartPredictor(service);
         // Get this after boot, and won't be changed until it's rebooted, as we don't
         // want some apps enabled while some apps disabled
         mAppDataIsolationEnabled =
@@ -810,6 +864,7 @@ public final class ProcessList {
                                         final int pid = inputData.readInt();
                                         final int uid = inputData.readInt();
                                         mAppExitInfoTracker.scheduleNoteLmkdProcKilled(pid, uid);
+                                        noteLmkdProcKilled(pid);
                                         return true;
                                     case LMK_KILL_OCCURRED:
                                         if (receivedLen
@@ -1390,6 +1445,10 @@ public final class ProcessList {
      * Set the out-of-memory badness adjustment for a process.
      * If {@code pid <= 0}, this method will be a no-op.
      *
+     * <p>The request is queued and written to lmkd asynchronously on the kill thread, so the
+     * caller never blocks on the lmkd socket. If several adjustments for the same pid are queued
+     * before they are written, only the last one is sent.
+     *
      * @param pid The process identifier to set.
      * @param uid The uid of the app
      * @param amt Adjustment value -- lmkd allows -1000 to +1000
@@ -1404,17 +1463,10 @@ public final class ProcessList {
         if (amt == UNKNOWN_ADJ)
             return;
 
-        long start = SystemClock.elapsedRealtime();
-        ByteBuffer buf = ByteBuffer.allocate(4 * 4);
-        buf.putInt(LMK_PROCPRIO);
-        buf.putInt(pid);
-        buf.putInt(uid);
-        buf.putInt(amt);
-        writeLmkd(buf, null);
-        long now = SystemClock.elapsedRealtime();
-        if ((now-start) > 250) {
-            Slog.w("ActivityManager", "SLOW OOM ADJ: " + (now-start) + "ms for pid " + pid
-                    + " = " + amt);
+        synchronized (sLmkdProcPrioLock) {
+            sLmkdAdjs.put(pid, amt);
+            sLmkdUids.put(pid, uid);
+            enqueueLmkdProcPrioLocked(pid, uid, amt);
         }
     }
 
@@ -1426,10 +1478,80 @@ public final class ProcessList {
         if (pid <= 0) {
             return;
         }
-        ByteBuffer buf = ByteBuffer.allocate(4 * 2);
-        buf.putInt(LMK_PROCREMOVE);
-        buf.putInt(pid);
-        writeLmkd(buf, null);
+        synchronized (sLmkdProcPrioLock) {
+            sLmkdAdjs.delete(pid);
+            sLmkdUids.delete(pid);
+            enqueueLmkdProcPrioLocked(pid, 0, LMKD_PENDING_REMOVE);
+        }
+    }
+
+    @GuardedBy("sLmkdProcPrioLock")
+    private static void enqueueLmkdProcPrioLocked(int pid, int uid, int amt) {
+        sPendingLmkdAdjs.put(pid, amt);
+        sPendingLmkdUids.put(pid, uid);
+        if (!sLmkdFlushScheduled) {
+            sLmkdFlushScheduled = true;
+            sKillHandler.sendMessage(
+                    sKillHandler.obtainMessage(KillHandler.LMKD_FLUSH_PROCPRIO_MSG));
+        }
+    }
+
+    /**
+     * Write all the queued LMK_PROCPRIO / LMK_PROCREMOVE requests to lmkd. Only called on the
+     * kill thread, which keeps the requests for a pid in order.
+     */
+    private static void flushLmkdProcPrio() {
+        final int count;
+        synchronized (sLmkdProcPrioLock) {
+            sLmkdFlushScheduled = false;
+            count = sPendingLmkdAdjs.size();
+            if (sFlushLmkdPids.length < count) {
+                final int newSize = Math.max(count, sFlushLmkdPids.length * 2);
+                sFlushLmkdPids = new int[newSize];
+                sFlushLmkdUids = new int[newSize];
+                sFlushLmkdAdjs = new int[newSize];
+            }
+            for (int i = 0; i < count; i++) {
+                sFlushLmkdPids[i] = sPendingLmkdAdjs.keyAt(i);
+                sFlushLmkdAdjs[i] = sPendingLmkdAdjs.valueAt(i);
+                sFlushLmkdUids[i] = sPendingLmkdUids.valueAt(i);
+            }
+            sPendingLmkdAdjs.clear();
+            sPendingLmkdUids.clear();
+        }
+        if (count == 0) {
+            return;
+        }
+        if (!sLmkdConnection.isConnected()) {
+            // The current adj table is replayed once we're connected again, so there's no need
+            // to hold on to the pending requests.
+            sKillHandler.sendMessage(sKillHandler.obtainMessage(KillHandler.LMKD_RECONNECT_MSG));
+            return;
+        }
+
+        final ByteBuffer buf = sFlushLmkdBuf;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            buf.clear();
+            if (sFlushLmkdAdjs[i] == LMKD_PENDING_REMOVE) {
+                buf.putInt(LMK_PROCREMOVE);
+                buf.putInt(sFlushLmkdPids[i]);
+            } else {
+                buf.putInt(LMK_PROCPRIO);
+                buf.putInt(sFlushLmkdPids[i]);
+                buf.putInt(sFlushLmkdUids[i]);
+                buf.putInt(sFlushLmkdAdjs[i]);
+            }
+            if (!sLmkdConnection.exchange(buf, null)) {
+                // Connection lost, the rest is replayed on reconnect.
+                break;
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        if ((now-start) > 250) {
+            Slog.w("ActivityManager", "SLOW OOM ADJ: " + (now-start) + "ms for " + count
+                    + " lmkd requests");
+        }
     }
 
     /*
@@ -1466,6 +1588,21 @@ public final class ProcessList {
                 }
                 ostream.write(buf.array(), 0, buf.position());
             }
+            // Re-register the processes we know about, as lmkd just forgot them
+            final int count;
+            synchronized (sLmkdProcPrioLock) {
+                count = sLmkdAdjs.size();
+                buf = ByteBuffer.allocate(4 * 4 * Math.max(count, 1));
+                for (int i = 0; i < count; i++) {
+                    buf.putInt(LMK_PROCPRIO);
+                    buf.putInt(sLmkdAdjs.keyAt(i));
+                    buf.putInt(sLmkdUids.valueAt(i));
+                    buf.putInt(sLmkdAdjs.valueAt(i));
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                ostream.write(buf.array(), i * 4 * 4, 4 * 4);
+            }
             // Subscribe for kill event notifications
             buf = ByteBuffer.allocate(4 * 2);
             buf.putInt(LMK_SUBSCRIBE);
@@ -1645,6 +1782,8 @@ public final class ProcessList {
         }
         final long startUptime = SystemClock.uptimeMillis();
         final long startElapsedTime = SystemClock.elapsedRealtime();
+        mLmkdKillStats.noteProcessStart(app.info.packageName, app.uid, startElapsedTime);
+        mPrestartPredictor.noteProcessStartLocked(app, hostingRecord, startUptime);
         if (app.getPid() > 0 && app.getPid() != ActivityManagerService.MY_PID) {
             checkSlow(startUptime, "startProcess: removing from pids map");
             mService.removePidLocked(app.getPid(), app);
@@ -2589,6 +2728,10 @@ public final class ProcessList {
                     ApplicationExitInfo.SUBREASON_INVALID_START, reason);
             return false;
         }
+        final ProcessStartProfiler.Sample startSample = new ProcessStartProfiler.Sample(
+                app.getHostingRecord().getType(), app.info.packageName, app.getStartUptime());
+        startSample.mForkDoneTime = SystemClock.uptimeMillis();
+        app.setStartSample(startSample);
         mService.mBatteryStatsService.noteProcessStart(app.processName, app.info.uid);
         checkSlow(app.getStartTime(), "startProcess: done updating battery stats");
 
@@ -5075,6 +5218,32 @@ public final class ProcessList {
         uidRec.forEachProcess(app -> killAppIfBgRestrictedAndCachedIdleLocked(app, nowElapsed));
     }
 
+    /**
+     * Called on the kill thread when lmkd reports it has killed a process.
+     * Note: do not try to hold the AMS lock here, otherwise it is a potential deadlock.
+     */
+    private void noteLmkdProcKilled(int pid) {
+        final ProcessRecord app;
+        synchronized (mService.mPidsSelfLocked) {
+            app = mService.mPidsSelfLocked.get(pid);
+        }
+        if (app == null || app.info == null) {
+            return;
+        }
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        // The adj is guarded by the proc lock, which we mustn't wait for on this thread.
+        mService.mHandler.post(() -> {
+            final int setAdj;
+            synchronized (mService.mProcLock) {
+                setAdj = app.mState.getSetAdj();
+            }
+            // The memory factor without the screen state folded into it.
+            final int memFactor = mService.mProcessStats.getCurrentMemoryState();
+            mLmkdKillStats.noteLmkdKill(app.info.packageName, app.uid, setAdj, memFactor,
+                    nowElapsed);
+        });
+    }
+
     /**
      * Called by ActivityManagerService when a process died.
      */
@@ -5085,6 +5254,7 @@ public final class ProcessList {
         }
 
         Watchdog.getInstance().processDied(app.processName, app.getPid());
+        mPrestartPredictor.noteProcessDiedLocked(app);
         if (app.getDeathRecipient() == null
                 && mDyingProcesses.get(app.processName, app.uid) == app) {
             // If we've done unlinkDeathRecipient before calling into this, remove from dying list.
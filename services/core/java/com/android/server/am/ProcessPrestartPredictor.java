@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static android.app.ActivityManager.RESTRICTION_LEVEL_BACKGROUND_RESTRICTED;
+import static android.os.Process.SYSTEM_UID;
+import static android.os.Process.ZYGOTE_POLICY_FLAG_EMPTY;
+
+import static com.android.internal.app.procstats.ProcessStats.ADJ_MEM_FACTOR_NORMAL;
+import static com.android.server.am.ActivityManagerService.STOCK_PM_FLAGS;
+import static com.android.server.am.ActivityManagerService.TAG_PROCESSES;
+
+import android.annotation.Nullable;
+import android.annotation.UptimeMillisLong;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManagerInternal;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Learns which process cold starts are reliably followed by the cold start of another process,
+ * and, if enabled, starts the latter ahead of time when the former starts again.
+ *
+ * <p>A prestarted process hosts no component, so unless it gets used it sinks to the cached
+ * adj and is reclaimed like any other empty process. Whether it got used is fed back into the
+ * prediction which caused it.</p>
+ */
+final class ProcessPrestartPredictor {
+    /** A start within this long after another one counts as following it. */
+    @VisibleForTesting
+    static final long FOLLOW_WINDOW_MS = 10 * 1000;
+
+    /** How many times a start must have been followed by another one to predict it. */
+    @VisibleForTesting
+    static final int MIN_FOLLOWS = 5;
+
+    /** How often, in percents of its starts, a start must be followed by another one. */
+    @VisibleForTesting
+    static final int MIN_CONFIDENCE_PERCENT = 80;
+
+    private static final long BUDGET_WINDOW_MS = 60 * 60 * 1000;
+    private static final int MAX_FOLLOWERS = 8;
+    private static final int MAX_RECENT_STARTS = 16;
+    private static final int MAX_TRACKED_PROCESSES = 256;
+
+    private final ActivityManagerService mService;
+
+    /** What we know about the starts of each process, by uid and process name. */
+    @GuardedBy("mService")
+    private final UidProcessMap<StartHistory> mHistories = new UidProcessMap<>();
+
+    @GuardedBy("mService")
+    private int mNumHistories;
+
+    /** The most recent cold starts, oldest first, which later starts may follow. */
+    @GuardedBy("mService")
+    private final StartHistory[] mRecentStarts = new StartHistory[MAX_RECENT_STARTS];
+
+    @GuardedBy("mService")
+    private final long[] mRecentStartTimes = new long[MAX_RECENT_STARTS];
+
+    @GuardedBy("mService")
+    private int mNumRecentStarts;
+
+    /** The live prestarted processes, and the start which predicted each of them. */
+    @GuardedBy("mService")
+    private final ArrayMap<ProcessRecord, StartHistory> mPrestarted = new ArrayMap<>();
+
+    @GuardedBy("mService")
+    private long mBudgetWindowStart;
+
+    @GuardedBy("mService")
+    private int mNumPrestartsInWindow;
+
+    @GuardedBy("mService")
+    private long mNumPrestarts;
+
+    @GuardedBy("mService")
+    private long mNumPrestartsUsed;
+
+    @GuardedBy("mService")
+    private long mNumPrestartsWasted;
+
+    private static final class StartHistory {
+        final int mUid;
+        final String mProcessName;
+        ApplicationInfo mInfo;
+        int mNumStarts;
+        @UptimeMillisLong long mLastStartTime;
+        /** How many of our starts were followed by that of another process. */
+        final ArrayMap<StartHistory, int[]> mFollowers = new ArrayMap<>();
+
+        StartHistory(int uid, String processName) {
+            mUid = uid;
+            mProcessName = processName;
+        }
+    }
+
+    ProcessPrestartPredictor(ActivityManagerService service) {
+        mService = service;
+    }
+
+    /**
+     * Called when a new process is being started.
+     */
+    @GuardedBy("mService")
+    void noteProcessStartLocked(ProcessRecord app, HostingRecord hostingRecord,
+            @UptimeMillisLong long now) {
+        if (app.isolated || app.isSdkSandbox
+                || HostingRecord.HOSTING_TYPE_PRESTART.equals(hostingRecord.getType())) {
+            return;
+        }
+        StartHistory history = mHistories.get(app.uid, app.processName);
+        if (history == null) {
+            if (mNumHistories >= MAX_TRACKED_PROCESSES) {
+                evictOldestLocked();
+            }
+            history = mHistories.put(app.uid, app.processName,
+                    new StartHistory(app.uid, app.processName));
+            mNumHistories++;
+        }
+        history.mInfo = app.info;
+        history.mNumStarts++;
+        history.mLastStartTime = now;
+
+        // Credit the recent starts this one follows.
+        for (int i = 0; i < mNumRecentStarts; i++) {
+            final StartHistory prev = mRecentStarts[i];
+            if (prev != history && now - mRecentStartTimes[i] <= FOLLOW_WINDOW_MS) {
+                noteFollowedLocked(prev, history);
+            }
+        }
+        addRecentStartLocked(history, now);
+
+        if (mService.mConstants.mEnableProcessPrestart) {
+            maybePrestartFollowersLocked(history, now);
+        }
+    }
+
+    /**
+     * Called when a process died.
+     */
+    @GuardedBy("mService")
+    void noteProcessDiedLocked(ProcessRecord app) {
+        final int index = mPrestarted.indexOfKey(app);
+        if (index < 0) {
+            return;
+        }
+        final StartHistory trigger = mPrestarted.valueAt(index);
+        mPrestarted.removeAt(index);
+        if (app.mProfile.getHistoricalHostingComponentTypes()
+                != ProcessProfileRecord.HOSTING_COMPONENT_TYPE_EMPTY) {
+            // It was needed after all; this is the start we'd have seen without the prestart.
+            mNumPrestartsUsed++;
+            final StartHistory history = mHistories.get(app.uid, app.processName);
+            if (history != null) {
+                noteFollowedLocked(trigger, history);
+            }
+        } else {
+            mNumPrestartsWasted++;
+        }
+    }
+
+    @GuardedBy("mService")
+    private void noteFollowedLocked(StartHistory prev, StartHistory next) {
+        final int[] count = prev.mFollowers.get(next);
+        if (count != null) {
+            count[0]++;
+        } else if (prev.mFollowers.size() < MAX_FOLLOWERS) {
+            prev.mFollowers.put(next, new int[] {1});
+        }
+    }
+
+    @GuardedBy("mService")
+    private void addRecentStartLocked(StartHistory history, @UptimeMillisLong long now) {
+        if (mNumRecentStarts == MAX_RECENT_STARTS) {
+            System.arraycopy(mRecentStarts, 1, mRecentStarts, 0, MAX_RECENT_STARTS - 1);
+            System.arraycopy(mRecentStartTimes, 1, mRecentStartTimes, 0, MAX_RECENT_STARTS - 1);
+            mNumRecentStarts--;
+        }
+        mRecentStarts[mNumRecentStarts] = history;
+        mRecentStartTimes[mNumRecentStarts] = now;
+        mNumRecentStarts++;
+    }
+
+    @GuardedBy("mService")
+    private void maybePrestartFollowersLocked(StartHistory history, @UptimeMillisLong long now) {
+        if (mService.mAppProfiler.getLastMemoryLevelLocked() != ADJ_MEM_FACTOR_NORMAL) {
+            return;
+        }
+        for (int i = history.mFollowers.size() - 1; i >= 0; i--) {
+            final int follows = history.mFollowers.valueAt(i)[0];
+            if (follows < MIN_FOLLOWS
+                    || follows * 100 < history.mNumStarts * MIN_CONFIDENCE_PERCENT) {
+                continue;
+            }
+            final StartHistory next = history.mFollowers.keyAt(i);
+            if (next.mInfo == null
+                    || mService.getProcessRecordLocked(next.mProcessName, next.mUid) != null) {
+                continue;
+            }
+            if (now - mBudgetWindowStart >= BUDGET_WINDOW_MS) {
+                mBudgetWindowStart = now;
+                mNumPrestartsInWindow = 0;
+            }
+            if (mNumPrestartsInWindow >= mService.mConstants.mMaxProcessPrestartsPerHour) {
+                return;
+            }
+            mNumPrestartsInWindow++;
+            // Don't start a process from within the start of another one.
+            final String packageName = next.mInfo.packageName;
+            mService.mHandler.post(() -> prestart(history, next, packageName));
+        }
+    }
+
+    private void prestart(StartHistory trigger, StartHistory next, String packageName) {
+        final ApplicationInfo info = getPrestartableAppInfo(next.mUid, packageName);
+        if (info == null) {
+            return;
+        }
+        synchronized (mService) {
+            if (mService.getProcessRecordLocked(next.mProcessName, next.mUid) != null) {
+                return;
+            }
+            final ProcessRecord app = mService.startProcessLocked(next.mProcessName, info,
+                    false, 0, new HostingRecord(HostingRecord.HOSTING_TYPE_PRESTART,
+                            next.mProcessName),
+                    ZYGOTE_POLICY_FLAG_EMPTY, false, false);
+            if (app == null) {
+                return;
+            }
+            Slog.i(TAG_PROCESSES, "Prestarted " + app + " following " + trigger.mProcessName);
+            mPrestarted.put(app, trigger);
+            mNumPrestarts++;
+        }
+    }
+
+    /**
+     * @return The current info of the given package, unless it's gone, or its user or the system
+     *         holds it back: stopped, disabled, frozen or restricted in the background; the info
+     *         seen at its last start may be stale by now.
+     */
+    @Nullable
+    private ApplicationInfo getPrestartableAppInfo(int uid, String packageName) {
+        final int userId = UserHandle.getUserId(uid);
+        final PackageManagerInternal pm = mService.getPackageManagerInternal();
+        final ApplicationInfo info = pm.getApplicationInfo(packageName, STOCK_PM_FLAGS,
+                SYSTEM_UID, userId);
+        if (info == null || info.uid != uid || !info.enabled
+                || (info.flags & ApplicationInfo.FLAG_STOPPED) != 0
+                || pm.isPackageFrozen(packageName, SYSTEM_UID, userId)) {
+            return null;
+        }
+        if (mService.isBackgroundRestrictedNoCheck(uid, packageName)
+                || mService.mAppRestrictionController.getRestrictionLevel(uid, packageName)
+                        >= RESTRICTION_LEVEL_BACKGROUND_RESTRICTED) {
+            return null;
+        }
+        return info;
+    }
+
+    @GuardedBy("mService")
+    private void evictOldestLocked() {
+        StartHistory oldest = null;
+        final SparseArray<ArrayMap<String, StartHistory>> map = mHistories.getMap();
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final ArrayMap<String, StartHistory> histories = map.valueAt(i);
+            for (int j = histories.size() - 1; j >= 0; j--) {
+                final StartHistory history = histories.valueAt(j);
+                if (oldest == null || history.mLastStartTime < oldest.mLastStartTime) {
+                    oldest = history;
+                }
+            }
+        }
+        if (oldest == null) {
+            return;
+        }
+        mHistories.remove(oldest.mUid, oldest.mProcessName);
+        mNumHistories--;
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final ArrayMap<String, StartHistory> histories = map.valueAt(i);
+            for (int j = histories.size() - 1; j >= 0; j--) {
+                histories.valueAt(j).mFollowers.remove(oldest);
+            }
+        }
+        for (int i = 0; i < mNumRecentStarts; i++) {
+            if (mRecentStarts[i] == oldest) {
+                System.arraycopy(mRecentStarts, i + 1, mRecentStarts, i, mNumRecentStarts - i - 1);
+                System.arraycopy(mRecentStartTimes, i + 1, mRecentStartTimes, i,
+                        mNumRecentStarts - i - 1);
+                mRecentStarts[--mNumRecentStarts] = null;
+                i--;
+            }
+        }
+    }
+
+    @GuardedBy("mService")
+    void dumpLocked(PrintWriter pw) {
+        pw.print("Process prestarts (enabled=");
+        pw.print(mService.mConstants.mEnableProcessPrestart);
+        pw.print("): started="); pw.print(mNumPrestarts);
+        pw.print(" used="); pw.print(mNumPrestartsUsed);
+        pw.print(" wasted="); pw.print(mNumPrestartsWasted);
+        pw.print(" live="); pw.println(mPrestarted.size());
+        pw.println("  Predicted followers:");
+        final SparseArray<ArrayMap<String, StartHistory>> map = mHistories.getMap();
+        for (int i = 0; i < map.size(); i++) {
+            final ArrayMap<String, StartHistory> histories = map.valueAt(i);
+            for (int j = 0; j < histories.size(); j++) {
+                final StartHistory history = histories.valueAt(j);
+                for (int k = 0; k < history.mFollowers.size(); k++) {
+                    final int follows = history.mFollowers.valueAt(k)[0];
+                    if (follows < MIN_FOLLOWS) {
+                        continue;
+                    }
+                    final StartHistory next = history.mFollowers.keyAt(k);
+                    pw.print("    "); pw.print(history.mProcessName);
+                    pw.print("/"); pw.print(history.mUid);
+                    pw.print(" -> "); pw.print(next.mProcessName);
+                    pw.print("/"); pw.print(next.mUid);
+                    pw.print(": "); pw.print(follows); pw.print("/");
+                    pw.println(history.mNumStarts);
+                }
+            }
+        }
+    }
+}
@@ -188,6 +188,13 @@ final class ProcessProfileRecord {
     @GuardedBy("mProfilerLock")
     private long mLastRss;
 
+    /**
+     * The rss recorded along with the last full pss sample; unlike {@link #mLastRss}, it isn't
+     * refreshed by the cheaper rss-only reads.
+     */
+    @GuardedBy("mProfilerLock")
+    private long mLastPssRss;
+
     /**
      * Cache of last retrieve memory info, to throttle how frequently apps can request it.
      */
@@ -453,6 +460,16 @@ final class ProcessProfileRecord {
         mLastRss = lastRss;
     }
 
+    @GuardedBy("mProfilerLock")
+    long getLastPssRss() {
+        return mLastPssRss;
+    }
+
+    @GuardedBy("mProfilerLock")
+    void setLastPssRss(long lastPssRss) {
+        mLastPssRss = lastPssRss;
+    }
+
     @GuardedBy("mProfilerLock")
     Debug.MemoryInfo getLastMemInfo() {
         return mLastMemInfo;
@@ -46,6 +46,13 @@ final class ProcessProviderRecord {
      */
     private final ArrayList<ContentProviderConnection> mConProviders = new ArrayList<>();
 
+    /**
+     * authority (String) -> the connection of {@link #mConProviders} it was last acquired with
+     * while published, for {@link ContentProviderHelper} to hand out again without the global
+     * lock. Copied on every change so that it can be read without any lock.
+     */
+    private volatile ArrayMap<String, ContentProviderConnection> mPublishedConnections;
+
     long getLastProviderTime() {
         return mLastProviderTime;
     }
@@ -95,9 +102,44 @@ final class ProcessProviderRecord {
     }
 
     boolean removeProviderConnection(ContentProviderConnection connection) {
+        final ArrayMap<String, ContentProviderConnection> published = mPublishedConnections;
+        if (published != null && published.containsValue(connection)) {
+            final ArrayMap<String, ContentProviderConnection> copy = new ArrayMap<>(published);
+            for (int i = copy.size() - 1; i >= 0; i--) {
+                if (copy.valueAt(i) == connection) {
+                    copy.removeAt(i);
+                }
+            }
+            mPublishedConnections = copy.isEmpty() ? null : copy;
+        }
         return mConProviders.remove(connection);
     }
 
+    /**
+     * @return The connection to the published provider of the given authority this process
+     *         acquired it with for the given user, or null. Doesn't need any lock.
+     */
+    ContentProviderConnection getPublishedConnection(String authority, int userId) {
+        final ArrayMap<String, ContentProviderConnection> published = mPublishedConnections;
+        if (published == null) {
+            return null;
+        }
+        final ContentProviderConnection conn = published.get(authority);
+        return conn != null && conn.mExpectedUserId == userId ? conn : null;
+    }
+
+    @GuardedBy("mService")
+    void notePublishedConnectionLocked(String authority, ContentProviderConnection connection) {
+        final ArrayMap<String, ContentProviderConnection> published = mPublishedConnections;
+        if (published != null && published.get(authority) == connection) {
+            return;
+        }
+        final ArrayMap<String, ContentProviderConnection> copy = published != null
+                ? new ArrayMap<>(published) : new ArrayMap<>(1);
+        copy.put(authority, connection);
+        mPublishedConnections = copy;
+    }
+
     ProcessProviderRecord(ProcessRecord app) {
         mApp = app;
         mService = app.mService;
@@ -137,6 +179,7 @@ final class ProcessProviderRecord {
         }
 
         // Unregister from connected content providers.
+        mPublishedConnections = null;
         if (!mConProviders.isEmpty()) {
             for (int i = mConProviders.size() - 1; i >= 0; i--) {
                 final ContentProviderConnection conn = mConProviders.get(i);
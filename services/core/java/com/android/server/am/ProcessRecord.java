@@ -196,6 +196,12 @@ class ProcessRecord implements WindowProcessListener {
      */
     private volatile int mStartUid;
 
+    /**
+     * The phase timings of the start of this process, once the zygote returned its pid.
+     */
+    @GuardedBy("mService")
+    private ProcessStartProfiler.Sample mStartSample;
+
     /**
      * Indicates how the external storage was mounted for this process.
      */
@@ -720,6 +726,16 @@ class ProcessRecord implements WindowProcessListener {
         return mStartElapsedTime;
     }
 
+    @GuardedBy("mService")
+    ProcessStartProfiler.Sample getStartSample() {
+        return mStartSample;
+    }
+
+    @GuardedBy("mService")
+    void setStartSample(ProcessStartProfiler.Sample startSample) {
+        mStartSample = startSample;
+    }
+
     int getStartUid() {
         return mStartUid;
     }
@@ -62,6 +62,12 @@ final class ProcessServiceRecord {
      */
     private long mLastTopStartedAlmostPerceptibleBindRequestUptimeMs;
 
+    /**
+     * The uptime this process was started at to restart a service, or 0 if it wasn't.
+     */
+    @GuardedBy("mService")
+    private long mServiceRestartStartTime;
+
     /**
      * Service that applied current connectionGroup/Importance.
      */
@@ -117,6 +123,11 @@ final class ProcessServiceRecord {
      */
     private final ArraySet<ServiceRecord> mExecutingServices = new ArraySet<>();
 
+    /**
+     * Timer for the services executing in this process, created on first use.
+     */
+    TimerWheel.Timer mExecutingTimeoutTimer;
+
     /**
      * All ConnectionRecord this process holds.
      */
@@ -145,6 +156,16 @@ final class ProcessServiceRecord {
         return mHasClientActivities;
     }
 
+    @GuardedBy("mService")
+    void setServiceRestartStartTime(long startTime) {
+        mServiceRestartStartTime = startTime;
+    }
+
+    @GuardedBy("mService")
+    long getServiceRestartStartTime() {
+        return mServiceRestartStartTime;
+    }
+
     void setHasForegroundServices(boolean hasForegroundServices, int fgServiceTypes) {
         mHasForegroundServices = hasForegroundServices;
         mFgServiceTypes = fgServiceTypes;
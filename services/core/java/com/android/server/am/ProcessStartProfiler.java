@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.annotation.UptimeMillisLong;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Records how long each phase of recent cold process starts took, in one ring buffer per
+ * hosting type, and reports their percentiles by hosting type and by package.
+ */
+final class ProcessStartProfiler {
+    static final int PHASE_FORK = 0;
+    static final int PHASE_ATTACH = 1;
+    static final int PHASE_PROVIDERS = 2;
+    static final int PHASE_BIND = 3;
+    static final int PHASE_COMPONENTS = 4;
+    static final int PHASE_PROVIDER_PUBLISH = 5;
+    static final int PHASE_TOTAL = 6;
+    static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+        "fork", "attach", "providers", "bind", "components", "publish", "total"
+    };
+
+    /** Number of starts kept per hosting type. */
+    @VisibleForTesting
+    static final int SAMPLES_PER_HOSTING_TYPE = 64;
+
+    /** Number of packages with the most starts to report individually. */
+    private static final int MAX_PACKAGES_TO_DUMP = 20;
+
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    /**
+     * The timeline of a single process start. All the times are in uptime; those of the
+     * phases which haven't been reached yet are 0.
+     */
+    static final class Sample {
+        final String mHostingType;
+        final String mPackageName;
+        @UptimeMillisLong final long mStartTime;
+        @UptimeMillisLong long mForkDoneTime;
+        @UptimeMillisLong long mAttachTime;
+        @UptimeMillisLong long mProvidersDoneTime;
+        @UptimeMillisLong long mBindDoneTime;
+        @UptimeMillisLong long mAttachDoneTime;
+        @UptimeMillisLong long mFirstPublishTime;
+
+        Sample(String hostingType, String packageName, @UptimeMillisLong long startTime) {
+            mHostingType = hostingType;
+            mPackageName = packageName;
+            mStartTime = startTime;
+        }
+
+        /**
+         * @return The duration of the given phase, or -1 if it isn't known.
+         */
+        long getPhaseDuration(int phase) {
+            switch (phase) {
+                case PHASE_FORK:
+                    return duration(mStartTime, mForkDoneTime);
+                case PHASE_ATTACH:
+                    // The process may attach before we heard back from the zygote.
+                    return duration(Math.min(mForkDoneTime, mAttachTime), mAttachTime);
+                case PHASE_PROVIDERS:
+                    return duration(mAttachTime, mProvidersDoneTime);
+                case PHASE_BIND:
+                    return duration(mProvidersDoneTime, mBindDoneTime);
+                case PHASE_COMPONENTS:
+                    return duration(mBindDoneTime, mAttachDoneTime);
+                case PHASE_PROVIDER_PUBLISH:
+                    return duration(mBindDoneTime, mFirstPublishTime);
+                case PHASE_TOTAL:
+                    return duration(mStartTime, mAttachDoneTime);
+                default:
+                    return -1;
+            }
+        }
+
+        private static long duration(long from, long to) {
+            return from == 0 || to == 0 ? -1 : Math.max(0, to - from);
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    /** The completed starts, by hosting type. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, SampleRing> mSamples = new ArrayMap<>();
+
+    private static final class SampleRing {
+        final Sample[] mSamples = new Sample[SAMPLES_PER_HOSTING_TYPE];
+        int mNext;
+        long mTotal;
+
+        void add(Sample sample) {
+            mSamples[mNext] = sample;
+            mNext = (mNext + 1) % mSamples.length;
+            mTotal++;
+        }
+    }
+
+    /**
+     * Called once a process has attached and its initial components were dispatched.
+     */
+    void noteAttachDone(Sample sample, @UptimeMillisLong long now) {
+        synchronized (mLock) {
+            sample.mAttachDoneTime = now;
+            SampleRing ring = mSamples.get(sample.mHostingType);
+            if (ring == null) {
+                ring = new SampleRing();
+                mSamples.put(sample.mHostingType, ring);
+            }
+            ring.add(sample);
+        }
+    }
+
+    /**
+     * Called when a process publishes its content providers.
+     */
+    void noteProvidersPublished(Sample sample, @UptimeMillisLong long now) {
+        synchronized (mLock) {
+            if (sample.mFirstPublishTime == 0) {
+                sample.mFirstPublishTime = now;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Process cold start phases (ms) of recent starts, "
+                    + Arrays.toString(PERCENTILES) + " percentiles:");
+            final ArrayMap<String, ArrayList<Sample>> byPackage = new ArrayMap<>();
+            final ArrayList<Sample> samples = new ArrayList<>();
+            for (int i = 0, size = mSamples.size(); i < size; i++) {
+                final SampleRing ring = mSamples.valueAt(i);
+                samples.clear();
+                for (Sample sample : ring.mSamples) {
+                    if (sample == null) {
+                        continue;
+                    }
+                    samples.add(sample);
+                    ArrayList<Sample> pkgSamples = byPackage.get(sample.mPackageName);
+                    if (pkgSamples == null) {
+                        pkgSamples = new ArrayList<>();
+                        byPackage.put(sample.mPackageName, pkgSamples);
+                    }
+                    pkgSamples.add(sample);
+                }
+                pw.print("  "); pw.print(mSamples.keyAt(i));
+                pw.print(" (total="); pw.print(ring.mTotal);
+                pw.print(" recent="); pw.print(samples.size()); pw.println("):");
+                for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                    dumpPercentiles(pw, "    ", PHASE_NAMES[phase], samples, phase);
+                }
+            }
+            if (byPackage.isEmpty()) {
+                return;
+            }
+            final ArrayList<String> packages = new ArrayList<>(byPackage.keySet());
+            packages.sort((a, b) -> Integer.compare(
+                    byPackage.get(b).size(), byPackage.get(a).size()));
+            pw.println("  By package (most started first):");
+            for (int i = 0; i < packages.size() && i < MAX_PACKAGES_TO_DUMP; i++) {
+                final String pkg = packages.get(i);
+                dumpPercentiles(pw, "    ", pkg, byPackage.get(pkg), PHASE_TOTAL);
+            }
+        }
+    }
+
+    private static void dumpPercentiles(PrintWriter pw, String prefix, String label,
+            ArrayList<Sample> samples, int phase) {
+        final long[] durations = new long[samples.size()];
+        int count = 0;
+        for (int i = 0, size = samples.size(); i < size; i++) {
+            final long duration = samples.get(i).getPhaseDuration(phase);
+            if (duration >= 0) {
+                durations[count++] = duration;
+            }
+        }
+        pw.print(prefix); pw.print(label); pw.print(": n="); pw.print(count);
+        if (count > 0) {
+            Arrays.sort(durations, 0, count);
+            for (int percentile : PERCENTILES) {
+                pw.print(" p"); pw.print(percentile); pw.print("=");
+                pw.print(durations[Math.min(count - 1, count * percentile / 100)]);
+            }
+        }
+        pw.println();
+    }
+}
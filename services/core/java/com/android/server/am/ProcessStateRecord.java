@@ -368,6 +368,13 @@ final class ProcessStateRecord {
     @GuardedBy("mService")
     private long mCacheOomRankerRssTimeMs;
 
+    /**
+     * How long, in milliseconds, this process took from being started until it finished
+     * attaching, used for cache re-ranking by CacheOomRanker.
+     */
+    @GuardedBy("mService")
+    private long mCacheOomRankerStartCostMs;
+
     /**
      * Whether or not this process is reachable from given process.
      */
@@ -1274,6 +1281,16 @@ final class ProcessStateRecord {
         return mCacheOomRankerRssTimeMs;
     }
 
+    @GuardedBy("mService")
+    void setCacheOomRankerStartCostMs(long startCostMs) {
+        mCacheOomRankerStartCostMs = startCostMs;
+    }
+
+    @GuardedBy("mService")
+    long getCacheOomRankerStartCostMs() {
+        return mCacheOomRankerStartCostMs;
+    }
+
     @GuardedBy({"mService", "mProcLock"})
     void dump(PrintWriter pw, String prefix, long nowUptime) {
         if (mReportedInteraction || mFgInteractionTime != 0) {
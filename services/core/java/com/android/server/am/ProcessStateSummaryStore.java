@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_AM;
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NAME;
+
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.function.IntPredicate;
+
+/**
+ * Keeps the state summaries set by the live processes through
+ * {@link android.app.ActivityManager#setProcessStateSummary}, until they're claimed by the
+ * exit info of their process.
+ *
+ * <p>The summaries are stored in fixed size slots of a single memory mapped arena rather than
+ * in the heap, so their footprint is capped no matter how many processes set one. Once the
+ * arena, or the share of it a single uid may take, is full, the least recently set summary is
+ * evicted.</p>
+ *
+ * <p>This class isn't thread safe, the caller must hold its own lock.</p>
+ */
+final class ProcessStateSummaryStore {
+    private static final String TAG = TAG_WITH_CLASS_NAME
+            ? "ProcessStateSummaryStore" : TAG_AM;
+
+    /** The size of a slot, which is the maximum size of a summary. */
+    @VisibleForTesting
+    static final int SLOT_SIZE = ActivityManagerService.MAX_STATE_DATA_SIZE;
+
+    /** The number of slots of the arena, which makes it 128KB. */
+    @VisibleForTesting
+    static final int MAX_SLOTS = 1024;
+
+    /** The number of slots a single uid may take. */
+    @VisibleForTesting
+    static final int MAX_SLOTS_PER_UID = 64;
+
+    private static final int NONE = -1;
+
+    /** Mapped on the first summary being set. */
+    private ByteBuffer mArena;
+
+    private final int[] mUids = new int[MAX_SLOTS];
+    private final int[] mPids = new int[MAX_SLOTS];
+    private final int[] mLengths = new int[MAX_SLOTS];
+
+    // The used slots are linked from the most to the least recently set one; the free slots
+    // are chained through mNext from mFreeHead.
+    private final int[] mPrev = new int[MAX_SLOTS];
+    private final int[] mNext = new int[MAX_SLOTS];
+    private int mHead;
+    private int mTail;
+    private int mFreeHead;
+    private int mNumUsed;
+
+    /** The slot of each summary, by uid and pid. */
+    private final SparseArray<SparseIntArray> mSlots = new SparseArray<>();
+
+    private long mNumEvicted;
+
+    ProcessStateSummaryStore() {
+        resetSlots();
+    }
+
+    /**
+     * Set the summary of the given process, replacing its previous one; a null one clears it.
+     */
+    void put(int uid, int pid, @Nullable byte[] data) {
+        if (data == null) {
+            remove(uid, pid);
+            return;
+        }
+        if (data.length > SLOT_SIZE) {
+            throw new IllegalArgumentException("Data size is too large");
+        }
+        int slot = findSlot(uid, pid);
+        if (slot != NONE) {
+            unlink(slot);
+        } else {
+            SparseIntArray pids = mSlots.get(uid);
+            if (pids != null && pids.size() >= MAX_SLOTS_PER_UID) {
+                evict(findOldestSlot(uid));
+            }
+            if (mFreeHead == NONE) {
+                evict(mTail);
+            }
+            pids = mSlots.get(uid);
+            if (pids == null) {
+                pids = new SparseIntArray();
+                mSlots.put(uid, pids);
+            }
+            slot = mFreeHead;
+            mFreeHead = mNext[slot];
+            mUids[slot] = uid;
+            mPids[slot] = pid;
+            pids.put(pid, slot);
+            mNumUsed++;
+        }
+        linkFirst(slot);
+        final ByteBuffer arena = getArena();
+        arena.position(slot * SLOT_SIZE);
+        arena.put(data);
+        mLengths[slot] = data.length;
+    }
+
+    /**
+     * @return A copy of the summary of the given process, or null if it has none.
+     */
+    @Nullable byte[] get(int uid, int pid) {
+        final int slot = findSlot(uid, pid);
+        return slot != NONE ? read(slot) : null;
+    }
+
+    /**
+     * Remove the summary of the given process.
+     *
+     * @return The removed summary, or null if it had none.
+     */
+    @Nullable byte[] remove(int uid, int pid) {
+        final int slot = findSlot(uid, pid);
+        if (slot == NONE) {
+            return null;
+        }
+        final byte[] data = read(slot);
+        free(slot);
+        return data;
+    }
+
+    /**
+     * Remove the summaries of all the processes of the uids matching the given predicate.
+     */
+    void removeUids(IntPredicate predicate) {
+        for (int i = mSlots.size() - 1; i >= 0; i--) {
+            if (predicate.test(mSlots.keyAt(i))) {
+                final SparseIntArray pids = mSlots.valueAt(i);
+                for (int j = pids.size() - 1; j >= 0; j--) {
+                    free(pids.valueAt(j));
+                }
+            }
+        }
+    }
+
+    void clear() {
+        mSlots.clear();
+        resetSlots();
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Process state summaries: used="); pw.print(mNumUsed);
+        pw.print("/"); pw.print(MAX_SLOTS);
+        pw.print(" uids="); pw.print(mSlots.size());
+        pw.print(" evicted="); pw.println(mNumEvicted);
+    }
+
+    private void resetSlots() {
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            mNext[i] = i + 1 < MAX_SLOTS ? i + 1 : NONE;
+        }
+        mFreeHead = 0;
+        mHead = mTail = NONE;
+        mNumUsed = 0;
+    }
+
+    private ByteBuffer getArena() {
+        if (mArena == null) {
+            try {
+                mArena = SharedMemory.create(TAG, MAX_SLOTS * SLOT_SIZE).mapReadWrite();
+            } catch (ErrnoException e) {
+                Slog.w(TAG, "Unable to map the arena, falling back to the heap", e);
+                mArena = ByteBuffer.allocate(MAX_SLOTS * SLOT_SIZE);
+            }
+        }
+        return mArena;
+    }
+
+    private int findSlot(int uid, int pid) {
+        final SparseIntArray pids = mSlots.get(uid);
+        return pids != null ? pids.get(pid, NONE) : NONE;
+    }
+
+    private int findOldestSlot(int uid) {
+        for (int slot = mTail; slot != NONE; slot = mPrev[slot]) {
+            if (mUids[slot] == uid) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private byte[] read(int slot) {
+        final byte[] data = new byte[mLengths[slot]];
+        final ByteBuffer arena = getArena();
+        arena.position(slot * SLOT_SIZE);
+        arena.get(data);
+        return data;
+    }
+
+    private void evict(int slot) {
+        if (slot != NONE) {
+            free(slot);
+            mNumEvicted++;
+        }
+    }
+
+    private void free(int slot) {
+        unlink(slot);
+        final int uid = mUids[slot];
+        final int index = mSlots.indexOfKey(uid);
+        if (index >= 0) {
+            final SparseIntArray pids = mSlots.valueAt(index);
+            pids.delete(mPids[slot]);
+            if (pids.size() == 0) {
+                mSlots.removeAt(index);
+            }
+        }
+        mNext[slot] = mFreeHead;
+        mFreeHead = slot;
+        mNumUsed--;
+    }
+
+    private void linkFirst(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) {
+            mPrev[mHead] = slot;
+        } else {
+            mTail = slot;
+        }
+        mHead = slot;
+    }
+
+    private void unlink(int slot) {
+        final int prev = mPrev[slot];
+        final int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+}
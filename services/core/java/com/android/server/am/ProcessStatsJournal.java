@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the periodic snapshots of the current process stats incrementally: a full snapshot
+ * goes to the state file itself, and each following one only appends the ranges of it which
+ * changed since the previous one to a journal next to it, until the journal is due to be folded
+ * into a new full snapshot.
+ *
+ * <p>The journal is a sequence of records, each of them made of a magic number, the length of
+ * the new snapshot, the changed ranges as offset, length and bytes, and a CRC32 of all that; a
+ * torn record at the end is ignored.</p>
+ *
+ * <p>Not thread safe, the caller must hold the file lock of {@link ProcessStatsService}.</p>
+ */
+final class ProcessStatsJournal {
+    private static final String TAG = ProcessStatsService.TAG;
+
+    static final String JOURNAL_SUFFIX = ".delta";
+
+    private static final int RECORD_MAGIC = 0x50534A31; // "PSJ1"
+
+    /** The granularity of the comparison of the snapshots. */
+    @VisibleForTesting
+    static final int BLOCK_SIZE = 1024;
+
+    /** Take a full snapshot after this many deltas. */
+    @VisibleForTesting
+    static final int MAX_DELTAS = 16;
+
+    /** The content of the file we last wrote, base and journal together. */
+    private File mLastFile;
+    private byte[] mLastData;
+    private int mNumDeltas;
+    private long mJournalSize;
+
+    private long mNumFullWrites;
+    private long mNumDeltaWrites;
+    private long mBytesWritten;
+    private long mBytesSnapshotted;
+
+    static File getJournalFile(File baseFile) {
+        return new File(baseFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    static boolean isJournalFile(String name) {
+        return name.endsWith(JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Write the given snapshot to the given file, as a delta against the previous snapshot of
+     * the same file if possible.
+     *
+     * @param full Whether to write a full snapshot regardless, such as when the file is final.
+     */
+    void write(AtomicFile file, byte[] data, boolean full) throws IOException {
+        final File baseFile = file.getBaseFile();
+        mBytesSnapshotted += data.length;
+        if (!full && baseFile.equals(mLastFile) && mLastData != null
+                && mNumDeltas < MAX_DELTAS) {
+            final byte[] record = encodeDelta(mLastData, data);
+            // Once the journal takes half as much as a full snapshot, it's time to fold it.
+            if (mJournalSize + record.length < data.length / 2) {
+                try {
+                    appendDelta(baseFile, record);
+                } catch (IOException e) {
+                    // Records after a torn one would be ignored, start over with a full one.
+                    reset();
+                    throw e;
+                }
+                mLastData = data;
+                mNumDeltas++;
+                mJournalSize += record.length;
+                mNumDeltaWrites++;
+                mBytesWritten += record.length;
+                return;
+            }
+        }
+        writeFull(file, data);
+        mLastFile = baseFile;
+        mLastData = data;
+        mNumDeltas = 0;
+        mJournalSize = 0;
+        mNumFullWrites++;
+        mBytesWritten += data.length;
+    }
+
+    /**
+     * Forget the last snapshot, so the next one is written in full.
+     */
+    void reset() {
+        mLastFile = null;
+        mLastData = null;
+    }
+
+    /**
+     * @return A stream over the content of the given state file, with its journal applied if it
+     *         has one. Without one, the file is streamed as is, restored from its backup if the
+     *         last write didn't finish. The caller must close it.
+     */
+    static InputStream openRead(AtomicFile file) throws IOException {
+        if (getJournalFile(file.getBaseFile()).exists()) {
+            return new ByteArrayInputStream(read(file));
+        }
+        return file.openRead();
+    }
+
+    /**
+     * @return The content of the given state file, with its journal applied if it has one.
+     */
+    static byte[] read(AtomicFile file) throws IOException {
+        byte[] data = file.readFully();
+        final File journal = getJournalFile(file.getBaseFile());
+        if (!journal.exists()) {
+            return data;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                final byte[] next = applyDelta(data, in);
+                if (next == null) {
+                    break;
+                }
+                data = next;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Fold the journal of the given state file, if it has one, into a full snapshot; so the file
+     * may be handed out or renamed as is.
+     */
+    static void compact(AtomicFile file) throws IOException {
+        final File journal = getJournalFile(file.getBaseFile());
+        if (journal.exists()) {
+            writeFull(file, read(file));
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Snapshots: full="); pw.print(mNumFullWrites);
+        pw.print(" delta="); pw.print(mNumDeltaWrites);
+        pw.print(" written="); pw.print(mBytesWritten);
+        pw.print("/"); pw.println(mBytesSnapshotted);
+    }
+
+    private static void writeFull(AtomicFile file, byte[] data) throws IOException {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(data);
+            stream.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            file.failWrite(stream);
+            throw e;
+        }
+        // The snapshot covers the journal now.
+        getJournalFile(file.getBaseFile()).delete();
+    }
+
+    private static void appendDelta(File baseFile, byte[] record) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(baseFile), true)) {
+            out.write(record);
+            out.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static byte[] encodeDelta(byte[] from, byte[] to) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(to.length);
+        // Count the changed ranges first, then write them.
+        int numRanges = 0;
+        for (int offset = 0; offset < to.length; ) {
+            final int end = findChangedRangeEnd(from, to, offset);
+            if (end > offset) {
+                numRanges++;
+                offset = end;
+            } else {
+                offset += BLOCK_SIZE;
+            }
+        }
+        out.writeInt(numRanges);
+        for (int offset = 0; offset < to.length; ) {
+            final int end = findChangedRangeEnd(from, to, offset);
+            if (end > offset) {
+                out.writeInt(offset);
+                out.writeInt(end - offset);
+                out.write(to, offset, end - offset);
+                offset = end;
+            } else {
+                offset += BLOCK_SIZE;
+            }
+        }
+        out.flush();
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 12);
+        final DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(RECORD_MAGIC);
+        recordOut.write(payload);
+        recordOut.writeLong(crc.getValue());
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    /**
+     * @return The end of the run of changed blocks starting at the given offset, which is the
+     *         offset itself if the block there didn't change.
+     */
+    private static int findChangedRangeEnd(byte[] from, byte[] to, int offset) {
+        int end = offset;
+        while (end < to.length) {
+            final int blockEnd = Math.min(end + BLOCK_SIZE, to.length);
+            if (blockEnd <= from.length && rangeEquals(from, to, end, blockEnd)) {
+                break;
+            }
+            end = blockEnd;
+        }
+        return end;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The given data with the next record of the journal applied, or null if there
+     *         isn't any valid record left.
+     */
+    private static byte[] applyDelta(byte[] data, DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != RECORD_MAGIC) {
+                Slog.w(TAG, "Ignoring the rest of a corrupted procstats journal");
+                return null;
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream payload = new DataOutputStream(bytes);
+            final int length = in.readInt();
+            final int numRanges = in.readInt();
+            if (length < 0 || numRanges < 0 || numRanges > length / BLOCK_SIZE + 1) {
+                Slog.w(TAG, "Ignoring the rest of a corrupted procstats journal");
+                return null;
+            }
+            payload.writeInt(length);
+            payload.writeInt(numRanges);
+            final byte[] result = Arrays.copyOf(data, length);
+            for (int i = 0; i < numRanges; i++) {
+                final int offset = in.readInt();
+                final int size = in.readInt();
+                if (offset < 0 || size < 0 || offset + size > length) {
+                    Slog.w(TAG, "Ignoring the rest of a corrupted procstats journal");
+                    return null;
+                }
+                in.readFully(result, offset, size);
+                payload.writeInt(offset);
+                payload.writeInt(size);
+                payload.write(result, offset, size);
+            }
+            payload.flush();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            if (in.readLong() != crc.getValue()) {
+                Slog.w(TAG, "Ignoring a torn procstats journal record");
+                return null;
+            }
+            return result;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
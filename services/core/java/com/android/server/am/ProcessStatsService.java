@@ -48,7 +48,6 @@ import dalvik.annotation.optimization.NeverCompile;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -95,6 +94,9 @@ public final class ProcessStatsService extends IProcessStats.Stub {
     @GuardedBy("mFileLock")
     AtomicFile mFile;
 
+    @GuardedBy("mFileLock")
+    final ProcessStatsJournal mJournal = new ProcessStatsJournal();
+
     @GuardedBy("mLock")
     boolean mCommitPending;
 
@@ -129,6 +131,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             mProcessStats = new ProcessStats(true);
             updateFileLocked();
         }
+        BackgroundThread.getHandler().post(this::compactStaleJournals);
         SystemProperties.addChangeCallback(new Runnable() {
             @Override public void run() {
                 synchronized (mLock) {
@@ -281,36 +284,47 @@ public final class ProcessStatsService extends IProcessStats.Stub {
 
     @GuardedBy("mLock")
     private void writeStateLocked(boolean sync, final boolean commit) {
-        final long totalTime;
+        final long now = SystemClock.uptimeMillis();
+        final boolean replacePending;
         synchronized (mPendingWriteLock) {
-            final long now = SystemClock.uptimeMillis();
-            if (mPendingWrite == null || !mPendingWriteCommitted) {
-                mPendingWrite = Parcel.obtain();
-                mProcessStats.mTimePeriodEndRealtime = SystemClock.elapsedRealtime();
-                mProcessStats.mTimePeriodEndUptime = now;
-                if (commit) {
-                    mProcessStats.mFlags |= ProcessStats.FLAG_COMPLETE;
+            replacePending = mPendingWrite == null || !mPendingWriteCommitted;
+        }
+        // Take the snapshot with only mLock held; the pending write can only be replaced by us.
+        Parcel data = null;
+        if (replacePending) {
+            data = Parcel.obtain();
+            mProcessStats.mTimePeriodEndRealtime = SystemClock.elapsedRealtime();
+            mProcessStats.mTimePeriodEndUptime = now;
+            if (commit) {
+                mProcessStats.mFlags |= ProcessStats.FLAG_COMPLETE;
+            }
+            mProcessStats.writeToParcel(data, 0);
+        }
+        synchronized (mPendingWriteLock) {
+            if (data != null) {
+                if (mPendingWrite != null) {
+                    mPendingWrite.recycle();
                 }
-                mProcessStats.writeToParcel(mPendingWrite, 0);
+                mPendingWrite = data;
                 mPendingWriteFile = new AtomicFile(getCurrentFile());
                 mPendingWriteCommitted = commit;
             }
-            if (commit) {
-                mProcessStats.resetSafely();
-                updateFileLocked();
-                scheduleRequestPssAllProcs(true, false);
-            }
-            mLastWriteTime = SystemClock.uptimeMillis();
-            totalTime = SystemClock.uptimeMillis() - now;
-            if (DEBUG) Slog.d(TAG, "Prepared write state in " + now + "ms");
-            if (!sync) {
-                BackgroundThread.getHandler().post(new Runnable() {
-                    @Override public void run() {
-                        performWriteState(totalTime);
-                    }
-                });
-                return;
-            }
+        }
+        if (commit) {
+            mProcessStats.resetSafely();
+            updateFileLocked();
+            scheduleRequestPssAllProcs(true, false);
+        }
+        mLastWriteTime = SystemClock.uptimeMillis();
+        final long totalTime = SystemClock.uptimeMillis() - now;
+        if (DEBUG) Slog.d(TAG, "Prepared write state in " + now + "ms");
+        if (!sync) {
+            BackgroundThread.getHandler().post(new Runnable() {
+                @Override public void run() {
+                    performWriteState(totalTime);
+                }
+            });
+            return;
         }
 
         performWriteState(totalTime);
@@ -350,9 +364,11 @@ public final class ProcessStatsService extends IProcessStats.Stub {
         if (DEBUG) Slog.d(TAG, "Performing write to " + getCurrentFile());
         Parcel data;
         AtomicFile file;
+        boolean committed;
         synchronized (mPendingWriteLock) {
             data = mPendingWrite;
             file = mPendingWriteFile;
+            committed = mPendingWriteCommitted;
             mPendingWriteCommitted = false;
             if (data == null) {
                 return;
@@ -363,18 +379,14 @@ public final class ProcessStatsService extends IProcessStats.Stub {
         }
 
         final long startTime = SystemClock.uptimeMillis();
-        FileOutputStream stream = null;
         try {
-            stream = file.startWrite();
-            stream.write(data.marshall());
-            stream.flush();
-            file.finishWrite(stream);
+            // A committed period won't change anymore, so it's kept as a full snapshot.
+            mJournal.write(file, data.marshall(), committed);
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
                     "procstats", SystemClock.uptimeMillis() - startTime + initialTime);
             if (DEBUG) Slog.d(TAG, "Write completed successfully!");
         } catch (IOException e) {
             Slog.w(TAG, "Error writing process statistics", e);
-            file.failWrite(stream);
         } finally {
             data.recycle();
             trimHistoricStatesWriteLF();
@@ -385,9 +397,9 @@ public final class ProcessStatsService extends IProcessStats.Stub {
     @GuardedBy("mFileLock")
     private boolean readLF(ProcessStats stats, AtomicFile file) {
         try {
-            FileInputStream stream = file.openRead();
-            stats.read(stream);
-            stream.close();
+            try (InputStream stream = ProcessStatsJournal.openRead(file)) {
+                stats.read(stream);
+            }
             if (stats.mReadError != null) {
                 Slog.w(TAG, "Ignoring existing stats; " + stats.mReadError);
                 if (DEBUG) {
@@ -466,6 +478,10 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                 if (DEBUG) Slog.d(TAG, "Skipping: mismatching prefix");
                 continue;
             }
+            if (ProcessStatsJournal.isJournalFile(fileStr)) {
+                if (DEBUG) Slog.d(TAG, "Skipping: journal");
+                continue;
+            }
             if (!inclCheckedIn && fileStr.endsWith(STATE_FILE_CHECKIN_SUFFIX)) {
                 if (DEBUG) Slog.d(TAG, "Skipping: already checked in");
                 continue;
@@ -485,7 +501,13 @@ public final class ProcessStatsService extends IProcessStats.Stub {
         File[] files = mBaseDir.listFiles();
         if (files != null) {
             for (int i = 0; i < files.length; i++) {
-                if (!files[i].getName().startsWith(STATE_FILE_PREFIX)) {
+                final String name = files[i].getName();
+                if (!name.startsWith(STATE_FILE_PREFIX)) {
+                    files[i].delete();
+                } else if (ProcessStatsJournal.isJournalFile(name) && !(new File(mBaseDir,
+                        name.substring(0, name.length()
+                                - ProcessStatsJournal.JOURNAL_SUFFIX.length()))).exists()) {
+                    // The state file it's the journal of is gone.
                     files[i].delete();
                 }
             }
@@ -498,6 +520,30 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             String file = filesArray.remove(0);
             Slog.i(TAG, "Pruning old procstats: " + file);
             (new File(file)).delete();
+            ProcessStatsJournal.getJournalFile(new File(file)).delete();
+        }
+    }
+
+    /**
+     * Fold the journals left from the previous boot into full snapshots, so the committed files
+     * can be handed out as they are.
+     */
+    private void compactStaleJournals() {
+        mFileLock.lock();
+        try {
+            final ArrayList<String> files = getCommittedFilesLF(0, false, true);
+            if (files == null) {
+                return;
+            }
+            for (int i = files.size() - 1; i >= 0; i--) {
+                try {
+                    ProcessStatsJournal.compact(new AtomicFile(new File(files.get(i))));
+                } catch (IOException e) {
+                    Slog.w(TAG, "Error compacting " + files.get(i), e);
+                }
+            }
+        } finally {
+            mFileLock.unlock();
         }
     }
 
@@ -653,13 +699,11 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                                         + STATE_FILE_PREFIX.length(),
                                 fileName.lastIndexOf(STATE_FILE_SUFFIX));
                         if (startTimeStr.compareToIgnoreCase(highWaterMarkStr) > 0) {
-                            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(
-                                    new File(fileName),
-                                    ParcelFileDescriptor.MODE_READ_ONLY);
-                            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
                             stats.reset();
-                            stats.read(is);
-                            is.close();
+                            try (InputStream is = ProcessStatsJournal.openRead(
+                                    new AtomicFile(new File(fileName)))) {
+                                stats.read(is);
+                            }
                             if (stats.mTimePeriodStartClock > newHighWaterMark) {
                                 newHighWaterMark = stats.mTimePeriodStartClock;
                             }
@@ -734,6 +778,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             curTime = mProcessStats.mTimePeriodEndRealtime
                     - mProcessStats.mTimePeriodStartRealtime;
         }
+        ProcessStats aggregated = null;
         mFileLock.lock();
         try {
             if (curTime < minTime) {
@@ -741,45 +786,35 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                 ArrayList<String> files = getCommittedFilesLF(0, false, true);
                 if (files != null && files.size() > 0) {
                     current.setDataPosition(0);
-                    ProcessStats stats = ProcessStats.CREATOR.createFromParcel(current);
+                    aggregated = ProcessStats.CREATOR.createFromParcel(current);
                     current.recycle();
-                    int i = files.size()-1;
-                    while (i >= 0 && (stats.mTimePeriodEndRealtime
-                            - stats.mTimePeriodStartRealtime) < minTime) {
-                        AtomicFile file = new AtomicFile(new File(files.get(i)));
-                        i--;
-                        ProcessStats moreStats = new ProcessStats(false);
-                        readLF(moreStats, file);
-                        if (moreStats.mReadError == null) {
-                            stats.add(moreStats);
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("Added stats: ");
-                            sb.append(moreStats.mTimePeriodStartClockStr);
-                            sb.append(", over ");
-                            TimeUtils.formatDuration(moreStats.mTimePeriodEndRealtime
-                                    - moreStats.mTimePeriodStartRealtime, sb);
-                            Slog.i(TAG, sb.toString());
-                        } else {
-                            Slog.w(TAG, "Failure reading " + files.get(i+1) + "; "
-                                    + moreStats.mReadError);
-                            continue;
-                        }
-                    }
-                    current = Parcel.obtain();
-                    stats.writeToParcel(current, 0);
+                    current = null;
+                    addHistoricStatsLF(aggregated, files, minTime, true);
                 }
             }
-            final byte[] outData = current.marshall();
-            current.recycle();
+        } finally {
+            mFileLock.unlock();
+        }
+        final Parcel currentData = current;
+        final ProcessStats aggregatedData = aggregated;
+        try {
             final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createPipe();
             Thread thr = new Thread("ProcessStats pipe output") {
                 public void run() {
+                    // Only flatten the aggregate here, so it never coexists with the files read.
+                    Parcel out = currentData;
+                    if (out == null) {
+                        out = Parcel.obtain();
+                        aggregatedData.writeToParcel(out, 0);
+                    }
                     FileOutputStream fout = new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]);
                     try {
-                        fout.write(outData);
+                        fout.write(out.marshall());
                         fout.close();
                     } catch (IOException e) {
                         Slog.w(TAG, "Failure writing pipe", e);
+                    } finally {
+                        out.recycle();
                     }
                 }
             };
@@ -787,12 +822,47 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             return fds[0];
         } catch (IOException e) {
             Slog.w(TAG, "Failed building output pipe", e);
-        } finally {
-            mFileLock.unlock();
+            if (current != null) {
+                current.recycle();
+            }
         }
         return null;
     }
 
+    /**
+     * Add the given committed files to the given stats, newest first, until they cover the given
+     * time. A single scratch object is reused to read them, so only one of them is in memory at a
+     * time on top of the aggregate.
+     */
+    @GuardedBy("mFileLock")
+    private void addHistoricStatsLF(ProcessStats stats, ArrayList<String> files, long minTime,
+            boolean log) {
+        final ProcessStats moreStats = new ProcessStats(false);
+        int i = files.size() - 1;
+        while (i >= 0 && (stats.mTimePeriodEndRealtime
+                - stats.mTimePeriodStartRealtime) < minTime) {
+            AtomicFile file = new AtomicFile(new File(files.get(i)));
+            i--;
+            moreStats.reset();
+            readLF(moreStats, file);
+            if (moreStats.mReadError == null) {
+                stats.add(moreStats);
+                if (log) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("Added stats: ");
+                    sb.append(moreStats.mTimePeriodStartClockStr);
+                    sb.append(", over ");
+                    TimeUtils.formatDuration(moreStats.mTimePeriodEndRealtime
+                            - moreStats.mTimePeriodStartRealtime, sb);
+                    Slog.i(TAG, sb.toString());
+                }
+            } else {
+                Slog.w(TAG, "Failure reading " + files.get(i + 1) + "; "
+                        + moreStats.mReadError);
+            }
+        }
+    }
+
     @Override
     public int getCurrentMemoryState() {
         synchronized (mLock) {
@@ -816,21 +886,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                 // Need to add in older stats to reach desired time.
                 ArrayList<String> files = getCommittedFilesLF(0, false, true);
                 if (files != null && files.size() > 0) {
-                    int i = files.size() - 1;
-                    while (i >= 0 && (stats.mTimePeriodEndRealtime
-                            - stats.mTimePeriodStartRealtime) < minTime) {
-                        AtomicFile file = new AtomicFile(new File(files.get(i)));
-                        i--;
-                        ProcessStats moreStats = new ProcessStats(false);
-                        readLF(moreStats, file);
-                        if (moreStats.mReadError == null) {
-                            stats.add(moreStats);
-                        } else {
-                            Slog.w(TAG, "Failure reading " + files.get(i + 1) + "; "
-                                    + moreStats.mReadError);
-                            continue;
-                        }
-                    }
+                    addHistoricStatsLF(stats, files, minTime, false);
                 }
             } finally {
                 mFileLock.unlock();
@@ -1106,8 +1162,11 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                             if (files != null) {
                                 for (int fi = files.size() - 1; fi >= 0; fi--) {
                                     (new File(files.get(fi))).delete();
+                                    ProcessStatsJournal.getJournalFile(
+                                            new File(files.get(fi))).delete();
                                 }
                             }
+                            mJournal.reset();
                         } finally {
                             mFileLock.unlock();
                         }
@@ -1331,6 +1390,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                             }
                             if (isCheckin) {
                                 // Rename file suffix to mark that it has checked in.
+                                ProcessStatsJournal.compact(file);
                                 file.getBaseFile().renameTo(new File(
                                         fileStr + STATE_FILE_CHECKIN_SUFFIX));
                             }
@@ -1358,6 +1418,12 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                                 dumpAll, activeOnly, section);
                         if (dumpAll) {
                             pw.print("  mFile="); pw.println(getCurrentFile());
+                            mFileLock.lock();
+                            try {
+                                mJournal.dump(pw, "  ");
+                            } finally {
+                                mFileLock.unlock();
+                            }
                         }
                     } else {
                         mProcessStats.dumpSummaryLocked(pw, reqPackage, now, activeOnly);
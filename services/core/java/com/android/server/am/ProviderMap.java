@@ -22,11 +22,11 @@ import android.content.ComponentName.WithComponentName;
 import android.os.Binder;
 import android.os.RemoteException;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.Slog;
 import android.util.SparseArray;
 
 import com.android.internal.os.TransferPipe;
-import com.android.internal.util.CollectionUtils;
 import com.android.internal.util.DumpUtils;
 
 import java.io.FileDescriptor;
@@ -36,7 +36,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -53,15 +52,34 @@ public final class ProviderMap {
 
     private final ActivityManagerService mAm;
 
-    private final HashMap<String, ContentProviderRecord> mSingletonByName
-            = new HashMap<String, ContentProviderRecord>();
-    private final HashMap<ComponentName, ContentProviderRecord> mSingletonByClass
-            = new HashMap<ComponentName, ContentProviderRecord>();
+    /**
+     * The records published under one authority or of one class: the single-user one, if any,
+     * and those of each user.
+     */
+    private static final class Slots {
+        ContentProviderRecord mSingleton;
+        final SparseArray<ContentProviderRecord> mPerUser = new SparseArray<>(1);
+
+        boolean isEmpty() {
+            return mSingleton == null && mPerUser.size() == 0;
+        }
+    }
+
+    /**
+     * authority -> the providers published under it, in all users.
+     */
+    private final HashMap<String, Slots> mByName = new HashMap<>();
+
+    /**
+     * class -> the providers of it, in all users.
+     */
+    private final HashMap<ComponentName, Slots> mByClass = new HashMap<>();
 
-    private final SparseArray<HashMap<String, ContentProviderRecord>> mProvidersByNamePerUser
-            = new SparseArray<HashMap<String, ContentProviderRecord>>();
-    private final SparseArray<HashMap<ComponentName, ContentProviderRecord>> mProvidersByClassPerUser
-            = new SparseArray<HashMap<ComponentName, ContentProviderRecord>>();
+    /**
+     * package -> the classes of {@link #mByClass} in it, so that a package can be cleaned up
+     * without looking at every provider.
+     */
+    private final HashMap<String, ArrayList<ComponentName>> mClassesByPackage = new HashMap<>();
 
     ProviderMap(ActivityManagerService am) {
         mAm = am;
@@ -75,14 +93,7 @@ public final class ProviderMap {
         if (DBG) {
             Slog.i(TAG, "getProviderByName: " + name + " , callingUid = " + Binder.getCallingUid());
         }
-        // Try to find it in the global list
-        ContentProviderRecord record = mSingletonByName.get(name);
-        if (record != null) {
-            return record;
-        }
-
-        // Check the current user's list
-        return getProvidersByName(userId).get(name);
+        return getProvider(mByName.get(name), userId);
     }
 
     ContentProviderRecord getProviderByClass(ComponentName name) {
@@ -93,14 +104,18 @@ public final class ProviderMap {
         if (DBG) {
             Slog.i(TAG, "getProviderByClass: " + name + ", callingUid = " + Binder.getCallingUid());
         }
+        return getProvider(mByClass.get(name), userId);
+    }
+
+    private static ContentProviderRecord getProvider(Slots slots, int userId) {
         // Try to find it in the global list
-        ContentProviderRecord record = mSingletonByClass.get(name);
-        if (record != null) {
-            return record;
+        if (slots != null && slots.mSingleton != null) {
+            return slots.mSingleton;
         }
 
         // Check the current user's list
-        return getProvidersByClass(userId).get(name);
+        if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
+        return slots != null ? slots.mPerUser.get(userId) : null;
     }
 
     void putProviderByName(String name, ContentProviderRecord record) {
@@ -108,12 +123,12 @@ public final class ProviderMap {
             Slog.i(TAG, "putProviderByName: " + name + " , callingUid = " + Binder.getCallingUid()
                 + ", record uid = " + record.appInfo.uid);
         }
-        if (record.singleton) {
-            mSingletonByName.put(name, record);
-        } else {
-            final int userId = UserHandle.getUserId(record.appInfo.uid);
-            getProvidersByName(userId).put(name, record);
+        Slots slots = mByName.get(name);
+        if (slots == null) {
+            slots = new Slots();
+            mByName.put(name, slots);
         }
+        putProvider(slots, record);
     }
 
     void putProviderByClass(ComponentName name, ContentProviderRecord record) {
@@ -121,96 +136,103 @@ public final class ProviderMap {
             Slog.i(TAG, "putProviderByClass: " + name + " , callingUid = " + Binder.getCallingUid()
                 + ", record uid = " + record.appInfo.uid);
         }
+        Slots slots = mByClass.get(name);
+        if (slots == null) {
+            slots = new Slots();
+            mByClass.put(name, slots);
+            ArrayList<ComponentName> classes = mClassesByPackage.get(name.getPackageName());
+            if (classes == null) {
+                classes = new ArrayList<>(1);
+                mClassesByPackage.put(name.getPackageName(), classes);
+            }
+            classes.add(name);
+        }
+        putProvider(slots, record);
+    }
+
+    private static void putProvider(Slots slots, ContentProviderRecord record) {
         if (record.singleton) {
-            mSingletonByClass.put(name, record);
+            slots.mSingleton = record;
         } else {
-            final int userId = UserHandle.getUserId(record.appInfo.uid);
-            getProvidersByClass(userId).put(name, record);
+            slots.mPerUser.put(UserHandle.getUserId(record.appInfo.uid), record);
         }
     }
 
     void removeProviderByName(String name, int userId) {
-        if (mSingletonByName.containsKey(name)) {
-            if (DBG)
-                Slog.i(TAG, "Removing from globalByName name=" + name);
-            mSingletonByName.remove(name);
-        } else {
-            if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-            if (DBG)
-                Slog.i(TAG,
-                        "Removing from providersByName name=" + name + " user=" + userId);
-            HashMap<String, ContentProviderRecord> map = getProvidersByName(userId);
-            // map returned by getProvidersByName wouldn't be null
-            map.remove(name);
-            if (map.size() == 0) {
-                mProvidersByNamePerUser.remove(userId);
-            }
+        final Slots slots = mByName.get(name);
+        if (DBG) {
+            Slog.i(TAG, "Removing from byName name=" + name + " user=" + userId);
+        }
+        removeProvider(slots, userId);
+        if (slots != null && slots.isEmpty()) {
+            mByName.remove(name);
         }
     }
 
     void removeProviderByClass(ComponentName name, int userId) {
-        if (mSingletonByClass.containsKey(name)) {
-            if (DBG)
-                Slog.i(TAG, "Removing from globalByClass name=" + name);
-            mSingletonByClass.remove(name);
-        } else {
-            if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-            if (DBG)
-                Slog.i(TAG,
-                        "Removing from providersByClass name=" + name + " user=" + userId);
-            HashMap<ComponentName, ContentProviderRecord> map = getProvidersByClass(userId);
-            // map returned by getProvidersByClass wouldn't be null
-            map.remove(name);
-            if (map.size() == 0) {
-                mProvidersByClassPerUser.remove(userId);
+        final Slots slots = mByClass.get(name);
+        if (DBG) {
+            Slog.i(TAG, "Removing from byClass name=" + name + " user=" + userId);
+        }
+        removeProvider(slots, userId);
+        if (slots != null && slots.isEmpty()) {
+            mByClass.remove(name);
+            final ArrayList<ComponentName> classes = mClassesByPackage.get(name.getPackageName());
+            if (classes != null) {
+                classes.remove(name);
+                if (classes.isEmpty()) {
+                    mClassesByPackage.remove(name.getPackageName());
+                }
             }
         }
     }
 
-    private HashMap<String, ContentProviderRecord> getProvidersByName(int userId) {
-        if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-        final HashMap<String, ContentProviderRecord> map = mProvidersByNamePerUser.get(userId);
-        if (map == null) {
-            HashMap<String, ContentProviderRecord> newMap = new HashMap<String, ContentProviderRecord>();
-            mProvidersByNamePerUser.put(userId, newMap);
-            return newMap;
+    private static void removeProvider(Slots slots, int userId) {
+        if (slots != null && slots.mSingleton != null) {
+            slots.mSingleton = null;
         } else {
-            return map;
+            if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
+            if (slots != null) {
+                slots.mPerUser.remove(userId);
+            }
         }
     }
 
-    HashMap<ComponentName, ContentProviderRecord> getProvidersByClass(int userId) {
-        if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-        final HashMap<ComponentName, ContentProviderRecord> map
-                = mProvidersByClassPerUser.get(userId);
-        if (map == null) {
-            HashMap<ComponentName, ContentProviderRecord> newMap
-                    = new HashMap<ComponentName, ContentProviderRecord>();
-            mProvidersByClassPerUser.put(userId, newMap);
-            return newMap;
-        } else {
-            return map;
+    private static boolean collectProviderLocked(ContentProviderRecord provider, boolean doit,
+            boolean evenPersistent, ArrayList<ContentProviderRecord> result) {
+        if (provider == null
+                || (provider.proc != null && !evenPersistent && provider.proc.isPersistent())) {
+            return false;
+        }
+        if (doit) {
+            result.add(provider);
         }
+        return true;
     }
 
-    private boolean collectPackageProvidersLocked(String packageName,
-            Set<String> filterByClasses, boolean doit, boolean evenPersistent,
-            HashMap<ComponentName, ContentProviderRecord> providers,
-            ArrayList<ContentProviderRecord> result) {
+    private boolean collectClassProvidersLocked(ComponentName name, boolean doit,
+            boolean evenPersistent, int userId, ArrayList<ContentProviderRecord> result) {
+        final Slots slots = mByClass.get(name);
         boolean didSomething = false;
-        for (ContentProviderRecord provider : providers.values()) {
-            final boolean sameComponent = packageName == null
-                    || (provider.info.packageName.equals(packageName)
-                        && (filterByClasses == null
-                            || filterByClasses.contains(provider.name.getClassName())));
-            if (sameComponent
-                    && (provider.proc == null || evenPersistent || !provider.proc.isPersistent())) {
-                if (!doit) {
-                    return true;
+        if (userId == UserHandle.USER_ALL || userId == UserHandle.USER_SYSTEM) {
+            didSomething = collectProviderLocked(slots.mSingleton, doit, evenPersistent, result);
+            if (!doit && didSomething) {
+                return true;
+            }
+        }
+        if (userId == UserHandle.USER_ALL) {
+            for (int i = 0, size = slots.mPerUser.size(); i < size; i++) {
+                if (collectProviderLocked(slots.mPerUser.valueAt(i), doit, evenPersistent,
+                        result)) {
+                    if (!doit) {
+                        return true;
+                    }
+                    didSomething = true;
                 }
-                didSomething = true;
-                result.add(provider);
             }
+        } else {
+            didSomething |= collectProviderLocked(slots.mPerUser.get(userId), doit,
+                    evenPersistent, result);
         }
         return didSomething;
     }
@@ -218,42 +240,45 @@ public final class ProviderMap {
     boolean collectPackageProvidersLocked(String packageName, Set<String> filterByClasses,
             boolean doit, boolean evenPersistent, int userId,
             ArrayList<ContentProviderRecord> result) {
-        boolean didSomething = false;
-        if (userId == UserHandle.USER_ALL || userId == UserHandle.USER_SYSTEM) {
-            didSomething = collectPackageProvidersLocked(packageName, filterByClasses,
-                    doit, evenPersistent, mSingletonByClass, result);
-        }
-        if (!doit && didSomething) {
-            return true;
+        if (userId < 0 && userId != UserHandle.USER_ALL) {
+            throw new IllegalArgumentException("Bad user " + userId);
         }
-        if (userId == UserHandle.USER_ALL) {
-            for (int i = 0; i < mProvidersByClassPerUser.size(); i++) {
-                if (collectPackageProvidersLocked(packageName, filterByClasses,
-                        doit, evenPersistent, mProvidersByClassPerUser.valueAt(i), result)) {
+        boolean didSomething = false;
+        if (packageName == null) {
+            for (ComponentName name : mByClass.keySet()) {
+                if (collectClassProvidersLocked(name, doit, evenPersistent, userId, result)) {
                     if (!doit) {
                         return true;
                     }
                     didSomething = true;
                 }
             }
-        } else {
-            HashMap<ComponentName, ContentProviderRecord> items
-                    = getProvidersByClass(userId);
-            if (items != null) {
-                didSomething |= collectPackageProvidersLocked(packageName, filterByClasses,
-                        doit, evenPersistent, items, result);
+            return didSomething;
+        }
+        final ArrayList<ComponentName> classes = mClassesByPackage.get(packageName);
+        if (classes == null) {
+            return false;
+        }
+        for (int i = 0, size = classes.size(); i < size; i++) {
+            final ComponentName name = classes.get(i);
+            if (filterByClasses != null && !filterByClasses.contains(name.getClassName())) {
+                continue;
+            }
+            if (collectClassProvidersLocked(name, doit, evenPersistent, userId, result)) {
+                if (!doit) {
+                    return true;
+                }
+                didSomething = true;
             }
         }
         return didSomething;
     }
 
     private boolean dumpProvidersByClassLocked(PrintWriter pw, boolean dumpAll, String dumpPackage,
-            String header, boolean needSep, HashMap<ComponentName, ContentProviderRecord> map) {
-        Iterator<Map.Entry<ComponentName, ContentProviderRecord>> it = map.entrySet().iterator();
+            String header, boolean needSep, ArrayMap<ComponentName, ContentProviderRecord> map) {
         boolean written = false;
-        while (it.hasNext()) {
-            Map.Entry<ComponentName, ContentProviderRecord> e = it.next();
-            ContentProviderRecord r = e.getValue();
+        for (int i = 0, size = map.size(); i < size; i++) {
+            ContentProviderRecord r = map.valueAt(i);
             if (dumpPackage != null && !dumpPackage.equals(r.appInfo.packageName)) {
                 continue;
             }
@@ -274,12 +299,10 @@ public final class ProviderMap {
     }
 
     private boolean dumpProvidersByNameLocked(PrintWriter pw, String dumpPackage,
-            String header, boolean needSep, HashMap<String, ContentProviderRecord> map) {
-        Iterator<Map.Entry<String, ContentProviderRecord>> it = map.entrySet().iterator();
+            String header, boolean needSep, ArrayMap<String, ContentProviderRecord> map) {
         boolean written = false;
-        while (it.hasNext()) {
-            Map.Entry<String, ContentProviderRecord> e = it.next();
-            ContentProviderRecord r = e.getValue();
+        for (int i = 0, size = map.size(); i < size; i++) {
+            ContentProviderRecord r = map.valueAt(i);
             if (dumpPackage != null && !dumpPackage.equals(r.appInfo.packageName)) {
                 continue;
             }
@@ -293,56 +316,92 @@ public final class ProviderMap {
             }
             written = true;
             pw.print("  ");
-            pw.print(e.getKey());
+            pw.print(map.keyAt(i));
             pw.print(": ");
             pw.println(r.toShortString());
         }
         return written;
     }
 
+    /**
+     * Splits the given index into its single-user records, and those of each user.
+     */
+    private static <K> ArrayMap<K, ContentProviderRecord> splitByUser(HashMap<K, Slots> index,
+            SparseArray<ArrayMap<K, ContentProviderRecord>> outPerUser) {
+        final ArrayMap<K, ContentProviderRecord> singletons = new ArrayMap<>();
+        for (Map.Entry<K, Slots> e : index.entrySet()) {
+            final Slots slots = e.getValue();
+            if (slots.mSingleton != null) {
+                singletons.put(e.getKey(), slots.mSingleton);
+            }
+            for (int i = 0, size = slots.mPerUser.size(); i < size; i++) {
+                final int userId = slots.mPerUser.keyAt(i);
+                ArrayMap<K, ContentProviderRecord> map = outPerUser.get(userId);
+                if (map == null) {
+                    map = new ArrayMap<>();
+                    outPerUser.put(userId, map);
+                }
+                map.put(e.getKey(), slots.mPerUser.valueAt(i));
+            }
+        }
+        return singletons;
+    }
+
     boolean dumpProvidersLocked(PrintWriter pw, boolean dumpAll, String dumpPackage) {
         boolean needSep = false;
 
-        if (mSingletonByClass.size() > 0) {
+        final SparseArray<ArrayMap<ComponentName, ContentProviderRecord>> byClassPerUser =
+                new SparseArray<>();
+        final ArrayMap<ComponentName, ContentProviderRecord> singletonByClass =
+                splitByUser(mByClass, byClassPerUser);
+        if (singletonByClass.size() > 0) {
             needSep |= dumpProvidersByClassLocked(pw, dumpAll, dumpPackage,
                     "  Published single-user content providers (by class):", needSep,
-                    mSingletonByClass);
+                    singletonByClass);
         }
 
-        for (int i = 0; i < mProvidersByClassPerUser.size(); i++) {
-            HashMap<ComponentName, ContentProviderRecord> map = mProvidersByClassPerUser.valueAt(i);
+        for (int i = 0; i < byClassPerUser.size(); i++) {
             needSep |= dumpProvidersByClassLocked(pw, dumpAll, dumpPackage,
-                    "  Published user " + mProvidersByClassPerUser.keyAt(i)
-                            + " content providers (by class):", needSep, map);
+                    "  Published user " + byClassPerUser.keyAt(i)
+                            + " content providers (by class):", needSep,
+                    byClassPerUser.valueAt(i));
         }
 
         if (dumpAll) {
+            final SparseArray<ArrayMap<String, ContentProviderRecord>> byNamePerUser =
+                    new SparseArray<>();
+            final ArrayMap<String, ContentProviderRecord> singletonByName =
+                    splitByUser(mByName, byNamePerUser);
             needSep |= dumpProvidersByNameLocked(pw, dumpPackage,
-                    "  Single-user authority to provider mappings:", needSep, mSingletonByName);
+                    "  Single-user authority to provider mappings:", needSep, singletonByName);
 
-            for (int i = 0; i < mProvidersByNamePerUser.size(); i++) {
+            for (int i = 0; i < byNamePerUser.size(); i++) {
                 needSep |= dumpProvidersByNameLocked(pw, dumpPackage,
-                        "  User " + mProvidersByNamePerUser.keyAt(i)
+                        "  User " + byNamePerUser.keyAt(i)
                                 + " authority to provider mappings:", needSep,
-                        mProvidersByNamePerUser.valueAt(i));
+                        byNamePerUser.valueAt(i));
             }
         }
         return needSep;
     }
 
     private ArrayList<ContentProviderRecord> getProvidersForName(String name) {
-        ArrayList<ContentProviderRecord> allProviders = new ArrayList<ContentProviderRecord>();
         final ArrayList<ContentProviderRecord> ret = new ArrayList<>();
 
         final Predicate<ContentProviderRecord> filter = DumpUtils.filterRecord(name);
 
         synchronized (mAm) {
-            allProviders.addAll(mSingletonByClass.values());
-            for (int i=0; i<mProvidersByClassPerUser.size(); i++) {
-                allProviders.addAll(mProvidersByClassPerUser.valueAt(i).values());
+            for (Slots slots : mByClass.values()) {
+                if (slots.mSingleton != null && filter.test(slots.mSingleton)) {
+                    ret.add(slots.mSingleton);
+                }
+                for (int i = 0, size = slots.mPerUser.size(); i < size; i++) {
+                    final ContentProviderRecord r = slots.mPerUser.valueAt(i);
+                    if (filter.test(r)) {
+                        ret.add(r);
+                    }
+                }
             }
-
-            CollectionUtils.addIf(allProviders, ret, filter);
         }
         // Sort by component name.
         ret.sort(Comparator.comparing(WithComponentName::getComponentName));
@@ -116,6 +116,7 @@ final class ServiceRecord extends Binder implements ComponentName.WithComponentN
     boolean delayed;        // are we waiting to start this service in the background?
     boolean fgRequired;     // is the service required to go foreground after starting?
     boolean fgWaiting;      // is a timeout for going foreground already scheduled?
+    TimerWheel.Timer fgTimeoutTimer; // timer for going foreground, created on first use
     boolean isNotAppComponentUsage; // is service binding not considered component/package usage?
     boolean isForeground;   // is service currently in foreground mode?
     int foregroundId;       // Notification ID of last foreground req.
@@ -138,6 +139,7 @@ final class ServiceRecord extends Binder implements ComponentName.WithComponentN
     long restartDelay;      // delay until next restart attempt.
     long restartTime;       // time of last restart.
     long nextRestartTime;   // time when restartDelay will expire.
+    int restartAdmissionDeferCount; // times in a row restart was deferred on memory pressure.
     boolean destroying;     // set when we have started destroying the service
     long destroyTime;       // time at which destory was initiated.
     int pendingConnectionGroup;        // To be filled in to ProcessRecord once it connects
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * An ordered list of distinct {@link ServiceRecord}s, which also indexes its records by
+ * identity, for membership checks, and by the (uid, process name) they want to run in, so
+ * the records waiting for a given process can be found without scanning the whole list.
+ *
+ * <p>Adding a record which is already in the list is a no-op.</p>
+ */
+final class ServiceRecordList {
+    private final ArrayList<ServiceRecord> mList = new ArrayList<>();
+
+    private final ArraySet<ServiceRecord> mSet = new ArraySet<>();
+
+    /**
+     * The records in this list by {@link ServiceRecord#appInfo} uid and
+     * {@link ServiceRecord#processName}, each in the order they were added.
+     */
+    private final UidProcessMap<ArrayList<ServiceRecord>> mByProcess = new UidProcessMap<>();
+
+    int size() {
+        return mList.size();
+    }
+
+    boolean isEmpty() {
+        return mList.isEmpty();
+    }
+
+    ServiceRecord get(int index) {
+        return mList.get(index);
+    }
+
+    boolean contains(ServiceRecord r) {
+        return mSet.contains(r);
+    }
+
+    int indexOf(ServiceRecord r) {
+        return mSet.contains(r) ? mList.indexOf(r) : -1;
+    }
+
+    void add(ServiceRecord r) {
+        if (mSet.add(r)) {
+            mList.add(r);
+            addToProcessIndex(r);
+        }
+    }
+
+    void add(int index, ServiceRecord r) {
+        if (mSet.add(r)) {
+            mList.add(index, r);
+            addToProcessIndex(r);
+        }
+    }
+
+    ServiceRecord remove(int index) {
+        final ServiceRecord r = mList.remove(index);
+        mSet.remove(r);
+        removeFromProcessIndex(r);
+        return r;
+    }
+
+    boolean remove(ServiceRecord r) {
+        if (!mSet.remove(r)) {
+            return false;
+        }
+        mList.remove(r);
+        removeFromProcessIndex(r);
+        return true;
+    }
+
+    void sort(Comparator<ServiceRecord> comparator) {
+        mList.sort(comparator);
+    }
+
+    /**
+     * @return The first record added to this list which wants to run in the given process,
+     *         or null if there's none.
+     */
+    ServiceRecord getFirstForProcess(int uid, String processName) {
+        final ArrayList<ServiceRecord> records = mByProcess.get(uid, processName);
+        return records == null ? null : records.get(0);
+    }
+
+    /**
+     * @return Whether there is any record in this list which wants to run in the given process.
+     */
+    boolean hasAnyForProcess(int uid, String processName) {
+        return mByProcess.get(uid, processName) != null;
+    }
+
+    /**
+     * @return The earliest {@link ServiceRecord#nextRestartTime} of the records in this list which
+     *         want to run in the given process, or {@link Long#MAX_VALUE} if there's none.
+     */
+    long getEarliestRestartTimeForProcess(int uid, String processName) {
+        final ArrayList<ServiceRecord> records = mByProcess.get(uid, processName);
+        long earliest = Long.MAX_VALUE;
+        if (records != null) {
+            for (int i = records.size() - 1; i >= 0; i--) {
+                earliest = Math.min(earliest, records.get(i).nextRestartTime);
+            }
+        }
+        return earliest;
+    }
+
+    private void addToProcessIndex(ServiceRecord r) {
+        ArrayList<ServiceRecord> records = mByProcess.get(r.appInfo.uid, r.processName);
+        if (records == null) {
+            records = mByProcess.put(r.appInfo.uid, r.processName, new ArrayList<>(1));
+        }
+        records.add(r);
+    }
+
+    private void removeFromProcessIndex(ServiceRecord r) {
+        final ArrayList<ServiceRecord> records = mByProcess.get(r.appInfo.uid, r.processName);
+        if (records != null && records.remove(r) && records.isEmpty()) {
+            mByProcess.remove(r.appInfo.uid, r.processName);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.annotation.UptimeMillisLong;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * A hierarchical timer wheel, for timeouts which are scheduled and cancelled far more often
+ * than they actually expire.
+ *
+ * <p>Scheduling and cancelling a {@link Timer} is O(1) and doesn't touch the handler's message
+ * queue; the wheel posts a single callback to the handler, at the time of its earliest
+ * possible expiration. Timers never expire early, but may expire up to {@link #TICK_MS} late.
+ * </p>
+ *
+ * <p>All the methods must be called with the given lock held; {@link Timer#onExpired} is
+ * called on the handler thread without it.</p>
+ */
+final class TimerWheel {
+    /** Resolution of the wheel. */
+    @VisibleForTesting
+    static final long TICK_MS = 100;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    /** With 100ms ticks, each level covers 6.4s, 6.8m, 7.3h and 19.4d respectively. */
+    private static final int LEVELS = 4;
+
+    /**
+     * A timer which can be scheduled on a {@link TimerWheel}.
+     */
+    abstract static class Timer {
+        @UptimeMillisLong
+        long mDeadline;
+        // The tick this timer expires at, and the slot of the wheel it is in, or -1.
+        long mExpireTick;
+        int mSlot = -1;
+        Timer mPrev;
+        Timer mNext;
+
+        /**
+         * Called on the handler thread, without the lock held, when the timer expires.
+         */
+        abstract void onExpired();
+
+        boolean isScheduled() {
+            return mSlot >= 0;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Object mLock;
+
+    @GuardedBy("mLock")
+    private final Timer[] mSlots = new Timer[LEVELS * SLOTS];
+
+    /** The last tick which has been processed. */
+    @GuardedBy("mLock")
+    private long mCurrentTick;
+
+    @GuardedBy("mLock")
+    private int mNumScheduled;
+
+    /** The uptime the tick callback is posted at, or 0 if it isn't posted. */
+    @GuardedBy("mLock")
+    private long mWakeTime;
+
+    @GuardedBy("mLock")
+    private long mNumExpired;
+
+    @GuardedBy("mLock")
+    private long mNumCancelled;
+
+    private final ArrayList<Timer> mTmpExpired = new ArrayList<>();
+
+    private final Runnable mTick = this::tick;
+
+    TimerWheel(Handler handler, Object lock) {
+        mHandler = handler;
+        mLock = lock;
+        mCurrentTick = SystemClock.uptimeMillis() / TICK_MS;
+    }
+
+    /**
+     * Schedule the given timer to expire at the given uptime, replacing its current schedule
+     * if it has one.
+     */
+    @GuardedBy("mLock")
+    void schedule(Timer timer, @UptimeMillisLong long deadline) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+            mNumScheduled--;
+        }
+        if (mNumScheduled == 0) {
+            // The wheel may have been idle for long, with nothing to make it advance; catch up
+            // here rather than walking every tick since on the next callback.
+            mCurrentTick = Math.max(mCurrentTick, SystemClock.uptimeMillis() / TICK_MS);
+        }
+        timer.mDeadline = deadline;
+        timer.mExpireTick = Math.max((deadline + TICK_MS - 1) / TICK_MS, mCurrentTick + 1);
+        insert(timer);
+        mNumScheduled++;
+        updateWakeTimeLocked();
+    }
+
+    /**
+     * Cancel the given timer, if it's scheduled.
+     */
+    @GuardedBy("mLock")
+    void cancel(Timer timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+            mNumScheduled--;
+            mNumCancelled++;
+            // Don't bother removing the posted callback, it's harmless if it fires early.
+        }
+    }
+
+    private void tick() {
+        final ArrayList<Timer> expired = mTmpExpired;
+        synchronized (mLock) {
+            mWakeTime = 0;
+            advanceLocked(SystemClock.uptimeMillis() / TICK_MS, expired);
+            mNumExpired += expired.size();
+            updateWakeTimeLocked();
+        }
+        for (int i = 0, size = expired.size(); i < size; i++) {
+            expired.get(i).onExpired();
+        }
+        expired.clear();
+    }
+
+    @GuardedBy("mLock")
+    private void advanceLocked(long targetTick, ArrayList<Timer> expired) {
+        if (mNumScheduled == 0) {
+            mCurrentTick = Math.max(mCurrentTick, targetTick);
+            return;
+        }
+        while (mCurrentTick < targetTick) {
+            final long tick = ++mCurrentTick;
+            // Move the timers of the higher levels down as we enter their slot's range.
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    cascade(level, (int) ((tick >> (level * SLOT_BITS)) & SLOT_MASK));
+                }
+            }
+            final int slot = (int) (tick & SLOT_MASK);
+            Timer timer = mSlots[slot];
+            while (timer != null) {
+                final Timer next = timer.mNext;
+                unlink(timer);
+                mNumScheduled--;
+                expired.add(timer);
+                timer = next;
+            }
+            if (mNumScheduled == 0) {
+                mCurrentTick = targetTick;
+                return;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void cascade(int level, int index) {
+        final int slot = level * SLOTS + index;
+        Timer timer = mSlots[slot];
+        mSlots[slot] = null;
+        while (timer != null) {
+            final Timer next = timer.mNext;
+            timer.mPrev = timer.mNext = null;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void insert(Timer timer) {
+        final long expireTick = timer.mExpireTick;
+        int slot = -1;
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = level * SLOT_BITS;
+            if ((expireTick >> shift) - (mCurrentTick >> shift) < SLOTS) {
+                slot = level * SLOTS + (int) ((expireTick >> shift) & SLOT_MASK);
+                break;
+            }
+        }
+        if (slot < 0) {
+            // Too far out; park it in the furthest slot, it'll be re-inserted when cascaded.
+            final int shift = (LEVELS - 1) * SLOT_BITS;
+            slot = (LEVELS - 1) * SLOTS + (int) (((mCurrentTick >> shift) + SLOTS - 1) & SLOT_MASK);
+        }
+        timer.mSlot = slot;
+        timer.mPrev = null;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mSlots[slot] = timer;
+    }
+
+    @GuardedBy("mLock")
+    private void unlink(Timer timer) {
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mSlots[timer.mSlot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = timer.mNext = null;
+        timer.mSlot = -1;
+    }
+
+    /**
+     * Make sure the tick callback is posted at the next time a timer may expire: the next
+     * non-empty slot of the lowest level, or else the next time the higher levels cascade.
+     */
+    @GuardedBy("mLock")
+    private void updateWakeTimeLocked() {
+        if (mNumScheduled == 0) {
+            return;
+        }
+        long wakeTick = ((mCurrentTick >> SLOT_BITS) + 1) << SLOT_BITS;
+        for (long tick = mCurrentTick + 1; tick < mCurrentTick + SLOTS; tick++) {
+            if (mSlots[(int) (tick & SLOT_MASK)] != null) {
+                wakeTick = Math.min(wakeTick, tick);
+                break;
+            }
+        }
+        final long wakeTime = wakeTick * TICK_MS;
+        if (mWakeTime != 0 && mWakeTime <= wakeTime) {
+            return;
+        }
+        if (mWakeTime != 0) {
+            mHandler.removeCallbacks(mTick);
+        }
+        mWakeTime = wakeTime;
+        mHandler.postAtTime(mTick, wakeTime);
+    }
+
+    @GuardedBy("mLock")
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("scheduled="); pw.print(mNumScheduled);
+        pw.print(" expired="); pw.print(mNumExpired);
+        pw.print(" cancelled="); pw.println(mNumCancelled);
+    }
+}